@@ -0,0 +1,61 @@
+package bench;
+
+/**
+ * A single benchmark run by {@link Harness}. It is measured for each of its
+ * parameters (e.g. collection size or action class) and each number
+ * of threads: {@link #setUp(String, int)} is called once before warmup, then
+ * all threads call {@link #run(int)} as many times as they can in every
+ * iteration.
+ * <p>
+ * <code>run</code> should return something computed by the operation, so
+ * it cannot be optimised away. Operations which change state should
+ * restore it, e.g. a card removed is added back, so every iteration
+ * measures the same thing.
+ */
+public abstract class Benchmark {
+    final String name;
+    final String[] params;
+    final int[] threads;
+
+    /**
+     * @param name name of the benchmark, e.g. <code>Collection.contains</code>
+     * @param params parameters the benchmark is measured for
+     */
+    protected Benchmark(String name, String... params) {
+        this(name, new int[] {1}, params);
+    }
+
+    /**
+     * @param name name of the benchmark
+     * @param threads numbers of threads the benchmark is measured with
+     * @param params parameters the benchmark is measured for
+     */
+    protected Benchmark(String name, int[] threads, String... params) {
+        this.name = name;
+        this.threads = threads;
+        this.params = params.length == 0? new String[] {""} : params;
+    }
+
+    /**
+     * Prepares the state measured with given parameter.
+     * @param param one of the benchmark's parameters
+     * @param threads number of threads which are going to run it
+     * @throws Exception if the state cannot be prepared
+     */
+    protected void setUp(String param, int threads) throws Exception {}
+
+    /**
+     * Runs a single operation.
+     * @param thread number of the calling thread, from 0
+     * @return any value computed by the operation
+     * @throws Exception if the operation fails, which stops the benchmark
+     */
+    protected abstract long run(int thread) throws Exception;
+
+    /**
+     * Releases the state after the benchmark has been measured with
+     * a parameter.
+     * @throws Exception if the state cannot be released
+     */
+    protected void tearDown() throws Exception {}
+}
@@ -0,0 +1,125 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeMap;
+import mtg.Deck;
+import mtg.Zone;
+import server.flags.*;
+import server.net.Frame;
+
+/**
+ * Benchmarks of encoding and decoding a frame of each action class, with
+ * fields filled as in a typical game.
+ */
+class CodecBenchmarks {
+    private CodecBenchmarks() {}
+
+    static List<Benchmark> all() throws Exception {
+        final LinkedHashMap<String, Action> samples = samples();
+        final LinkedHashMap<String, ByteBuffer> frames = new LinkedHashMap<>();
+        for (String e : samples.keySet()) {
+            frames.put(e, Frame.encode(samples.get(e)));
+        }
+        String[] names = samples.keySet().toArray(new String[samples.size()]);
+
+        List<Benchmark> r = new ArrayList<>();
+        r.add(new Benchmark("Codec.encode", names) {
+            private Action action;
+
+            @Override
+            protected void setUp(String param, int threads) {
+                action = samples.get(param);
+            }
+
+            @Override
+            protected long run(int thread) throws Exception {
+                return Frame.encode(action).limit();
+            }
+        });
+        r.add(new Benchmark("Codec.decode", names) {
+            private ByteBuffer payload;
+
+            @Override
+            protected void setUp(String param, int threads) {
+                payload = frames.get(param).duplicate();
+                payload.position(Frame.HEADER);
+            }
+
+            @Override
+            protected long run(int thread) throws Exception {
+                return ((Action) Frame.decode(payload.duplicate())).requestor;
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Returns an action of each class, by class name.
+     */
+    private static LinkedHashMap<String, Action> samples() {
+        String[] hand = {"A12", "A7", "A33", "A50", "A2", "A41", "A19"};
+        String[] names = new String[15];
+        String[] hashes = new String[15];
+        long[] sizes = new long[15];
+        Deck deck = new Deck();
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "Card Name Number " + i;
+            hashes[i] = "0123456789abcdef0123456789abcdef0123456" + (i % 10);
+            sizes[i] = 40000 + i;
+            deck.addCard(names[i], 4);
+        }
+        TreeMap<String, String> list = new TreeMap<>();
+        for (int i = 0; i < 120; i++) {
+            list.put((char) ('A' + i / 60) + "" + i % 60, names[i % 15]);
+        }
+
+        ArrayList<Action> r = new ArrayList<>();
+        r.add(new Message("good game, well played"));
+        r.add(new Disconnect(1, true));
+        r.add(new DragCard("A42", 512, 384, true));
+        r.add(new TapCard("A42", true));
+        r.add(new MoveCard(Zone.HAND, Zone.TABLE, 0, "A42"));
+        r.add(new Player(1, 17, Player.HEALTH));
+        r.add(new UntapAll());
+        r.add(new Search(7, hand, Zone.LIBRARY, 0, -1));
+        r.add(new Shuffle(0));
+        r.add(new Reveal(Zone.TOP_LIBRARY, "A42"));
+        r.add(new CreateToken(false, false, true, false, false, "Soldier",
+                "Creature - Soldier", "", true, 1, 1));
+        r.add(new RandomValue(RandomValue.DIE));
+        Restart restart = new Restart();
+        restart.IDs = hand;
+        restart.deckSize = 60;
+        r.add(restart);
+        RandomCard rc = new RandomCard();
+        rc.cardID = "A42";
+        r.add(rc);
+        RequestCard request = new RequestCard(names, hashes);
+        request.offsets = new long[names.length];
+        r.add(request);
+        r.add(new Ready(2));
+        CheckDeck cd = new CheckDeck("Player", deck, "table");
+        cd.hashes = hashes;
+        cd.sizes = sizes;
+        r.add(cd);
+        r.add(new CardsList(list));
+        r.add(new CardChunk(0, 65536, 8192, hashes[0], new byte[8192]));
+        r.add(new Reconnect(0, "table", hashes[0].substring(0, 32), 1234));
+        r.add(new Spectate("table"));
+        Action[] deal = new Action[hand.length + 1];
+        deal[0] = new Shuffle(0);
+        for (int i = 0; i < hand.length; i++) {
+            deal[i + 1] = new MoveCard(Zone.TOP_LIBRARY, Zone.HAND, 0, hand[i]);
+        }
+        r.add(new Batch(0, deal));
+
+        LinkedHashMap<String, Action> samples = new LinkedHashMap<>();
+        for (Action e : r) {
+            samples.put(e.getClass().getSimpleName(), e);
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,62 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import mtg.Main;
+import mtg.Utilities;
+
+/**
+ * Benchmark of {@link Utilities#findPath(String)} over a synthetic tree
+ * of {@link #CARDS} empty card images, spread over {@link #SETS}
+ * directories like card sets. Names are looked up in random order and
+ * in mixed case; "miss" looks up names which are not in the tree.
+ */
+class FindPathBenchmark extends Benchmark {
+    private static final int CARDS = 10000;
+    private static final int SETS = 100;
+
+    private boolean created;
+    private String[] names;
+    private int next;
+
+    FindPathBenchmark() {
+        super("Utilities.findPath", "hit", "miss");
+    }
+
+    @Override
+    protected void setUp(String param, int threads) throws IOException {
+        if (!created) {
+            create();
+            created = true;
+        }
+        Random random = new Random(CARDS);
+        names = new String[1024];
+        for (int i = 0; i < names.length; i++) {
+            int card = random.nextInt(CARDS);
+            names[i] = param.equals("hit")? "CARD name " + card
+                    : "Missing card " + card;
+        }
+    }
+
+    @Override
+    protected long run(int thread) {
+        String path = Utilities.findPath(names[next++ & (names.length - 1)]);
+        return path == null? 0 : path.length();
+    }
+
+    /**
+     * Creates the tree in {@link Main#CARDS}, which is a temporary directory
+     * while benchmarks are running.
+     */
+    private static void create() throws IOException {
+        for (int i = 0; i < CARDS; i++) {
+            File set = new File(Main.CARDS, "Set " + i % SETS);
+            set.mkdirs();
+            if (!new File(set, "Card Name " + i + ".jpg").createNewFile()) {
+                throw new IOException("Card tree already exists in "
+                        + Main.CARDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import mtg.Debug;
+
+/**
+ * Runs microbenchmarks of the server's hot paths and writes results to
+ * a CSV file, so results of different runs can be compared.
+ * <p>
+ * Usage: <code>bench.Harness [regex]</code>, where <code>regex</code>
+ * selects benchmarks by name. Every benchmark is measured in average time
+ * per operation: it runs {@link #WARMUP} warmup iterations and then
+ * {@link #ITERATIONS} measured iterations of {@link #TIME} milliseconds
+ * each. With many threads, the time is per operation of a single thread.
+ * <p>
+ * Benchmarks run in a temporary <code>MTG</code> directory, so no card
+ * or journal of the user is ever touched. System properties:
+ * <ul>
+ * <li><code>mtg.bench.warmup</code>, <code>mtg.bench.iterations</code> and
+ * <code>mtg.bench.time</code> - see above,</li>
+ * <li><code>mtg.bench.out</code> - CSV file with results,
+ * <code>bench-&lt;time&gt;.csv</code> by default.</li>
+ * </ul>
+ */
+public class Harness {
+    static final int WARMUP = Integer.getInteger("mtg.bench.warmup", 3);
+    static final int ITERATIONS = Integer.getInteger("mtg.bench.iterations", 5);
+    static final int TIME = Integer.getInteger("mtg.bench.time", 1000);
+
+    /**
+     * Values returned by benchmarks end up here, so the JIT cannot drop
+     * the operations.
+     */
+    private static volatile long sink;
+
+    private Harness() {}
+
+    public static void main(String[] args) throws Exception {
+        File output = new File(System.getProperty("mtg.bench.out",
+                "bench-" + System.currentTimeMillis() + ".csv"))
+                .getAbsoluteFile();
+        Pattern filter = args.length > 0? Pattern.compile(args[0]) : null;
+
+        // must be set before mtg.Main is loaded
+        Path dir = Files.createTempDirectory("mtg-bench");
+        System.setProperty("user.dir", dir.toString());
+        Debug.set(Debug.I, false);
+
+        ArrayList<Benchmark> all = new ArrayList<>();
+        all.addAll(server.Benchmarks.collection());
+        all.addAll(server.Benchmarks.game());
+        all.addAll(CodecBenchmarks.all());
+        all.add(new FindPathBenchmark());
+
+        try (PrintWriter csv = new PrintWriter(output, "UTF-8")) {
+            csv.println("benchmark,param,threads,iterations,score,stdev,min,max,unit");
+            for (Benchmark b : all) {
+                if (filter != null && !filter.matcher(b.name).find()) {
+                    continue;
+                }
+                for (String param : b.params) {
+                    for (int threads : b.threads) {
+                        double[] scores = measure(b, param, threads);
+                        double mean = 0;
+                        double min = Double.MAX_VALUE;
+                        double max = 0;
+                        for (double e : scores) {
+                            mean += e / scores.length;
+                            min = Math.min(min, e);
+                            max = Math.max(max, e);
+                        }
+                        double variance = 0;
+                        for (double e : scores) {
+                            variance += (e - mean) * (e - mean);
+                        }
+                        double stdev = scores.length < 2? 0
+                                : Math.sqrt(variance / (scores.length - 1));
+                        csv.println(String.format(Locale.ROOT,
+                                "%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,ns/op", b.name,
+                                param, threads, scores.length, mean, stdev,
+                                min, max));
+                        csv.flush();
+                        System.out.println(String.format(Locale.ROOT,
+                                "%-32s %-14s %2d thr %12.1f +- %9.1f ns/op",
+                                b.name, param, threads, mean, stdev));
+                    }
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+        System.out.println("Results written to " + output);
+        System.exit(0);
+    }
+
+    /**
+     * Measures a benchmark with given parameter and number of threads.
+     * @return average time of an operation in each measured iteration
+     */
+    private static double[] measure(Benchmark b, String param, int threads)
+            throws Exception {
+        b.setUp(param, threads);
+        try {
+            for (int i = 0; i < WARMUP; i++) {
+                iteration(b, threads);
+            }
+            double[] scores = new double[ITERATIONS];
+            for (int i = 0; i < ITERATIONS; i++) {
+                scores[i] = iteration(b, threads);
+            }
+            return scores;
+        } finally {
+            b.tearDown();
+        }
+    }
+
+    /**
+     * Runs a benchmark on all threads for {@link #TIME} milliseconds.
+     * @return average time of an operation in nanoseconds
+     */
+    private static double iteration(final Benchmark b, int threads)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final long[] ops = new long[threads];
+        final Exception[] failure = new Exception[1];
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int t = i;
+            workers[i] = new Thread("Benchmark-" + i) {
+                @Override
+                public void run() {
+                    long n = 0;
+                    long s = 0;
+                    try {
+                        start.await();
+                        while (!stop.get()) {
+                            s += b.run(t);
+                            n++;
+                        }
+                    } catch (Exception ex) {
+                        failure[0] = ex;
+                    }
+                    ops[t] = n;
+                    sink += s;
+                }
+            };
+            workers[i].start();
+        }
+        long time = System.nanoTime();
+        start.countDown();
+        Thread.sleep(TIME);
+        stop.set(true);
+        for (Thread e : workers) {
+            e.join();
+        }
+        time = System.nanoTime() - time;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        long total = 0;
+        for (long e : ops) {
+            total += e;
+        }
+        return total == 0? Double.NaN : (double) time * threads / total;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException ex)
+                    throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
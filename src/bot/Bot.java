@@ -0,0 +1,267 @@
+package bot;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+import mtg.Deck;
+import mtg.InvalidDeckException;
+import mtg.Zone;
+import server.flags.*;
+
+/**
+ * Bot playing a game on its own. Every call of {@link #act()} sends one
+ * action, chosen either in turn from a script or at random with given
+ * weights, from {@link #KINDS}:
+ * <ul>
+ * <li>move - draws a card, plays a card from hand or puts a card from
+ * the table into graveyard,</li>
+ * <li>drag - drags a card on the table, sending a few positions in progress
+ * and the final one,</li>
+ * <li>tap - taps or untaps a card on the table,</li>
+ * <li>search - looks at the top cards of the library,</li>
+ * <li>shuffle - shuffles the library,</li>
+ * <li>message - sends a chat message.</li>
+ * </ul>
+ * Round-trip latency is measured for each action the server sends back
+ * to its requestor, from sending the action until receiving it back.
+ */
+public class Bot extends BotClient {
+    /**
+     * Kinds of actions played by bots, in the order of weights.
+     */
+    public static final String[] KINDS = {
+        "move", "drag", "tap", "search", "shuffle", "message"
+    };
+    private static final int MOVE = 0;
+    private static final int DRAG = 1;
+    private static final int TAP = 2;
+    private static final int SEARCH = 3;
+    private static final int SHUFFLE = 4;
+    private static final int MESSAGE = 5;
+
+    /**
+     * Number of positions of a drag in progress sent before the final one.
+     */
+    private static final int DRAG_STEPS = 4;
+    /**
+     * The bot puts cards into graveyard when it has more on the table.
+     */
+    private static final int TABLE_LIMIT = 12;
+
+    private final int[] script;
+    private final int[] weights;
+    private final Random random;
+    private int next;
+
+    /**
+     * key of an action -> times at which actions of that key, not yet
+     * received back, have been sent. Guarded by itself.
+     */
+    private final HashMap<String, ArrayDeque<Long>> pending;
+    private final Latencies latencies;
+    private volatile long sent;
+
+    /**
+     * Connects a bot to the server and joins a table.
+     * @param script kinds of actions played in turn, indices of
+     * {@link #KINDS}, or null to play at random
+     * @param weights weights of kinds of actions played at random, in
+     * the order of {@link #KINDS}, ignored if script is given
+     * @see BotClient#BotClient(String, String, int, String, Deck)
+     */
+    public Bot(String name, String ip, int port, String tableName, Deck deck,
+            int[] script, int[] weights)
+            throws IOException, InvalidDeckException {
+        super(name, ip, port, tableName, deck);
+        this.script = script;
+        this.weights = weights;
+        this.random = new Random();
+        this.pending = new HashMap<>();
+        this.latencies = new Latencies();
+    }
+
+    /**
+     * Returns the number of actions sent by {@link #act()}.
+     * @return number of actions sent
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns round-trip latencies measured so far.
+     * @return latencies in nanoseconds
+     */
+    public Latencies getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Returns the number of actions sent which have not been received back.
+     * @return number of actions awaiting an answer
+     */
+    public int getUnanswered() {
+        int r = 0;
+        synchronized (pending) {
+            for (ArrayDeque<Long> e : pending.values()) {
+                r += e.size();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Sends the next action. It does nothing until the game starts.
+     */
+    public void act() {
+        if (!isStarted() || isClosed()) {
+            return;
+        }
+        int kind;
+        if (script != null) {
+            kind = script[next++ % script.length];
+        } else {
+            kind = pick();
+        }
+        String card;
+        switch (kind) {
+            case MOVE:
+                move();
+                break;
+            case DRAG:
+                if ((card = onTable()) == null) {
+                    move();
+                    break;
+                }
+                int x = random.nextInt(1000);
+                int y = random.nextInt(1000);
+                for (int i = 1; i <= DRAG_STEPS; i++) {
+                    send(new DragCard(card, x * i / DRAG_STEPS,
+                            y * i / DRAG_STEPS, true));
+                }
+                send("D" + card, new DragCard(card, x, y));
+                break;
+            case TAP:
+                if ((card = onTable()) == null) {
+                    move();
+                    break;
+                }
+                send("T" + card, new TapCard(card, random.nextBoolean()));
+                break;
+            case SEARCH:
+                send("S", new Search(1 + random.nextInt(5), Zone.LIBRARY,
+                        getPlayerId()));
+                break;
+            case SHUFFLE:
+                send("H", new Shuffle(getPlayerId()));
+                break;
+            case MESSAGE:
+                send("M", new Message("message " + sent));
+                break;
+        }
+        sent++;
+    }
+
+    /**
+     * Draws a card, plays a card from hand or puts a card from the table
+     * into graveyard. Cards are removed from bot's zones when sent, so they
+     * are never moved twice.
+     */
+    private void move() {
+        int me = getPlayerId();
+        String card = null;
+        Zone source;
+        Zone destination;
+        synchronized (this) {
+            if (table.size() > TABLE_LIMIT) {
+                card = table.remove(random.nextInt(table.size()));
+                source = Zone.TABLE;
+                destination = Zone.GRAVEYARD;
+            } else if (!hand.isEmpty() && (library == 0 || random.nextBoolean())) {
+                card = hand.remove(random.nextInt(hand.size()));
+                source = Zone.HAND;
+                destination = Zone.TABLE;
+            } else if (library > 0) {
+                source = Zone.TOP_LIBRARY;
+                destination = Zone.HAND;
+            } else {
+                return;
+            }
+        }
+        send(card == null? "draw" : "C" + card,
+                new MoveCard(source, destination, me, card));
+    }
+
+    /**
+     * Returns a random bot's card on the table or null if there is none.
+     */
+    private synchronized String onTable() {
+        return table.isEmpty()? null : table.get(random.nextInt(table.size()));
+    }
+
+    private int pick() {
+        int total = 0;
+        for (int e : weights) {
+            total += e;
+        }
+        int r = random.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            if ((r -= weights[i]) < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+
+    /**
+     * Sends an action which the server sends back, remembering when it has
+     * been sent.
+     */
+    private void send(String key, Action action) {
+        synchronized (pending) {
+            ArrayDeque<Long> times = pending.get(key);
+            if (times == null) {
+                times = new ArrayDeque<>();
+                pending.put(key, times);
+            }
+            times.add(System.nanoTime());
+        }
+        send(action);
+    }
+
+    @Override
+    protected void received(Action object) {
+        if (object.requestor != getPlayerId()) {
+            return;
+        }
+        String key;
+        if (object.getClass().equals(MoveCard.class)) {
+            MoveCard mc = (MoveCard) object;
+            key = mc.source == Zone.TOP_LIBRARY? "draw" : "C" + mc.cardID;
+        } else if (object.getClass().equals(DragCard.class)) {
+            key = "D" + ((DragCard) object).ID;
+        } else if (object.getClass().equals(TapCard.class)) {
+            key = "T" + ((TapCard) object).ID;
+        } else if (object.getClass().equals(Search.class)) {
+            key = "S";
+        } else if (object.getClass().equals(Shuffle.class)) {
+            key = "H";
+        } else if (object.getClass().equals(Message.class)) {
+            key = "M";
+        } else {
+            return;
+        }
+        Long time;
+        synchronized (pending) {
+            ArrayDeque<Long> times = pending.get(key);
+            time = times == null? null : times.poll();
+            if (times != null && times.isEmpty()) {
+                pending.remove(key);
+            }
+        }
+        if (time != null) {
+            latencies.add(System.nanoTime() - time);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package bot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import mtg.CardStore;
+import mtg.Debug;
+import mtg.Deck;
+import mtg.InvalidDeckException;
+import mtg.Threads;
+import server.flags.*;
+import server.net.CardDownload;
+import server.net.CardUpload;
+import server.net.Frame;
+
+/**
+ * Client without GUI speaking the same protocol as <code>game.Client</code>.
+ * It joins a table with a deck, exchanges decks and card images with
+ * the server, confirms it is ready and keeps track of its own cards: IDs of
+ * cards in its hand and on the table and the size of its library, so
+ * actions it sends are valid.
+ * <p>
+ * Every action received is passed to {@link #received(Action)}, called
+ * by the client's thread after the client's own state has been updated.
+ * Actions of a {@link Batch} are passed one by one.
+ * The thread is virtual if enabled (see {@link Threads}).
+ */
+public class BotClient implements Runnable {
+    private final Socket s;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    /**
+     * Guards writing to {@link #out}.
+     */
+    private final ReentrantLock sending;
+
+    private final String name;
+    private final int players;
+    private volatile int id;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    /**
+     * Cards requested from the server, in the order of requests.
+     */
+    private final ArrayDeque<CardDownload> downloads;
+    /**
+     * Number of decks received and checked, sent back in <code>Ready</code>.
+     */
+    private int checked;
+
+    /**
+     * IDs of cards in this player's hand. Guarded by this.
+     */
+    protected final ArrayList<String> hand;
+    /**
+     * IDs of this player's cards on the table. Guarded by this.
+     */
+    protected final ArrayList<String> table;
+    /**
+     * Number of cards in this player's library. Guarded by this.
+     */
+    protected int library;
+
+    private volatile long received;
+    private volatile long errors;
+
+    /**
+     * Connects to the server and joins a table.
+     * @param name player's name
+     * @param ip ip of the server
+     * @param port port the server is listening to
+     * @param tableName name of the table to join or null for the default
+     * table
+     * @param deck player's deck
+     * @throws IOException if client could not connect or has been refused
+     * @throws InvalidDeckException if the deck has been rejected
+     */
+    public BotClient(String name, String ip, int port, String tableName,
+            Deck deck) throws IOException, InvalidDeckException {
+        this.sending = new ReentrantLock();
+        this.downloads = new ArrayDeque<>();
+        this.hand = new ArrayList<>();
+        this.table = new ArrayList<>();
+        this.library = deck.getDeckSize();
+        this.id = -1;
+
+        s = new Socket(ip, port);
+        s.setTcpNoDelay(true);
+        out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        try {
+            CheckDeck cd = new CheckDeck(name, deck, tableName);
+            cd.hashes = CardStore.hashes(deck);
+            cd.sizes = CardStore.sizes(deck);
+            Frame.write(out, cd);
+
+            Object obj = Frame.read(in);
+            if (obj instanceof InvalidDeckException) {
+                throw (InvalidDeckException) obj;
+            } else if (obj instanceof IOException) {
+                throw (IOException) obj; //e.g. table is full
+            }
+            this.name = (String) obj;
+            this.players = (Integer) Frame.read(in);
+        } catch (IOException | RuntimeException ex) {
+            try {
+                s.close();
+            } catch (IOException ex1) {}
+            throw ex;
+        }
+    }
+
+    /**
+     * Starts the thread reading actions from the server.
+     */
+    public void start() {
+        Threads.start("Bot " + name, this);
+    }
+
+    /**
+     * Returns player's name given by the server.
+     * @return player's name
+     */
+    public String getPlayerName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of players at the table.
+     * @return the number of players
+     */
+    public int getPlayers() {
+        return players;
+    }
+
+    /**
+     * Returns player's seat or -1 if it is not known yet.
+     * @return player's seat
+     */
+    public int getPlayerId() {
+        return id;
+    }
+
+    /**
+     * Returns true once the game has started, i.e. all players are ready
+     * and the list of cards has been received.
+     * @return true if game has started
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Returns true if connection has been closed.
+     * @return true if client is closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the number of frames received, apart from card chunks.
+     * @return frames received
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Returns the number of errors: actions which could not be sent or
+     * handled and unexpected loss of connection.
+     * @return number of errors
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Called by the client's thread for every action received, apart from
+     * card chunks. Does nothing by default.
+     * @param object action received
+     */
+    protected void received(Action object) {}
+
+    /**
+     * Counts an error.
+     */
+    protected void error() {
+        errors++;
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            Action object = null;
+            try {
+                object = (Action) Frame.read(in);
+                if (object.getClass().equals(CardChunk.class)) {
+                    if (downloads.peek().accept((CardChunk) object)) {
+                        downloads.poll();
+                        if (downloads.isEmpty()) {
+                            send(new Ready(checked));
+                        }
+                    }
+                    continue;
+                }
+                received++;
+                if (object.getClass().equals(Batch.class)) {
+                    for (Action a : ((Batch) object).actions) {
+                        handle(a);
+                        received(a);
+                    }
+                } else {
+                    handle(object);
+                    received(object);
+                }
+            } catch (Exception ex) {
+                if (closed) {
+                    return;
+                } else if (object == null) {
+                    Debug.p("Bot " + name + ": Connection lost: " + ex, Debug.W);
+                    error();
+                    close(false);
+                    return;
+                }
+                Debug.p("Bot " + name + ": Error while dealing with " + object
+                        + ": " + ex, Debug.W);
+                error();
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the game and answers the server.
+     */
+    private void handle(Action object) throws IOException {
+        // RECONNECT - the first frame after being seated, tells our seat
+        if (object.getClass().equals(Reconnect.class)) {
+            id = object.requestor;
+
+        // CHECK DECK - download missing cards of other players
+        } else if (object.getClass().equals(CheckDeck.class)) {
+            CheckDeck cd = (CheckDeck) object;
+            checked++;
+            int[] missing = CardStore.missing(cd.deck, cd.hashes);
+            if (missing.length > 0) {
+                RequestCard rc = new RequestCard(cd.deck, cd.hashes, missing);
+                CardDownload download = new CardDownload(rc.names, rc.hashes);
+                rc.offsets = download.getOffsets();
+                downloads.add(download);
+                send(rc);
+            } else if (downloads.isEmpty()) {
+                send(new Ready(checked));
+            }
+
+        // REQUEST CARD - server requests our cards' images
+        } else if (object.getClass().equals(RequestCard.class)) {
+            RequestCard t = (RequestCard) object;
+            CardUpload upload = new CardUpload(t.names, t.hashes, t.offsets);
+            CardChunk chunk;
+            while ((chunk = upload.next()) != null) {
+                send(chunk);
+            }
+
+        // CARDS LIST - game starts
+        } else if (object.getClass().equals(CardsList.class)) {
+            started = true;
+
+        // MOVE CARD
+        } else if (object.getClass().equals(MoveCard.class)) {
+            MoveCard mc = (MoveCard) object;
+            if (mc.requestor == id || (mc.cardID != null
+                    && mc.cardID.charAt(0) - 'A' == id)) {
+                moved(mc);
+            }
+
+        // RESTART
+        } else if (object.getClass().equals(Restart.class)) {
+            Restart r = (Restart) object;
+            if (r.requestor == id && r.IDs != null) {
+                synchronized (this) {
+                    hand.clear();
+                    table.clear();
+                    for (String e : r.IDs) {
+                        hand.add(e);
+                    }
+                    library = r.deckSize - r.IDs.length;
+                }
+            }
+
+        // GAME STATE - replaces actions missed
+        } else if (object.getClass().equals(GameState.class)) {
+            GameState st = (GameState) object;
+            synchronized (this) {
+                hand.clear();
+                table.clear();
+                if (st.hand != null) {
+                    for (String e : st.hand) {
+                        hand.add(e);
+                    }
+                }
+                for (String e : st.table) {
+                    if (e.charAt(0) - 'A' == id && e.charAt(1) != 'X') {
+                        table.add(e);
+                    }
+                }
+                library = st.librarySizes[id];
+            }
+
+        // DISCONNECT - the server has been closed
+        } else if (object.getClass().equals(Disconnect.class)
+                && object.requestor == -1) {
+            close(false);
+        }
+    }
+
+    /**
+     * Updates player's zones after a move of their card.
+     */
+    private synchronized void moved(MoveCard mc) {
+        boolean own = mc.cardID != null && mc.cardID.charAt(0) - 'A' == id;
+        switch (mc.source) {
+            case HAND:
+                hand.remove(mc.cardID);
+                break;
+            case TABLE:
+                table.remove(mc.cardID);
+                break;
+            case TOP_LIBRARY:
+            case LIBRARY:
+                if (mc.requestor == id) {
+                    library--;
+                }
+                break;
+        }
+        if (!own) {
+            return;
+        }
+        switch (mc.destination) {
+            case HAND:
+                if (!hand.contains(mc.cardID)) {
+                    hand.add(mc.cardID);
+                }
+                break;
+            case TABLE:
+                if (!table.contains(mc.cardID)) {
+                    table.add(mc.cardID);
+                }
+                break;
+            case TOP_LIBRARY:
+            case LIBRARY:
+                library++;
+                break;
+        }
+    }
+
+    /**
+     * Sends an action to the server. Errors are counted, not thrown.
+     * @param object action to be sent
+     */
+    public void send(Action object) {
+        sending.lock();
+        try {
+            Frame.write(out, object);
+        } catch (IOException ex) {
+            if (!closed) {
+                Debug.p("Bot " + name + ": Error while sending " + object
+                        + ": " + ex, Debug.W);
+                error();
+            }
+        } finally {
+            sending.unlock();
+        }
+    }
+
+    /**
+     * Leaves the game and closes the connection.
+     */
+    public void close() {
+        close(true);
+    }
+
+    private void close(boolean leave) {
+        if (closed) {
+            return;
+        }
+        if (leave) {
+            send(new Disconnect(true));
+        }
+        closed = true;
+        try {
+            s.close();
+        } catch (IOException ex) {}
+    }
+}
@@ -0,0 +1,67 @@
+package bot;
+
+import java.util.Arrays;
+
+/**
+ * Latencies measured by a bot or merged from many bots, in nanoseconds.
+ * All samples are kept, so percentiles are exact.
+ */
+public class Latencies {
+    private long[] samples;
+    private int size;
+
+    public Latencies() {
+        samples = new long[256];
+    }
+
+    /**
+     * Adds a sample.
+     * @param nanos latency in nanoseconds
+     */
+    public synchronized void add(long nanos) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = nanos;
+    }
+
+    /**
+     * Adds all samples of other latencies.
+     * @param other latencies to be added
+     */
+    public synchronized void addAll(Latencies other) {
+        long[] s;
+        int n;
+        synchronized (other) {
+            s = other.samples;
+            n = other.size;
+        }
+        if (size + n > samples.length) {
+            samples = Arrays.copyOf(samples, Math.max(size + n, size * 2));
+        }
+        System.arraycopy(s, 0, samples, size, n);
+        size += n;
+    }
+
+    /**
+     * Returns the number of samples.
+     * @return number of samples
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns given percentile of all samples, or 0 if there are none.
+     * @param p percentile between 0 and 100
+     * @return latency in nanoseconds
+     */
+    public synchronized long percentile(double p) {
+        if (size == 0) {
+            return 0;
+        }
+        Arrays.sort(samples, 0, size);
+        int i = (int) Math.ceil(p / 100 * size) - 1;
+        return samples[Math.max(0, Math.min(size - 1, i))];
+    }
+}
@@ -0,0 +1,302 @@
+package bot;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import mtg.Debug;
+import mtg.Deck;
+import mtg.Threads;
+import mtg.Utilities;
+import server.Server;
+
+/**
+ * Load test of the game server. It hosts a server on the loopback interface,
+ * seats <code>bots</code> {@link Bot}s at each of <code>tables</code> tables,
+ * lets every bot send <code>rate</code> actions per second for
+ * <code>seconds</code> seconds and reports throughput, round-trip latency
+ * percentiles, errors and resources used: platform threads, heap and
+ * resident memory of the whole process (server and bots).
+ * <p>
+ * Usage: <code>bot.LoadTest tables bots [seconds] [rate]</code>. It is
+ * configured further with system properties:
+ * <ul>
+ * <li><code>mtg.bot.port</code> - port of the server, 56790 by default,</li>
+ * <li><code>mtg.bot.deck</code> - deck file played by bots; by default they
+ * play 60 cards of <code>mtg.bot.card</code> (Forest), whose image must be
+ * in the cards directory,</li>
+ * <li><code>mtg.bot.mix</code> - weights of actions played at random, e.g.
+ * <code>move:4,drag:6,tap:4,search:1,shuffle:1,message:2</code> (default),
+ * see {@link Bot#KINDS},</li>
+ * <li><code>mtg.bot.script</code> - actions played in turn instead, e.g.
+ * <code>move,drag,drag,tap,message</code>,</li>
+ * <li><code>mtg.bot.out</code> - CSV file to which a line with results is
+ * appended,</li>
+ * <li><code>mtg.threads</code> - <code>virtual</code> runs clients' and
+ * server's I/O threads as virtual threads, see {@link Threads} and
+ * {@link ThreadModes}.</li>
+ * </ul>
+ */
+public class LoadTest {
+    private static final int PORT = Integer.getInteger("mtg.bot.port", 56790);
+    private static final String MIX = System.getProperty("mtg.bot.mix",
+            "move:4,drag:6,tap:4,search:1,shuffle:1,message:2");
+    /**
+     * Time for all bots to take their seats and get ready, in milliseconds.
+     */
+    private static final long SEATING = 60000;
+    /**
+     * Time between the start of all games and the first actions, and between
+     * the last actions and collecting results, in milliseconds.
+     */
+    private static final long SETTLE = 1000;
+
+    /**
+     * Columns of lines appended to <code>mtg.bot.out</code>.
+     */
+    static final String CSV_HEADER = "mode,connections,live_threads,"
+            + "peak_threads,heap_mb,rss_mb,actions_per_s,p50_ms,p99_ms,"
+            + "p999_ms,errors";
+
+    private LoadTest() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: bot.LoadTest tables bots [seconds] [rate]");
+            return;
+        }
+        int tables = Integer.parseInt(args[0]);
+        int bots = Integer.parseInt(args[1]);
+        int seconds = args.length > 2? Integer.parseInt(args[2]) : 30;
+        int rate = args.length > 3? Integer.parseInt(args[3]) : 10;
+
+        Debug.set(Debug.I, false);
+        Deck deck = deck();
+        if (deck == null) {
+            return;
+        }
+        int[] script = script(System.getProperty("mtg.bot.script"));
+        int[] weights = weights(MIX);
+
+        Server.host(PORT, bots);
+
+        // seat all bots
+        long time = System.currentTimeMillis();
+        ArrayList<Bot> all = new ArrayList<>(tables * bots);
+        int refused = 0;
+        for (int t = 0; t < tables; t++) {
+            for (int b = 0; b < bots; b++) {
+                try {
+                    Bot bot = new Bot("bot" + t + "x" + b, "127.0.0.1", PORT,
+                            "load" + t, deck, script, weights);
+                    bot.start();
+                    all.add(bot);
+                } catch (Exception ex) {
+                    System.out.println("Bot " + b + " at table " + t
+                            + " refused: " + ex);
+                    refused++;
+                }
+            }
+        }
+        long deadline = System.currentTimeMillis() + SEATING;
+        for (Bot bot : all) {
+            while (!bot.isStarted() && !bot.isClosed()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+        System.out.println(all.size() + " bots seated at " + tables
+                + " tables in " + (System.currentTimeMillis() - time) + " ms");
+        Thread.sleep(SETTLE);
+
+        // play
+        ScheduledExecutorService pacer = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        long period = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rate);
+        Random random = new Random();
+        long received = 0;
+        for (Bot bot : all) {
+            received -= bot.getReceived();
+            final Bot b = bot;
+            pacer.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    b.act();
+                }
+            }, (long) (random.nextDouble() * period), period,
+                    TimeUnit.NANOSECONDS);
+        }
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        pacer.shutdownNow();
+        pacer.awaitTermination(SETTLE, TimeUnit.MILLISECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(SETTLE);
+
+        // resources, while all connections are still open
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int liveThreads = threads.getThreadCount();
+        int peakThreads = threads.getPeakThreadCount();
+        System.gc();
+        long heap = ManagementFactory.getMemoryMXBean()
+                .getHeapMemoryUsage().getUsed();
+        long rss = residentMemory();
+
+        // report
+        long sent = 0;
+        long errors = 0;
+        long unanswered = 0;
+        Latencies latencies = new Latencies();
+        for (Bot bot : all) {
+            sent += bot.getSent();
+            received += bot.getReceived();
+            errors += bot.getErrors();
+            unanswered += bot.getUnanswered();
+            latencies.addAll(bot.getLatencies());
+        }
+        for (Bot bot : all) {
+            bot.close();
+        }
+        Server.closeServer();
+
+        System.out.println(String.format(Locale.ROOT,
+                "Tables: %d, bots per table: %d, duration: %.1f s,"
+                + " rate: %d actions/s per bot", tables, bots, elapsed, rate));
+        System.out.println(String.format(Locale.ROOT,
+                "Actions sent: %d (%.1f/s), frames received: %d (%.1f/s)",
+                sent, sent / elapsed, received, received / elapsed));
+        System.out.println(String.format(Locale.ROOT,
+                "Round-trip latency (ms): p50 %.3f, p90 %.3f, p99 %.3f,"
+                + " p99.9 %.3f, max %.3f (%d samples)",
+                latencies.percentile(50) / 1e6, latencies.percentile(90) / 1e6,
+                latencies.percentile(99) / 1e6,
+                latencies.percentile(99.9) / 1e6,
+                latencies.percentile(100) / 1e6, latencies.size()));
+        System.out.println(String.format(Locale.ROOT,
+                "Platform threads (%s mode): %d live, %d peak; heap after GC:"
+                + " %.1f MB; resident: %s", Threads.VIRTUAL? "virtual"
+                : "platform", liveThreads, peakThreads, heap / 1048576.0,
+                rss < 0? "unknown" : String.format(Locale.ROOT, "%.1f MB",
+                rss / 1048576.0)));
+        System.out.println("Errors: " + refused + " refused, " + errors
+                + " I/O, " + unanswered + " unanswered");
+
+        String csv = System.getProperty("mtg.bot.out");
+        if (csv != null) {
+            try (PrintWriter w = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(csv, true), "UTF-8"))) {
+                w.println(String.format(Locale.ROOT,
+                        "%s,%d,%d,%d,%.1f,%.1f,%.1f,%.3f,%.3f,%.3f,%d",
+                        Threads.VIRTUAL? "virtual" : "platform", all.size(),
+                        liveThreads, peakThreads, heap / 1048576.0,
+                        rss / 1048576.0, sent / elapsed,
+                        latencies.percentile(50) / 1e6,
+                        latencies.percentile(99) / 1e6,
+                        latencies.percentile(99.9) / 1e6,
+                        refused + errors));
+            }
+        }
+        System.exit(refused + errors > 0? 1 : 0);
+    }
+
+    /**
+     * Returns resident memory of this process in bytes, read from
+     * <code>/proc</code>, or -1 if it is not known.
+     */
+    private static long residentMemory() {
+        File status = new File("/proc/self/status");
+        if (!status.exists()) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status.toPath(),
+                    StandardCharsets.UTF_8)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""))
+                            * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {}
+        return -1;
+    }
+
+    /**
+     * Returns the deck played by bots or null if it cannot be loaded.
+     */
+    private static Deck deck() {
+        String file = System.getProperty("mtg.bot.deck");
+        if (file != null) {
+            Deck deck = Deck.load(new File(file));
+            if (deck == null) {
+                System.out.println("Deck " + file + " cannot be loaded");
+            }
+            return deck;
+        }
+        String card = System.getProperty("mtg.bot.card", "Forest");
+        if (Utilities.findPath(card) == null) {
+            System.out.println("Image of " + card + " not found, set"
+                    + " mtg.bot.deck or mtg.bot.card");
+            return null;
+        }
+        Deck deck = new Deck();
+        deck.addCard(card, 60);
+        return deck;
+    }
+
+    /**
+     * Parses a script like "move,drag,tap" into indices of kinds of actions.
+     * @return indices of {@link Bot#KINDS} or null if there is no script
+     */
+    private static int[] script(String script) {
+        if (script == null || script.trim().isEmpty()) {
+            return null;
+        }
+        String[] s = script.split(",");
+        int[] r = new int[s.length];
+        for (int i = 0; i < s.length; i++) {
+            r[i] = kind(s[i].trim());
+        }
+        return r;
+    }
+
+    /**
+     * Parses a mix like "move:4,drag:6" into weights of kinds of actions.
+     * Kinds which are not given have weight 0.
+     * @return weights in the order of {@link Bot#KINDS}
+     */
+    private static int[] weights(String mix) {
+        int[] r = new int[Bot.KINDS.length];
+        int total = 0;
+        for (String e : mix.split(",")) {
+            String[] t = e.trim().split(":");
+            int weight = t.length > 1? Integer.parseInt(t[1].trim()) : 1;
+            r[kind(t[0].trim())] += weight;
+            total += weight;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("No actions in mix " + mix);
+        }
+        return r;
+    }
+
+    private static int kind(String name) {
+        for (int i = 0; i < Bot.KINDS.length; i++) {
+            if (Bot.KINDS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown action " + name
+                + ", expected one of " + java.util.Arrays.toString(Bot.KINDS));
+    }
+}
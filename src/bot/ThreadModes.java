@@ -0,0 +1,89 @@
+package bot;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares platform and virtual threads (see {@link mtg.Threads}) under
+ * the same load. It runs {@link LoadTest} with the same arguments twice,
+ * each time in a new JVM - once with platform threads and once with virtual
+ * threads - and prints threads, memory and latency of both runs side by
+ * side.
+ * <p>
+ * Usage: <code>bot.ThreadModes tables bots [seconds] [rate]</code>, e.g.
+ * <code>100 4</code> for 400 connections. System properties starting with
+ * <code>mtg.</code> are passed to both runs. Virtual threads need Java 21,
+ * on older versions both runs use platform threads.
+ */
+public class ThreadModes {
+    private static final String[] MODES = {"platform", "virtual"};
+
+    private ThreadModes() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println(
+                    "Usage: bot.ThreadModes tables bots [seconds] [rate]");
+            return;
+        }
+        File csv = File.createTempFile("mtg-threads", ".csv");
+        try {
+            for (String mode : MODES) {
+                System.out.println("=== " + mode + " threads");
+                int exit = run(mode, csv, args);
+                if (exit != 0) {
+                    System.out.println("Load test with " + mode
+                            + " threads failed with exit code " + exit);
+                }
+            }
+            List<String> lines = Files.readAllLines(csv.toPath(),
+                    StandardCharsets.UTF_8);
+            System.out.println();
+            print(LoadTest.CSV_HEADER);
+            for (String line : lines) {
+                print(line);
+            }
+        } finally {
+            csv.delete();
+        }
+    }
+
+    /**
+     * Runs the load test in a new JVM.
+     * @return exit code of the JVM
+     */
+    private static int run(String mode, File csv, String[] args)
+            throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+                "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Djava.awt.headless=true");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("mtg.") && !name.equals("mtg.threads")
+                    && !name.equals("mtg.bot.out")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dmtg.threads=" + mode);
+        command.add("-Dmtg.bot.out=" + csv.getPath());
+        command.add(LoadTest.class.getName());
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    private static void print(String line) {
+        StringBuilder sb = new StringBuilder();
+        for (String cell : line.split(",")) {
+            sb.append(String.format(Locale.ROOT, "%14s", cell));
+        }
+        System.out.println(sb);
+    }
+}
@@ -1,6 +1,7 @@
 package deckCreator;
 
 import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.Toolkit;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
@@ -10,14 +11,12 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.SwingConstants;
 import mtg.Card;
-import mtg.Debug;
+import mtg.ImageCache;
 import mtg.Utilities;
 
 /**
@@ -32,13 +31,23 @@ public class ViewableCard extends JLabel implements Comparable<ViewableCard> {
     public ViewableCard(final File image) {
         super();
         this.image = image;
-        BufferedImage img = null;
-        try {
-            img = ImageIO.read(image);
-        } catch (IOException e) {
-            Debug.p("ViewableCard error: " + e, Debug.E);
+        BufferedImage img = ImageCache.peek(image, Card.W, Card.H, false);
+        if (img != null) {
+            this.setIcon(new ImageIcon(img));
+        } else {
+            this.setPreferredSize(new Dimension(Card.W, Card.H));
+            ImageCache.fetch(image, Card.W, Card.H, false, new Runnable() {
+                @Override
+                public void run() {
+                    BufferedImage img = ImageCache.get(image, Card.W, Card.H,
+                            false);
+                    if (img != null) {
+                        ViewableCard.this.setPreferredSize(null);
+                        ViewableCard.this.setIcon(new ImageIcon(img));
+                    }
+                }
+            });
         }
-        this.setIcon(new ImageIcon(Utilities.resize(img, Card.W, Card.H)));
         this.setHorizontalAlignment(SwingConstants.CENTER);
         this.addMouseListener(new MouseAdapter() {
             @Override
@@ -60,12 +69,28 @@ public class ViewableCard extends JLabel implements Comparable<ViewableCard> {
         });
     }
 
+    /**
+     * Paints a placeholder until card's image is loaded.
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (getIcon() == null) {
+            Graphics g2 = g.create();
+            g2.translate((getWidth() - Card.W) / 2, (getHeight() - Card.H) / 2);
+            Utilities.paintPlaceholder(g2, Card.W, Card.H);
+            g2.dispose();
+        }
+        super.paintComponent(g);
+    }
+
     private JFrame viewLarger(File file) {
         final JFrame frame = new JFrame();
         frame.setUndecorated(true);
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
-        JLabel contentPane = new JLabel(new ImageIcon(file.getPath()));
+        BufferedImage original = ImageCache.get(file);
+        JLabel contentPane = new JLabel(original == null? null
+                : new ImageIcon(original));
         contentPane.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
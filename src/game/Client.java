@@ -2,39 +2,95 @@ package game;
 
 import java.awt.Color;
 import server.flags.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import javax.swing.JFrame;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import mtg.CardStore;
 import mtg.Debug;
 import mtg.Deck;
 import mtg.InvalidDeckException;
 import mtg.Main;
+import mtg.Threads;
 import mtg.Utilities;
 import mtg.Zone;
+import server.net.CardDownload;
+import server.net.CardUpload;
+import server.net.Frame;
 
 /**
  * @author Jaroslaw Pawlak
+ *
+ * If connection to the server is lost during a game, client tries to take its
+ * seat again for {@link #RECONNECT} milliseconds, sending the token received
+ * from the server and the number of frames received so far. The server then
+ * sends only the frames which have been missed, so the game goes on without
+ * being set up again, or the whole game if they are no longer kept.
+ * <p>
+ * A client may also only watch a table (see
+ * {@link #Client(JFrame, String, int, String)}). It receives the same actions
+ * as a player receives about cards of the others and its own actions are
+ * ignored by the server.
  */
-public class Client extends Thread {
-
-    private String serverIP;
-    private int fileTransferPort;
+public class Client implements Runnable {
+    /**
+     * Time for which client tries to reconnect, in milliseconds.
+     */
+    private static final int RECONNECT = 30000;
+    private static final int RECONNECT_INTERVAL = 1000;
 
     private Game g;
 
+    /**
+     * Thread reading from the server, virtual if enabled (see
+     * {@link Threads}).
+     */
+    private volatile Thread thread;
     private Socket s;
-    private ObjectInputStream ois;
-    private ObjectOutputStream oos;
+    private DataInputStream in;
+    private DataOutputStream out;
+    /**
+     * Guards writing to {@link #out} and replacing the connection. It is not
+     * a monitor, so a virtual thread blocked on writing is not pinned.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
     private String playerName;
+    private String ip;
+    private int port;
+
+    /**
+     * Token allowing to take player's seat again, null until received.
+     */
+    private Reconnect session;
+    /**
+     * Number of frames received from the server, apart from card chunks.
+     */
+    private long received;
     
     private JFrame parentFrame;
 
+    /**
+     * Cards requested from the server, in the order of requests.
+     */
+    private ArrayDeque<CardDownload> downloads = new ArrayDeque<>();
+    /**
+     * Number of decks received and checked, sent back in <code>Ready</code>.
+     */
+    private int checked;
+
     private Client() {}
 
     /**
@@ -46,287 +102,227 @@ public class Client extends Thread {
      * @param port port the server is listening to
      * @param deck player's deck
      * @throws IOException if client could not connect to the server, could
-     * not send player's name and deck or could not receive file transfer port
+     * not send player's name and deck or could not receive the number
+     * of players
      */
     public Client(JFrame parent, String playerName, String ip, int port, Deck deck)
             throws IOException, ClassNotFoundException, InvalidDeckException {
-        super("Client");
+        this(parent, playerName, ip, port, null, deck);
+    }
+
+    /**
+     * Creates and starts client thread which joins a named table.
+     * @param table name of the table to join or null for the default table
+     * @see #Client(JFrame, String, String, int, Deck)
+     */
+    public Client(JFrame parent, String playerName, String ip, int port,
+            String table, Deck deck)
+            throws IOException, ClassNotFoundException, InvalidDeckException {
     
         this.s = new Socket(ip, port);
-        this.serverIP = ip;
+        this.s.setTcpNoDelay(true);
         this.parentFrame = parent;
+        this.ip = ip;
+        this.port = port;
         Debug.p("Client: Connected to " + ip + ":" + port);
 
-        oos = new ObjectOutputStream(s.getOutputStream());
-        oos.flush();
-        oos.writeObject(new CheckDeck(playerName, deck));
-        oos.flush();
+        out = new DataOutputStream(
+                new BufferedOutputStream(s.getOutputStream()));
+        CheckDeck cd = new CheckDeck(playerName, deck, table);
+        cd.hashes = CardStore.hashes(deck);
+        cd.sizes = CardStore.sizes(deck);
+        Frame.write(out, cd);
 
-        ois = new ObjectInputStream(s.getInputStream());
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
         
         try {
-            Object obj = ois.readObject();
+            Object obj = Frame.read(in);
             if (obj.getClass().equals(InvalidDeckException.class)) {
                 throw (InvalidDeckException) obj;
+            } else if (obj instanceof IOException) {
+                throw (IOException) obj; //e.g. no such table or table is full
             }
             this.playerName = (String) obj;
-        } catch (ClassNotFoundException | InvalidDeckException ex) {
+        } catch (IOException | InvalidDeckException ex) {
             try {
                 this.s.close();
             } catch (Exception ex1) {}
             throw ex;
         }
-        fileTransferPort = ois.readInt();
-        int players = ois.readInt();
+        int players = (Integer) Frame.read(in);
 
         g = new game.Game(players, Client.this);
         g.log("Connected to", ip + ":" + port, Color.black);
         parent.setVisible(false);
     }
 
+    /**
+     * Creates and starts client thread which watches a table.
+     * @param parent sets invisible when client successfully connects and
+     * sets visible if game GUI is closed
+     * @param ip ip of the server
+     * @param port port the server is listening to
+     * @param table name of the table to watch or null for the default table
+     * @throws IOException if client could not connect to the server or
+     * the server refused to let it watch the table
+     */
+    public Client(JFrame parent, String ip, int port, String table)
+            throws IOException, ClassNotFoundException {
+
+        this.s = new Socket(ip, port);
+        this.s.setTcpNoDelay(true);
+        this.parentFrame = parent;
+        this.ip = ip;
+        this.port = port;
+        this.playerName = ""; //no player's name is empty
+        Debug.p("Client: Connected to " + ip + ":" + port + " as a spectator");
+
+        out = new DataOutputStream(
+                new BufferedOutputStream(s.getOutputStream()));
+        Frame.write(out, new Spectate(table));
+
+        in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+
+        Object obj = Frame.read(in);
+        if (obj instanceof IOException) {
+            try {
+                this.s.close();
+            } catch (Exception ex1) {}
+            throw (IOException) obj; //e.g. no such table
+        }
+        int players = (Integer) obj;
+
+        g = new game.Game(players, Client.this);
+        g.log("Watching", ip + ":" + port
+                + (table == null? "" : "/" + table), Color.black);
+        parent.setVisible(false);
+    }
+
+    /**
+     * Starts the thread reading actions from the server.
+     */
+    void start() {
+        thread = Threads.start("Client", this);
+    }
+
     @Override
     public void run() {
         Action object = null;
-        while (!isInterrupted()) {
+        while (!Thread.currentThread().isInterrupted()) {
             object = null;
             try {
-                object = (Action) ois.readObject();
+                object = (Action) Frame.read(in);
+                if (!object.getClass().equals(CardChunk.class)) {
+                    received++;
+                }
                 Debug.p("Client: Client received: " + object);
 
-                // MESSAGE
-                if (object.getClass().equals(Message.class)) {
-                    Message m = (Message) object;
-                    g.log(g.getPlayerName(m.requestor) + ":", m.msg,
-                            Logger.C_MESSAGE);
-                    
-                // DRAG
-                } else if (object.getClass().equals(DragCard.class)) {
-                    DragCard dc = (DragCard) object;
-                    g.log(dc.ID, true, g.getPlayerName(dc.requestor)
-                            + " drags " + Game.getCardName(dc.ID), game.Logger.C_DRAG);
-                    g.cardDragOnTable(dc.ID, dc.newxpos, dc.newypos);
-                    
-                // TAP CARD
-                } else if (object.getClass().equals(TapCard.class)) {
-                    TapCard tc = (TapCard) object;
-                    String owner;
-                    if (tc.requestor == tc.ID.charAt(0) - 'A') {
-                        owner = "his";
-                    } else {
-                        owner = g.getPlayerName(tc.ID.charAt(0) - 'A') + "'s";
-                    }
-                    g.log(tc.ID, true, g.getPlayerName(tc.requestor) + " "
-                            + (tc.tapped? "taps" : "untaps")
-                            + " " + owner + " "
-                            + Game.getCardName(tc.ID), game.Logger.C_TAP);
-                    g.cardTap(tc.ID, tc.tapped);
-
-                // MOVE CARD
-                } else if (object.getClass().equals(MoveCard.class)) {
-                    handleMoveCard((MoveCard) object);
-
-                // CHANGE HP OR POISON COUNTERS
-                } else if (object.getClass().equals(Player.class)) {
-                    Player p = (Player) object;
-                    if (p.poisonOrHealth == Player.HEALTH) {
-                        g.log("", g.getPlayerName(p.requestor)
-                                + " changes " + g.getPlayerName(p.target)
-                                + "'s health from "
-                                + g.playerSetHealth(p.target, p.newValue)
-                                + " to " + p.newValue, game.Logger.C_CHANGE_HP);
-                    } else if (p.poisonOrHealth == Player.POISON) {
-                        g.log("", g.getPlayerName(p.requestor)
-                                + " changes " + g.getPlayerName(p.target)
-                                + "'s poison counters from "
-                                + g.playerSetPoison(p.target, p.newValue)
-                                + " to " + p.newValue, game.Logger.C_CHANGE_HP);
-                    }
+                // RECONNECT - token to take the seat again
+                if (object.getClass().equals(Reconnect.class)) {
+                    session = (Reconnect) object;
 
-                // UNTAP ALL
-                } else if (object.getClass().equals(UntapAll.class)) {
-                    g.log("", g.getPlayerName(object.requestor)
-                            + " untaps all cards he owns", Logger.C_TAP);
-                    g.cardUntapAll(object.requestor);
-
-                // SEARCH
-                } else if (object.getClass().equals(Search.class)) {
-                    Search se = (Search) object;
-                    switch (se.zone) {
-                        case LIBRARY:
-                            if (se.amount == -1) {
-                                g.log("", g.getPlayerName(se.requestor)
-                                        + " searches his library",
-                                        game.Logger.C_SEARCH_LIBRARY);
-                            } else {
-                                g.log("", g.getPlayerName(se.requestor)
-                                        + " looks at the " + se.amount
-                                        + " top cards of his library",
-                                        game.Logger.C_SEARCH_LIBRARY);
-                            }
-                            if (se.cardsIDs != null) {
-                                CardViewer.createViewerInFrame(se.cardsIDs,
-                                        Zone.LIBRARY, g.getSize(),
-                                        "Your library");
-                            }
-                            break;
-                        case GRAVEYARD:
-                            g.log("", g.getPlayerName(se.requestor)
-                                    + " searches "
-                                    + g.getPlayerName(se.zoneOwner)
-                                    + "'s graveyard", game.Logger.C_SEARCH_GRAVEYARD);
-                            if (se.cardsIDs != null) {
-                                CardViewer.createViewerInFrame(se.cardsIDs,
-                                        Zone.GRAVEYARD, g.getSize(),
-                                        g.getPlayerName(se.zoneOwner)
-                                        + "'s graveyard ("
-                                        + se.cardsIDs.length + " cards)");
-                            }
-                            break;
-                        case EXILED:
-                            g.log("", g.getPlayerName(se.requestor)
-                                    + " searches "
-                                    + g.getPlayerName(se.zoneOwner)
-                                    + "'s exiled zone", game.Logger.C_SEARCH_EXILED);
-                            if (se.cardsIDs != null) {
-                            CardViewer.createViewerInFrame(se.cardsIDs,
-                                    Zone.EXILED, g.getSize(),
-                                    g.getPlayerName(se.zoneOwner)
-                                    + "'s exiled zone (" + se.cardsIDs.length
-                                    + " cards)");
-                            }
-                            break;
-                    }
+                // BATCH - many actions applied at once
+                } else if (object.getClass().equals(Batch.class)) {
+                    applyLater(((Batch) object).actions);
 
-                // SHUFFLE LIBRARY
-                } else if (object.getClass().equals(Shuffle.class)) {
-                    Shuffle sh = (Shuffle) object;
-                    g.log("", g.getPlayerName(sh.requestor) + " shuffles his library",
-                            game.Logger.C_SHUFFLE);
-
-                // REVEAL
-                } else if (object.getClass().equals(Reveal.class)) {
-                    Reveal r = (Reveal) object;
-                    if (r.source == Zone.TOP_LIBRARY) {
-                        g.log(r.cardID, false, g.getPlayerName(r.requestor)
-                                + " reveals top card of his library: "
-                                + Game.getCardName(r.cardID), game.Logger.C_REVEAL);
-                    }
-                    
-                // CREATE TOKEN
-                } else if (object.getClass().equals(CreateToken.class)) {
-                    CreateToken ct = (CreateToken) object;
-                    g.log(null, g.getPlayerName(ct.requestor) + " creates "
-                            + "a token " + ct.name, Logger.C_MOVE_PLAY);
-                    g.createToken(ct);
-                    
-                // RANDOM VALUE
-                } else if (object.getClass().equals(RandomValue.class)) {
-                    RandomValue rv = (RandomValue) object;
-                    String text = g.getPlayerName(rv.requestor);
-                    if (rv.max == RandomValue.COIN) {
-                        text += " tosses a coin and gets: ";
-                        if (rv.value == 0) {
-                            text += "head";
-                        } else if (rv.value == 1) {
-                            text += "tail";
-                        }
-                    } else if (rv.max == RandomValue.DIE) {
-                        text += " rolls a die and gets: ";
-                        text += (rv.value + 1);
-                    } else {
-                        text += " rolls a " + rv.max + "-sided die and gets: ";
-                        text += (rv.value + 1);
-                    }
-                    g.log(null, true, text, Logger.C_RANDOM);
-                    
-                // RESTART
-                } else if (object.getClass().equals(Restart.class)) {
-                    Restart r = (Restart) object;
-                    g.log(null, g.getPlayerName(r.requestor) + " starts a game "
-                            + "again", Logger.C_RESTART);
-                    g.restart(r.requestor, r.deckSize);
-                    if (r.IDs != null) {
-                        g.cardDiscardEntireHand();
-                        for (int i = 0; i < r.IDs.length; i++) {
-                            g.cardAddToHand(r.IDs[i]);
-                        }
-                    }
-                    
-                // RANDOM CARD
-                } else if (object.getClass().equals(RandomCard.class)) {
-                    RandomCard rc = (RandomCard) object;
-                    g.log(rc.cardID, false, g.getPlayerName(rc.requestor)
-                            + " choses a card at random from his hand: "
-                            + Game.getCardName(rc.cardID), Logger.C_REVEAL);
-                    
                 // REQUEST CARD - server requests client to send card's image
                 } else if (object.getClass().equals(RequestCard.class)) {
                     RequestCard t = (RequestCard) object;
-                    try (Socket socket = new Socket(serverIP, fileTransferPort)) {
-                        Utilities.sendFile(new File(Utilities.findPath(t.name)), socket);
+                    CardUpload upload = new CardUpload(t.names, t.hashes,
+                            t.offsets);
+                    CardChunk chunk;
+                    while ((chunk = upload.next()) != null) {
+                        send(chunk);
+                    }
+
+                // CARD CHUNK - a piece of card's image requested
+                } else if (object.getClass().equals(CardChunk.class)) {
+                    if (downloads.peek().accept((CardChunk) object)) {
+                        downloads.poll();
+                        if (downloads.isEmpty()) {
+                            send(new Ready(checked));
+                        }
                     }
 
                 // CHECK DECK - server requests client to check if
                 //              it has all cards in deck sent
                 } else if (object.getClass().equals(CheckDeck.class)) {
-                    CheckDeck cd = ((CheckDeck) object);
-                    Deck d = cd.deck;
-
-                    g.addPlayer(cd.owner);
-
-                    for (int j = 0; j < d.getArraySize(); j++) {
-                        if (Utilities.findPath(d.getArrayNames(j)) == null) {
-                            // send card request
-                            oos.writeObject(new RequestCard(d.getArrayNames(j)));
-                            oos.flush();
-                            try (Socket t = new Socket(serverIP, fileTransferPort)) {
-                                Utilities.receiveFile(new File(Main.CARDS_DL,
-                                        d.getArrayNames(j) + ".jpg"), t);
-                            }
+                    final CheckDeck cd = ((CheckDeck) object);
+                    final Deck d = cd.deck;
+                    checked++;
+
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            g.addPlayer(cd.owner);
+                            g.setPlayerLibrarySize(cd.owner, d.getDeckSize());
                         }
+                    });
+
+                    int[] missing = CardStore.missing(d, cd.hashes);
+                    if (missing.length > 0) {
+                        // request all missing cards at once
+                        RequestCard rc = new RequestCard(d, cd.hashes, missing);
+                        CardDownload download
+                                = new CardDownload(rc.names, rc.hashes);
+                        rc.offsets = download.getOffsets();
+                        downloads.add(download);
+                        send(rc);
+                    } else if (downloads.isEmpty()) {
+                        send(new Ready(checked));
                     }
-                    oos.writeObject(new Ready());
-                    oos.flush();
                     // save deck
                     d.save(new File(Main.DECKS_DL, Utilities
                             .getCurrentTimeForFile()
                             + " " + ((CheckDeck) object).owner + "'s "
                             + d.getName() + ".txt"));
-
-                    g.setPlayerLibrarySize(cd.owner, d.getDeckSize());
                     
                 // DISCONNECT
                 } else if (object.getClass().equals(Disconnect.class)) {
                     Disconnect d = (Disconnect) object;
                     if (d.requestor == -1) {
-                        JOptionPane.showMessageDialog(parentFrame,
-                                "Server has been closed", Main.TITLE_SHORT,
-                                JOptionPane.ERROR_MESSAGE);
                         s.close();
-                        g.dispose();
-                        parentFrame.setVisible(true);
+                        leave("Server has been closed");
                         return;
                     }
-                    String text = d.intentional? " has left the game" :
-                            " has lost connection";
-                    g.log(null, false, g.getPlayerName(d.requestor) + text,
-                            game.Logger.C_DISCONNECT);
-                    g.kill(d.requestor);
+                    applyLater(d);
 
-                // CARDS LIST
+                // CARDS LIST - paths of cards are resolved here, so that
+                //              the event dispatch thread does not wait
                 } else if (object.getClass().equals(CardsList.class)) {
-                    g.setCardsList(((CardsList) object).list);
+                    final TreeMap<String, String> list
+                            = ((CardsList) object).list;
+                    if (list != null) {
+                        for (String name : new HashSet<>(list.values())) {
+                            Utilities.findPath(name);
+                        }
+                    }
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            g.setCardsList(list);
+                        }
+                    });
+
+                // GAME ACTIONS
+                } else {
+                    applyLater(object);
                 }
             } catch (Exception ex) {
+                if (object == null && ex instanceof IOException
+                        && !Thread.currentThread().isInterrupted()
+                        && session != null) {
+                    if (reconnect()) {
+                        continue;
+                    }
+                    leave("Connection to the server has been lost");
+                    return;
+                }
                 switch (ex.getLocalizedMessage() != null?
                         ex.getLocalizedMessage() : "") {
                     case "Connection reset":
                         Debug.p("Client: Server closed");
-                        JOptionPane.showMessageDialog(parentFrame,
-                                "Server has been closed unexpectedly", Main.TITLE_SHORT,
-                                JOptionPane.ERROR_MESSAGE);
-                        g.dispose();
-                        parentFrame.setVisible(true);
+                        leave("Server has been closed unexpectedly");
                     case "socket closed":
                         //it happens when client has been closed
                         return;
@@ -340,6 +336,251 @@ public class Client extends Thread {
         }
     }
 
+    /**
+     * Applies an action which changes the game to the table.
+     * @param object action received
+     */
+    private void apply(Action object) {
+        // MESSAGE
+        if (object.getClass().equals(Message.class)) {
+            Message m = (Message) object;
+            g.log(g.getPlayerName(m.requestor) + ":", m.msg,
+                    Logger.C_MESSAGE);
+            
+        // DRAG
+        } else if (object.getClass().equals(DragCard.class)) {
+            DragCard dc = (DragCard) object;
+            if (!dc.inProgress) {
+                g.log(dc.ID, true, g.getPlayerName(dc.requestor)
+                        + " drags " + Game.getCardName(dc.ID),
+                        game.Logger.C_DRAG);
+            }
+            g.cardDragOnTable(dc.ID, dc.newxpos, dc.newypos);
+            
+        // TAP CARD
+        } else if (object.getClass().equals(TapCard.class)) {
+            TapCard tc = (TapCard) object;
+            String owner;
+            if (tc.requestor == tc.ID.charAt(0) - 'A') {
+                owner = "his";
+            } else {
+                owner = g.getPlayerName(tc.ID.charAt(0) - 'A') + "'s";
+            }
+            g.log(tc.ID, true, g.getPlayerName(tc.requestor) + " "
+                    + (tc.tapped? "taps" : "untaps")
+                    + " " + owner + " "
+                    + Game.getCardName(tc.ID), game.Logger.C_TAP);
+            g.cardTap(tc.ID, tc.tapped);
+
+        // MOVE CARD
+        } else if (object.getClass().equals(MoveCard.class)) {
+            handleMoveCard((MoveCard) object);
+
+        // CHANGE HP OR POISON COUNTERS
+        } else if (object.getClass().equals(Player.class)) {
+            Player p = (Player) object;
+            if (p.poisonOrHealth == Player.HEALTH) {
+                g.log("", g.getPlayerName(p.requestor)
+                        + " changes " + g.getPlayerName(p.target)
+                        + "'s health from "
+                        + g.playerSetHealth(p.target, p.newValue)
+                        + " to " + p.newValue, game.Logger.C_CHANGE_HP);
+            } else if (p.poisonOrHealth == Player.POISON) {
+                g.log("", g.getPlayerName(p.requestor)
+                        + " changes " + g.getPlayerName(p.target)
+                        + "'s poison counters from "
+                        + g.playerSetPoison(p.target, p.newValue)
+                        + " to " + p.newValue, game.Logger.C_CHANGE_HP);
+            }
+
+        // UNTAP ALL
+        } else if (object.getClass().equals(UntapAll.class)) {
+            g.log("", g.getPlayerName(object.requestor)
+                    + " untaps all cards he owns", Logger.C_TAP);
+            g.cardUntapAll(object.requestor);
+
+        // SEARCH
+        } else if (object.getClass().equals(Search.class)) {
+            Search se = (Search) object;
+            switch (se.zone) {
+                case LIBRARY:
+                    if (se.amount == -1) {
+                        g.log("", g.getPlayerName(se.requestor)
+                                + " searches his library",
+                                game.Logger.C_SEARCH_LIBRARY);
+                    } else {
+                        g.log("", g.getPlayerName(se.requestor)
+                                + " looks at the " + se.amount
+                                + " top cards of his library",
+                                game.Logger.C_SEARCH_LIBRARY);
+                    }
+                    if (se.cardsIDs != null) {
+                        CardViewer.createViewerInFrame(se.cardsIDs,
+                                Zone.LIBRARY, g.getSize(),
+                                "Your library");
+                    }
+                    break;
+                case GRAVEYARD:
+                    g.log("", g.getPlayerName(se.requestor)
+                            + " searches "
+                            + g.getPlayerName(se.zoneOwner)
+                            + "'s graveyard", game.Logger.C_SEARCH_GRAVEYARD);
+                    if (se.cardsIDs != null) {
+                        CardViewer.createViewerInFrame(se.cardsIDs,
+                                Zone.GRAVEYARD, g.getSize(),
+                                g.getPlayerName(se.zoneOwner)
+                                + "'s graveyard ("
+                                + se.cardsIDs.length + " cards)");
+                    }
+                    break;
+                case EXILED:
+                    g.log("", g.getPlayerName(se.requestor)
+                            + " searches "
+                            + g.getPlayerName(se.zoneOwner)
+                            + "'s exiled zone", game.Logger.C_SEARCH_EXILED);
+                    if (se.cardsIDs != null) {
+                    CardViewer.createViewerInFrame(se.cardsIDs,
+                            Zone.EXILED, g.getSize(),
+                            g.getPlayerName(se.zoneOwner)
+                            + "'s exiled zone (" + se.cardsIDs.length
+                            + " cards)");
+                    }
+                    break;
+            }
+
+        // SHUFFLE LIBRARY
+        } else if (object.getClass().equals(Shuffle.class)) {
+            Shuffle sh = (Shuffle) object;
+            g.log("", g.getPlayerName(sh.requestor) + " shuffles his library",
+                    game.Logger.C_SHUFFLE);
+
+        // REVEAL
+        } else if (object.getClass().equals(Reveal.class)) {
+            Reveal r = (Reveal) object;
+            if (r.source == Zone.TOP_LIBRARY) {
+                g.log(r.cardID, false, g.getPlayerName(r.requestor)
+                        + " reveals top card of his library: "
+                        + Game.getCardName(r.cardID), game.Logger.C_REVEAL);
+            }
+            
+        // CREATE TOKEN
+        } else if (object.getClass().equals(CreateToken.class)) {
+            CreateToken ct = (CreateToken) object;
+            g.log(null, g.getPlayerName(ct.requestor) + " creates "
+                    + "a token " + ct.name, Logger.C_MOVE_PLAY);
+            g.createToken(ct);
+            
+        // RANDOM VALUE
+        } else if (object.getClass().equals(RandomValue.class)) {
+            RandomValue rv = (RandomValue) object;
+            String text = g.getPlayerName(rv.requestor);
+            if (rv.max == RandomValue.COIN) {
+                text += " tosses a coin and gets: ";
+                if (rv.value == 0) {
+                    text += "head";
+                } else if (rv.value == 1) {
+                    text += "tail";
+                }
+            } else if (rv.max == RandomValue.DIE) {
+                text += " rolls a die and gets: ";
+                text += (rv.value + 1);
+            } else {
+                text += " rolls a " + rv.max + "-sided die and gets: ";
+                text += (rv.value + 1);
+            }
+            g.log(null, true, text, Logger.C_RANDOM);
+            
+        // RESTART
+        } else if (object.getClass().equals(Restart.class)) {
+            Restart r = (Restart) object;
+            g.log(null, g.getPlayerName(r.requestor) + " starts a game "
+                    + "again", Logger.C_RESTART);
+            g.restart(r.requestor, r.deckSize);
+            if (r.IDs != null) {
+                g.cardDiscardEntireHand();
+                for (int i = 0; i < r.IDs.length; i++) {
+                    g.cardAddToHand(r.IDs[i]);
+                }
+            }
+            
+        // GAME STATE - replaces actions which have been missed
+        } else if (object.getClass().equals(GameState.class)) {
+            g.log(null, false, "Too many actions missed, the whole game "
+                    + "has been received again", Logger.C_DISCONNECT);
+            g.setState((GameState) object);
+
+        // RANDOM CARD
+        } else if (object.getClass().equals(RandomCard.class)) {
+            RandomCard rc = (RandomCard) object;
+            g.log(rc.cardID, false, g.getPlayerName(rc.requestor)
+                    + " choses a card at random from his hand: "
+                    + Game.getCardName(rc.cardID), Logger.C_REVEAL);
+
+        // DISCONNECT - another player has left
+        } else if (object.getClass().equals(Disconnect.class)) {
+            Disconnect d = (Disconnect) object;
+            String text = d.intentional? " has left the game" :
+                    " has lost connection";
+            g.log(null, false, g.getPlayerName(d.requestor) + text,
+                    game.Logger.C_DISCONNECT);
+            g.kill(d.requestor);
+        }
+    }
+
+    /**
+     * Applies actions on the event dispatch thread in a single pass, so
+     * the table is laid out and repainted once after all of them instead of
+     * after each card. Does not wait for them, so this thread keeps reading
+     * while they are applied, in the order they have been received.
+     * @param actions actions to be applied in order
+     */
+    private void applyLater(final Action... actions) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                for (Action a : actions) {
+                    try {
+                        apply(a);
+                    } catch (RuntimeException ex) {
+                        Debug.p("Client: Error while dealing with " + a + ": "
+                                + ex, Debug.E);
+                    }
+                }
+                g.repaint();
+            }
+        });
+    }
+
+    /**
+     * Shows a message on the event dispatch thread, closes the game window
+     * and shows the main window again.
+     * @param message message to be shown
+     */
+    private void leave(final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(parentFrame, message,
+                        Main.TITLE_SHORT, JOptionPane.ERROR_MESSAGE);
+                g.dispose();
+                parentFrame.setVisible(true);
+            }
+        });
+    }
+
+    /**
+     * Logs a message about the connection on the event dispatch thread.
+     * @param text message to be logged
+     */
+    private void logLater(final String text) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                g.log(null, false, text, Logger.C_DISCONNECT);
+            }
+        });
+    }
+
     private void handleMoveCard(MoveCard mc) {
         String owner;
         if (mc.cardID == null) {
@@ -630,13 +871,79 @@ public class Client extends Thread {
         }
     }
 
+    /**
+     * Tries to take player's seat again after connection has been lost.
+     * Card downloads interrupted are requested again.
+     * @return true if client has reconnected
+     */
+    private boolean reconnect() {
+        Debug.p("Client: Connection lost, reconnecting");
+        logLater("Connection lost, reconnecting...");
+        long deadline = System.currentTimeMillis() + RECONNECT;
+        while (System.currentTimeMillis() < deadline
+                && !Thread.currentThread().isInterrupted()) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(ip, port),
+                        RECONNECT_INTERVAL * 5);
+                socket.setTcpNoDelay(true);
+                DataOutputStream o = new DataOutputStream(
+                        new BufferedOutputStream(socket.getOutputStream()));
+                Frame.write(o, new Reconnect(session.requestor, session.table,
+                        session.token, received));
+                DataInputStream i = new DataInputStream(
+                        new BufferedInputStream(socket.getInputStream()));
+                Object answer = Frame.read(i);
+                if (answer instanceof IOException) {
+                    Debug.p("Client: Server refused to reconnect: " + answer,
+                            Debug.W);
+                    socket.close();
+                    return false;
+                }
+                lock.lock();
+                try {
+                    try {
+                        s.close();
+                    } catch (IOException ex) {}
+                    s = socket;
+                    in = i;
+                    out = o;
+                } finally {
+                    lock.unlock();
+                }
+                ArrayDeque<CardDownload> remaining = new ArrayDeque<>();
+                for (CardDownload download : downloads) {
+                    remaining.add(download.remaining());
+                }
+                downloads = remaining;
+                for (CardDownload download : downloads) {
+                    send(download.request());
+                }
+                logLater("Reconnected");
+                return true;
+            } catch (IOException | ClassCastException ex) {
+                try {
+                    socket.close();
+                } catch (IOException ex1) {}
+                try {
+                    Thread.sleep(RECONNECT_INTERVAL);
+                } catch (InterruptedException ex1) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
     public void send(Action object) {
+        lock.lock();
         try {
-            oos.writeObject(object);
-            oos.flush();
+            Frame.write(out, object);
         } catch (IOException ex) {
             Debug.p("Client: Error while sending " + object + " to server: "
                     + ex, Debug.E);
+        } finally {
+            lock.unlock();
         }
     }
     
@@ -645,7 +952,10 @@ public class Client extends Thread {
      * and restores main menu frame
      */
     void closeClient() {
-        this.interrupt();
+        Thread t = thread;
+        if (t != null) {
+            t.interrupt();
+        }
         try {
             send(new Disconnect(true));
             s.close();
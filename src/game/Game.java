@@ -29,6 +29,7 @@ import mtg.Main;
 import mtg.Utilities;
 import mtg.Zone;
 import server.flags.CreateToken;
+import server.flags.GameState;
 import server.flags.Message;
 import server.flags.RandomValue;
 import server.flags.RandomCard;
@@ -394,6 +395,44 @@ class Game extends JFrame {
         table.removeCards(player);
     }
 
+    /**
+     * Replaces the whole game with a state received from the server, which
+     * is sent instead of actions which have been missed.
+     * @param s state of the game
+     */
+    void setState(GameState s) {
+        for (int p = 0; p < playersInfo.length && p < s.health.length; p++) {
+            if (s.left[p] && !playersInfo[p].nameLabel.getText()
+                    .startsWith("(dead) ")) {
+                kill(p);
+            }
+            playersInfo[p].handSizeValue.setText("" + s.handSizes[p]);
+            playersInfo[p].healthPointsValue.setText("" + s.health[p]);
+            playersInfo[p].librarySizeValue.setText("" + s.librarySizes[p]);
+            playersInfo[p].poisonCountersValue.setText("" + s.poison[p]);
+            table.removeCards(p);
+        }
+        if (s.hand != null) {
+            cardDiscardEntireHand();
+            for (String e : s.hand) {
+                cardAddToHand(e);
+            }
+        }
+        for (int i = 0; i < s.table.length; i++) {
+            if (s.tokens[i] != null) {
+                createToken(s.tokens[i]);
+            } else {
+                cardAddToTable(s.table[i]);
+            }
+            if (s.x[i] != -1) {
+                cardDragOnTable(s.table[i], s.x[i], s.y[i]);
+            }
+            if (s.tapped[i]) {
+                cardTap(s.table[i], true);
+            }
+        }
+    }
+
 /////////////////////////// LOGGING AND INFORMATION ////////////////////////////
 
     void log(String first, String second, Color color) {
@@ -5,7 +5,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import javax.swing.JComponent;
 import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
 import mtg.Zone;
@@ -15,26 +14,66 @@ import server.flags.TapCard;
 
 /**
  * @author Jaroslaw Pawlak
+ *
+ * Mouse listener of the whole {@link TableCanvas}. Events are passed to
+ * the topmost card under the pointer, events over empty space of the table
+ * to {@link TableDragListener}, which scrolls the table.
  */
 public class OnTableMouseAdapter extends MouseAdapter {
+    /**
+     * Minimal interval between positions of a dragged card sent to the server
+     * in milliseconds. Final position is always sent when a card is dropped.
+     */
+    private static final long DRAG_INTERVAL = 50;
 
+    private final TableCanvas canvas;
+    private final TableDragListener empty = new TableDragListener();
+    /**
+     * Card under the pointer, null if there is none.
+     */
+    private TCard hovered;
+    /**
+     * True if the table is being dragged rather than a card.
+     */
+    private boolean dragging;
     private TCard tempCard;
+    private long lastDragSent;
     private int tempX;
     private int tempY;
     private Point cardPosition;
 
+    OnTableMouseAdapter(TableCanvas canvas) {
+        this.canvas = canvas;
+    }
+
+    /**
+     * Brings the card the pointer has entered to the top.
+     */
+    @Override
+    public void mouseMoved(MouseEvent e) {
+        TCard card = canvas.cardAt(e.getX(), e.getY());
+        if (card != hovered) {
+            hovered = card;
+            if (card != null) {
+                canvas.raise(card);
+            }
+        }
+    }
+
     @Override
-    public void mouseEntered(MouseEvent e) {
-        TCard source = (TCard) e.getSource();
-        JComponent table = (JComponent) source.getParent();
-        table.remove(source);
-        table.add(source, 0);
-        source.repaint();
+    public void mouseExited(MouseEvent e) {
+        hovered = null;
     }
 
     @Override
     public void mousePressed(MouseEvent e) {
-        final TCard source = (TCard) e.getSource();
+        final TCard source = canvas.cardAt(e.getX(), e.getY());
+        dragging = source == null;
+        if (dragging) {
+            tempCard = null;
+            empty.mousePressed(e);
+            return;
+        }
         if (e.getButton() == MouseEvent.BUTTON1) {
             tempCard = source;
             tempX = e.getX();
@@ -93,7 +132,7 @@ public class OnTableMouseAdapter extends MouseAdapter {
                 popupMenu.add(moveToLibrary);
                 popupMenu.add(exile);
 
-                popupMenu.show(source, e.getX(), e.getY());
+                popupMenu.show(canvas, e.getX(), e.getY());
             }
         }
     }
@@ -103,7 +142,8 @@ public class OnTableMouseAdapter extends MouseAdapter {
         if (tempCard == null) {
             return;
         }
-        TCard source = ((TCard) e.getSource());
+        TCard source = tempCard;
+        tempCard = null;
         Point currentPos = source.getCardPosition();
         if (cardPosition.x != currentPos.x || cardPosition.y != currentPos.y) {
             Game.client.send(new DragCard(source.getID(),
@@ -114,11 +154,15 @@ public class OnTableMouseAdapter extends MouseAdapter {
 
     @Override
     public void mouseDragged(MouseEvent e) {
+        if (dragging) {
+            empty.mouseDragged(e);
+            return;
+        }
         if (tempCard == null) {
             return;
         }
-        int newx = tempCard.getXpos() - tempX + e.getX();
-        int newy = tempCard.getYpos() - tempY + e.getY();
+        int newx = cardPosition.x + (e.getX() - tempX) * 100 / Table.zoom;
+        int newy = cardPosition.y + (e.getY() - tempY) * 100 / Table.zoom;
         int margin = TCard.H() / 2;
         if (newx < margin) {
             newx = margin;
@@ -131,6 +175,12 @@ public class OnTableMouseAdapter extends MouseAdapter {
             newy = Table.SIZE.height - margin;
         }
         tempCard.setCardPosition(newx, newy);
+
+        long now = System.currentTimeMillis();
+        if (now - lastDragSent >= DRAG_INTERVAL) {
+            lastDragSent = now;
+            Game.client.send(new DragCard(tempCard.getID(), newx, newy, true));
+        }
     }
     
 }
@@ -1,35 +1,69 @@
 package game;
 
+import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
-import javax.swing.ImageIcon;
-import javax.swing.JLabel;
 import mtg.Card;
 import mtg.Debug;
+import mtg.ImageCache;
 import mtg.Utilities;
 
 /**
  * @author Jaroslaw Pawlak
  * 
- * Table card.
+ * Table card. It is not a component of its own - it is painted, together
+ * with all other cards, by the {@link TableCanvas} it has been added to.
+ * <p>
+ * While the table is being zoomed, a card is painted from an image prepared
+ * at one of a few zoom {@link #LEVELS}, scaled while painting, so zooming
+ * does not create any images unless a card crosses a level. When zooming
+ * stops, {@link #sharpen()} replaces it with an image of the exact size.
  */
-public class TCard extends JLabel {
+public class TCard {
+    /**
+     * Zoom levels at which images are prepared, in percent. A card is
+     * painted from the image of the lowest level not lower than the zoom.
+     */
+    private static final int[] LEVELS = {25, 50, 100, 200};
+
     private File image;
     protected boolean tapped;
     protected int xpos;
     protected int ypos;
     private String ID;
+    /**
+     * Token's own image in full size and the same image rotated, created
+     * when the token is tapped for the first time.
+     */
     private BufferedImage bi;
+    private BufferedImage rotated;
+    /**
+     * Image of the current level, its level and rotation.
+     */
+    private BufferedImage shown;
+    private int shownLevel;
+    private boolean shownTapped;
+    /**
+     * Image of the card's exact size, null if not prepared yet.
+     */
+    private BufferedImage exact;
+    /**
+     * Bounds of the card on the canvas, at the current zoom.
+     */
+    private final Rectangle bounds = new Rectangle();
+    private TableCanvas canvas;
+    /**
+     * Stacking order on the canvas, cards with higher order are on the top.
+     */
+    long order;
 
     private TCard() {}
 
     public TCard(String path, String ID) {
-        super();
-
         if (path != null) {
             this.image = new File(path);
         }
@@ -37,28 +71,178 @@ public class TCard extends JLabel {
         this.ID = ID;
 
         if (path != null) {
-            this.setIcon(new ImageIcon(Utilities.resize(bi = this.load(), W(), H())));
+            sharpen();
         }
     }
     
     protected void setBufferedImage(BufferedImage bi) {
         this.bi = bi;
-        this.setIcon(new ImageIcon(bi));
+        this.rotated = null;
+        this.shown = null;
+        this.exact = null;
+        sharpen();
     }
     
-        /**
-     * Returns BufferedImage loaded from card's <code>image</code>
-     * @return BufferedImage loaded from card's <code>image</code>
-     */
-    private BufferedImage load() {
-        BufferedImage img = null;
-        try {
-            img = ImageIO.read(image);
-        } catch (IOException e) {
-            Debug.p("Could not load card's image from " + image + ": " + e,
-                    Debug.CE);
+    /**
+     * Chooses the image of the card for the current zoom, rotated if
+     * the card is tapped. Images of cards are shared by all copies of a card
+     * (see {@link ImageCache}) and loaded in the background, only tokens
+     * have their own.
+     */
+    private void showImage() {
+        int level = LEVELS[LEVELS.length - 1];
+        for (int i = LEVELS.length - 1; i >= 0 && LEVELS[i] >= Table.zoom; i--) {
+            level = LEVELS[i];
+        }
+        if (exact != null && (exact.getWidth() != (tapped? H() : W())
+                || exact.getHeight() != (tapped? W() : H()))) {
+            exact = null;
+        }
+        if (shown != null && level == shownLevel && tapped == shownTapped) {
+            return;
+        }
+        shownLevel = level;
+        shownTapped = tapped;
+        if (image != null) {
+            final int l = level;
+            final int w = Card.W * l / 100;
+            final int h = Card.H * l / 100;
+            final boolean t = tapped;
+            shown = ImageCache.peek(image, w, h, t);
+            if (shown == null) {
+                ImageCache.fetch(image, w, h, t, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (shownLevel == l && shownTapped == t) {
+                            shown = ImageCache.get(image, w, h, t);
+                            repaint();
+                        }
+                    }
+                });
+            }
+        } else if (bi != null) {
+            if (tapped && rotated == null) {
+                rotated = Utilities.rotate(bi, bi.getWidth(), bi.getHeight());
+            }
+            shown = tapped? rotated : bi;
+        }
+        repaint();
+    }
+
+    /**
+     * Prepares an image of the card's exact size, so it is painted without
+     * scaling. Until it is loaded, the card is painted from the image of
+     * the current level or as a placeholder.
+     */
+    public void sharpen() {
+        showImage();
+        if (exact != null) {
+            return;
+        }
+        if (image != null) {
+            final int w = W();
+            final int h = H();
+            final boolean t = tapped;
+            exact = ImageCache.peek(image, w, h, t);
+            if (exact == null) {
+                ImageCache.fetch(image, w, h, t, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (exact == null && W() == w && H() == h
+                                && tapped == t) {
+                            exact = ImageCache.get(image, w, h, t);
+                            repaint();
+                        }
+                    }
+                });
+            }
+        } else if (bi != null) {
+            exact = tapped? Utilities.rotate(bi, W(), H())
+                    : Utilities.resize(bi, W(), H());
+        }
+        repaint();
+    }
+
+    /**
+     * Paints the image of the exact size if there is one, otherwise
+     * the image of the current level scaled to the card's size or
+     * a placeholder if no image is loaded yet.
+     * @param g graphics of the canvas
+     */
+    void paint(Graphics g) {
+        if (exact != null) {
+            g.drawImage(exact, bounds.x, bounds.y, null);
+        } else if (shown != null) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2.drawImage(shown, bounds.x, bounds.y, bounds.width,
+                    bounds.height, null);
+            g2.dispose();
+        } else {
+            Graphics g2 = g.create();
+            g2.translate(bounds.x, bounds.y);
+            Utilities.paintPlaceholder(g2, bounds.width, bounds.height);
+            g2.dispose();
         }
-        return img;
+    }
+
+    /**
+     * Sets the canvas which paints the card.
+     * @param canvas canvas the card has been added to, null if it has been
+     * removed
+     */
+    void setCanvas(TableCanvas canvas) {
+        repaint();
+        this.canvas = canvas;
+        repaint();
+    }
+
+    /**
+     * Repaints the area of the canvas taken by the card.
+     */
+    void repaint() {
+        if (canvas != null) {
+            canvas.repaint(bounds);
+        }
+    }
+
+    /**
+     * Returns bounds of the card on the table at the current zoom.
+     * @return bounds of the card
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns true if a point of the table at the current zoom is within
+     * the card.
+     * @param x x coordinate
+     * @param y y coordinate
+     * @return true if the card contains the point
+     */
+    boolean contains(int x, int y) {
+        return bounds.contains(x, y);
+    }
+
+    /**
+     * Returns true if the card intersects an area of the table at
+     * the current zoom.
+     * @param r area of the table
+     * @return true if the card intersects the area
+     */
+    boolean intersects(Rectangle r) {
+        return bounds.intersects(r);
+    }
+
+    /**
+     * Adjusts the card to the current zoom of the table. The card is
+     * painted from an image of the nearest level until it is sharpened.
+     */
+    public void rescale() {
+        showImage();
+        this.setCardPosition(this.xpos, this.ypos);
     }
     
     /**
@@ -69,9 +253,14 @@ public class TCard extends JLabel {
      * @see getYpos()
      */
     public void setCardPosition(int x, int y) {
-        Rectangle r = this.getBounds();
+        Rectangle r = new Rectangle();
+        int oldx = xpos;
+        int oldy = ypos;
         xpos = x;
         ypos = y;
+        if (canvas != null && (oldx != x || oldy != y)) {
+            canvas.moved(this, oldx, oldy);
+        }
         if (tapped) {
             r.x = x * Table.zoom / 100 - H() / 2;
             r.y = y * Table.zoom / 100 - W() / 2;
@@ -83,7 +272,11 @@ public class TCard extends JLabel {
             r.width = W();
             r.height = H();
         }
-        this.setBounds(r);
+        if (!r.equals(bounds)) {
+            repaint();
+            bounds.setBounds(r);
+            repaint();
+        }
     }
     
     /**
@@ -125,7 +318,7 @@ public class TCard extends JLabel {
      */
     public void tap() {
         this.tapped = true;
-        this.setIcon(new ImageIcon(Utilities.rotate(bi, W(), H())));
+        sharpen();
         this.setCardPosition(this.xpos, this.ypos);
     }
     
@@ -134,7 +327,7 @@ public class TCard extends JLabel {
      */
     public void untap() {
         this.tapped = false;
-        this.setIcon(new ImageIcon(Utilities.resize(bi, W(), H())));
+        sharpen();
         this.setCardPosition(this.xpos, this.ypos);
     }
     
@@ -162,6 +355,11 @@ public class TCard extends JLabel {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return ID == null? 0 : ID.hashCode();
+    }
+
     @Override
     public String toString() {
         return "TCard(ID = " + ID + ", xpos = " + xpos + ", ypos = " + ypos + ")";
@@ -1,31 +1,23 @@
 package game;
 
-import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
 import java.awt.MouseInfo;
 import java.awt.Rectangle;
-import java.awt.event.MouseListener;
-import java.awt.event.MouseMotionListener;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import javax.imageio.ImageIO;
-import javax.swing.BorderFactory;
-import javax.swing.ImageIcon;
-import javax.swing.JLabel;
-import javax.swing.JPanel;
 import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.ScrollPaneConstants;
-import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
-import javax.swing.border.BevelBorder;
+import javax.swing.Timer;
 import mtg.Card;
 import mtg.Debug;
-import mtg.Utilities;
 
 /**
  * @author Jaroslaw Pawlak
@@ -37,9 +29,18 @@ public class Table extends JScrollPane {
     
     private static final int ZOOM_MIN = 25;
     private static final int ZOOM_MAX = 200;
+    /**
+     * Time after the last zoom change after which cards are sharpened,
+     * in milliseconds.
+     */
+    private static final int SHARPEN_DELAY = 200;
     static int zoom = 100;
     
-    private JPanel table;
+    private TableCanvas table;
+    /**
+     * Sharpens cards when the table has not been zoomed for a while.
+     */
+    private final Timer sharpen;
     
     private static BufferedImage tableCentre;
     private static BufferedImage tableBackground;
@@ -53,72 +54,35 @@ public class Table extends JScrollPane {
             } catch (IOException ex) {
                 Debug.p("Could not load table background: " + ex, Debug.E);
             }
-        }
-        if (tableBackground != null) {
-            this.table = new JPanel(null) {
-                @Override
-                public void paint(Graphics g) {
-                    Graphics2D g2 = (Graphics2D) g.create();
-                    Rectangle r = this.getVisibleRect();
-                    Dimension ts = table.getPreferredSize();
-                    g2.drawImage(tableBackground,
-                            2 * r.x * (ts.width / 2 - 2000) / (ts.width - r.width),
-                            2 * r.y * (ts.height / 2 - 2000) / (ts.height - r.height),
-                            null);
-                    g2.dispose();
-                    super.paint(g);
-                }
-            };
-            this.table.setOpaque(false);
-        } else {
-            this.table = new JPanel(null);           
-        }
-
-        
-        this.table.setPreferredSize(SIZE);
-        this.setViewportView(this.table);
-        
-        if (LOAD_GRAPHICS) {
             try {
                 tableCentre = ImageIO.read(this.getClass()
                         .getResource("/resources/TableShadow.png"));
-                BufferedImage shadow = Utilities.resize(tableCentre, 480 * zoom / 100,
-                        560 * zoom / 100);
-                
-                final JLabel centre = new JLabel(new ImageIcon(shadow));
-                centre.setHorizontalAlignment(SwingConstants.CENTER);
-                centre.setVerticalAlignment(SwingConstants.CENTER);
-                centre.setSize(480 * zoom / 100, 560 * zoom / 100);
-                centre.setBounds(
-                        (table.getPreferredSize().width - 480 * zoom / 100) / 2,
-                        (table.getPreferredSize().height - 560 * zoom / 100) / 2,
-                        480 * zoom / 100, 560 * zoom / 100);
-                table.add(centre);
             } catch (IOException ex) {
                 Debug.p("Could not load table graphics: " + ex, Debug.E);
             }
-        } else {
-            JLabel centre = new JLabel();
-            centre.setSize(Card.W, Card.H);
-            centre.setBorder(BorderFactory.createCompoundBorder(
-                        BorderFactory.createBevelBorder(BevelBorder.RAISED),
-                        BorderFactory.createBevelBorder(BevelBorder.LOWERED)
-                    ));
-            centre.setBounds((table.getPreferredSize().width - Card.W) / 2 - 4,
-                    (table.getPreferredSize().height - Card.H) / 2 - 4,
-                    Card.W + 8,
-                    Card.H + 8);
-            table.add(centre);
         }
+        this.table = new TableCanvas(tableBackground, tableCentre);
+        this.table.setPreferredSize(SIZE);
+        this.setViewportView(this.table);
 
-        TableDragListener tdl = new TableDragListener();
-        this.table.addMouseListener(tdl);
-        this.table.addMouseMotionListener(tdl);
+        OnTableMouseAdapter t = new OnTableMouseAdapter(table);
+        this.table.addMouseListener(t);
+        this.table.addMouseMotionListener(t);
         this.table.setAutoscrolls(true);
         
         this.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_NEVER);
         this.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_NEVER);
         
+        sharpen = new Timer(SHARPEN_DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (TCard card : table.getCards()) {
+                    card.sharpen();
+                }
+            }
+        });
+        sharpen.setRepeats(false);
+
         this.addMouseWheelListener(new MouseWheelListener() {
             @Override
             public synchronized void mouseWheelMoved(MouseWheelEvent e) {
@@ -146,40 +110,13 @@ public class Table extends JScrollPane {
                 final int fnewV = newV;
                 final int foldV = oldV;
                 recalculatePosition(fnewV, foldV);
+                sharpen.restart();
                 
-                for (Object o : table.getComponents()) {
-                    if (o.getClass().equals(TCard.class)
-                            || o.getClass().equals(Token.class)) {
-                        TCard t = (TCard) o;
-                        if (t.isTapped()) {
-                            t.tap();
-                        } else {
-                            t.untap();
-                        }
-                    } else if (o.getClass().equals(JLabel.class)) {
-                        JLabel l = (JLabel) o;
-                        if (LOAD_GRAPHICS) {
-                            BufferedImage b = Utilities.resize(tableCentre, 480 * zoom / 100,
-                                    560 * zoom / 100);
-                            l.setIcon(new ImageIcon(b));
-                            l.setSize(480 * zoom / 100, 560 * zoom / 100);
-                            l.setBounds(
-                                    (table.getPreferredSize().width - 480 * zoom / 100) / 2,
-                                    (table.getPreferredSize().height - 560 * zoom / 100) / 2,
-                                    480 * zoom / 100, 560 * zoom / 100);
-                        } else {
-                            l.setSize(Card.W, Card.H);
-                            l.setBorder(BorderFactory.createCompoundBorder(
-                                        BorderFactory.createBevelBorder(BevelBorder.RAISED),
-                                        BorderFactory.createBevelBorder(BevelBorder.LOWERED)
-                                    ));
-                            l.setBounds((table.getPreferredSize().width - TCard.W()) / 2 - 4,
-                                    (table.getPreferredSize().height - TCard.H()) / 2 - 4,
-                                    TCard.W() + 8,
-                                    TCard.H() + 8); 
-                        }
-                    }
+                for (TCard card : table.getCards()) {
+                    card.rescale();
                 }
+                table.revalidate();
+                table.repaint();
             }
         });
 
@@ -275,54 +212,31 @@ public class Table extends JScrollPane {
      * @param card card to be played
      */
     public void addCard(TCard card) {
-        for (MouseListener e : card.getMouseListeners()) {
-            card.removeMouseListener(e);
-        }
-        for (MouseMotionListener e : card.getMouseMotionListeners()) {
-            card.removeMouseMotionListener(e);
-        }
-
-        OnTableMouseAdapter t = new OnTableMouseAdapter();
-        card.addMouseListener(t);
-        card.addMouseMotionListener(t);
         card.setCardPosition(SIZE.width / 2, SIZE.height / 2);
-        table.add(card, 0);
-        card.repaint();
+        table.addCard(card);
     }
 
     public void dragCard(String ID, int newx, int newy) {
-        for (Object e : table.getComponents()) {
-            if ((e.getClass().equals(TCard.class)
-                    || e.getClass().equals(Token.class))
-                    &&((TCard) e).getID().equals(ID)) {
-                ((TCard) e).setCardPosition(newx, newy);
-                break;
-            }
+        TCard card = table.getCard(ID);
+        if (card != null) {
+            card.setCardPosition(newx, newy);
         }
     }
 
     public void tapCard(String ID, boolean tapped) {
-        for (Object e : table.getComponents()) {
-            if ((e.getClass().equals(TCard.class)
-                    || e.getClass().equals(Token.class))
-                    &&((TCard) e).getID().equals(ID)) {
-                if (tapped) {
-                    ((TCard) e).tap();
-                } else {
-                    ((TCard) e).untap();
-                }
-                break;
+        TCard card = table.getCard(ID);
+        if (card != null) {
+            if (tapped) {
+                card.tap();
+            } else {
+                card.untap();
             }
         }
     }
     
     public void untapAll(int player) {
-        for (Object e : table.getComponents()) {
-            if ((e.getClass().equals(TCard.class)
-                    || e.getClass().equals(Token.class))
-                    &&((TCard) e).getID().charAt(0) == 'A' + player) {
-                ((TCard) e).untap();
-            }
+        for (TCard card : table.getCards(player)) {
+            card.untap();
         }
     }
 
@@ -333,36 +247,27 @@ public class Table extends JScrollPane {
      * @return true if scrolled to the card or false if card not on the table
      */
     public boolean scrollToCard(String ID) {
-        for (Component c : table.getComponents()) {
-            if ((c.getClass().equals(TCard.class) || c.getClass().equals(Token.class))) {
-                final TCard card = (TCard) c;
-                if (card.getID().equals(ID)) {
-                    SwingUtilities.invokeLater(new Runnable() {
-                        public void run() {
-                            Table.this.getHorizontalScrollBar().setValue(
-                                    card.getBounds().x + TCard.W() / 2
-                                    - Table.this.getWidth() / 2);
-                            Table.this.getVerticalScrollBar().setValue(
-                                    card.getBounds().y + TCard.H() / 2
-                                    - Table.this.getHeight() / 2);
-                        }
-                    });
-                    return true;
-                }
-            }
+        final TCard card = table.getCard(ID);
+        if (card == null) {
+            return false;
         }
-        return false;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                Table.this.getHorizontalScrollBar().setValue(
+                        card.getBounds().x + TCard.W() / 2
+                        - Table.this.getWidth() / 2);
+                Table.this.getVerticalScrollBar().setValue(
+                        card.getBounds().y + TCard.H() / 2
+                        - Table.this.getHeight() / 2);
+            }
+        });
+        return true;
     }
 
     public void removeCard(String ID) {
-        for (Component c : table.getComponents()) {
-            if ((c.getClass().equals(TCard.class)
-                    || c.getClass().equals(Token.class))
-                    && ((TCard) c).getID().equals(ID)) {
-                table.remove(c);
-                table.repaint();
-                return;
-            }
+        TCard card = table.getCard(ID);
+        if (card != null) {
+            table.removeCard(card);
         }
     }
     
@@ -371,12 +276,8 @@ public class Table extends JScrollPane {
      * @param player 
      */
     public void removeCards(int player) {
-        for (Component c : table.getComponents()) {
-            if ((c.getClass().equals(TCard.class) || c.getClass().equals(Token.class))
-                    && ((TCard) c).getID().charAt(0) == player + 'A') {
-                table.remove(c);
-            }
+        for (TCard card : new ArrayList<>(table.getCards(player))) {
+            table.removeCard(card);
         }
-        table.repaint();
     }
 }
@@ -0,0 +1,321 @@
+package game;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeMap;
+import javax.swing.BorderFactory;
+import javax.swing.JComponent;
+import javax.swing.border.BevelBorder;
+import javax.swing.border.Border;
+import mtg.Card;
+
+/**
+ * Surface of the table. Cards on the table are not components - the canvas
+ * keeps them in a scene list, from the bottom to the top, and paints them
+ * itself in one pass, skipping those outside of the area being repainted.
+ * A card which changes repaints only the area it has left and the area it
+ * has taken, see {@link TCard#setCardPosition(int, int)}.
+ * <p>
+ * Mouse events are received by the canvas and passed to the topmost card
+ * under the pointer, see {@link #cardAt(int, int)} and
+ * {@link OnTableMouseAdapter}.
+ * <p>
+ * Cards are indexed by their ID, by their owner and by their position
+ * on a uniform grid, so finding a card for an action received, finding
+ * cards at a point and cards to be repainted does not depend on the number
+ * of cards on the table. Indexes are updated when a card is added, moved
+ * and removed.
+ */
+public class TableCanvas extends JComponent {
+    private static final long serialVersionUID = 1L;
+
+    private static final Border CENTRE = BorderFactory.createCompoundBorder(
+            BorderFactory.createBevelBorder(BevelBorder.RAISED),
+            BorderFactory.createBevelBorder(BevelBorder.LOWERED));
+
+    /**
+     * Side of a cell of the grid in table's coordinates (at zoom 100).
+     * A card is kept in the cell of its centre and no card reaches further
+     * than half of the cell from its centre, tapped or not.
+     */
+    private static final int CELL = Card.H;
+    private static final int COLUMNS = Table.SIZE.width / CELL + 1;
+    private static final int ROWS = Table.SIZE.height / CELL + 1;
+    private static final Comparator<TCard> BOTTOM_UP = new Comparator<TCard>() {
+        @Override
+        public int compare(TCard a, TCard b) {
+            return Long.compare(a.order, b.order);
+        }
+    };
+
+    /**
+     * Cards on the table by their stacking order, the last one is
+     * on the top.
+     */
+    private final TreeMap<Long, TCard> scene = new TreeMap<>();
+    private final Collection<TCard> view
+            = Collections.unmodifiableCollection(scene.values());
+    private long order;
+    private final HashMap<String, TCard> byID = new HashMap<>();
+    /**
+     * Cards by the first character of their ID, which is their owner.
+     */
+    private final HashMap<Character, LinkedHashSet<TCard>> byOwner
+            = new HashMap<>();
+    /**
+     * Cards by the cell of their centre, cells are created when needed.
+     */
+    private final ArrayList<ArrayList<TCard>> grid = new ArrayList<>(
+            Collections.<ArrayList<TCard>>nCopies(COLUMNS * ROWS, null));
+    private final BufferedImage background;
+    private final BufferedImage centre;
+
+    /**
+     * Creates an empty table.
+     * @param background background image, null if the background is plain
+     * @param centre shadow in the centre of the table, null if only
+     * the border of a card is drawn there
+     */
+    TableCanvas(BufferedImage background, BufferedImage centre) {
+        this.background = background;
+        this.centre = centre;
+        this.setOpaque(background == null);
+    }
+
+    /**
+     * Adds a card at the top of the table.
+     * @param card card to be added
+     */
+    void addCard(TCard card) {
+        removeCard(byID.get(card.getID()));
+        card.order = order++;
+        scene.put(card.order, card);
+        byID.put(card.getID(), card);
+        Character owner = card.getID().charAt(0);
+        LinkedHashSet<TCard> owned = byOwner.get(owner);
+        if (owned == null) {
+            owned = new LinkedHashSet<>();
+            byOwner.put(owner, owned);
+        }
+        owned.add(card);
+        cell(card.getXpos(), card.getYpos(), true).add(card);
+        card.setCanvas(this);
+    }
+
+    /**
+     * Removes a card from the table.
+     * @param card card to be removed, nothing happens if it is null or it is
+     * not on the table
+     */
+    void removeCard(TCard card) {
+        if (card == null || scene.get(card.order) != card) {
+            return;
+        }
+        scene.remove(card.order);
+        byID.remove(card.getID());
+        byOwner.get(card.getID().charAt(0)).remove(card);
+        cell(card.getXpos(), card.getYpos(), false).remove(card);
+        card.setCanvas(null);
+    }
+
+    /**
+     * Moves a card to its new cell of the grid. Called by a card whose
+     * centre has changed.
+     * @param card card on the table
+     * @param oldx previous x coordinate of its centre
+     * @param oldy previous y coordinate of its centre
+     */
+    void moved(TCard card, int oldx, int oldy) {
+        ArrayList<TCard> from = cell(oldx, oldy, false);
+        ArrayList<TCard> to = cell(card.getXpos(), card.getYpos(), true);
+        if (from != to) {
+            from.remove(card);
+            to.add(card);
+        }
+    }
+
+    /**
+     * Moves a card to the top of the table.
+     * @param card card on the table
+     */
+    void raise(TCard card) {
+        if (scene.get(card.order) == card && card.order != order - 1) {
+            scene.remove(card.order);
+            card.order = order++;
+            scene.put(card.order, card);
+            card.repaint();
+        }
+    }
+
+    /**
+     * Returns all cards on the table, from the bottom to the top.
+     * @return unmodifiable collection of cards
+     */
+    Collection<TCard> getCards() {
+        return view;
+    }
+
+    /**
+     * Returns a card on the table.
+     * @param ID card's ID
+     * @return card or null if it is not on the table
+     */
+    TCard getCard(String ID) {
+        return byID.get(ID);
+    }
+
+    /**
+     * Returns all cards of a player on the table.
+     * @param player player
+     * @return unmodifiable collection of cards
+     */
+    Collection<TCard> getCards(int player) {
+        LinkedHashSet<TCard> owned = byOwner.get((char) ('A' + player));
+        return owned == null? Collections.<TCard>emptySet()
+                : Collections.unmodifiableSet(owned);
+    }
+
+    /**
+     * Returns the topmost card at a point of the table.
+     * @param x x coordinate at the current zoom
+     * @param y y coordinate at the current zoom
+     * @return card or null if there is no card at the point
+     */
+    TCard cardAt(int x, int y) {
+        TCard top = null;
+        for (TCard card : candidates(new Rectangle(x, y, 1, 1))) {
+            if (card.contains(x, y) && (top == null || card.order > top.order)) {
+                top = card;
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Returns all cards which intersect an area of the table.
+     * @param r area at the current zoom
+     * @return cards from the bottom to the top
+     */
+    List<TCard> cardsIn(Rectangle r) {
+        List<TCard> result = new ArrayList<>();
+        for (TCard card : candidates(r)) {
+            if (card.intersects(r)) {
+                result.add(card);
+            }
+        }
+        Collections.sort(result, BOTTOM_UP);
+        return result;
+    }
+
+    /**
+     * Returns cards in all cells of the grid which may contain cards
+     * intersecting an area.
+     */
+    private List<TCard> candidates(Rectangle r) {
+        int half = CELL / 2;
+        int c0 = column(r.x * 100 / Table.zoom - half);
+        int c1 = column((r.x + r.width) * 100 / Table.zoom + half);
+        int r0 = row(r.y * 100 / Table.zoom - half);
+        int r1 = row((r.y + r.height) * 100 / Table.zoom + half);
+        List<TCard> result = new ArrayList<>();
+        for (int row = r0; row <= r1; row++) {
+            for (int column = c0; column <= c1; column++) {
+                ArrayList<TCard> cell = grid.get(row * COLUMNS + column);
+                if (cell != null) {
+                    result.addAll(cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cell of a point in table's coordinates. Points outside
+     * of the table belong to the nearest cell.
+     */
+    private ArrayList<TCard> cell(int x, int y, boolean create) {
+        int i = row(y) * COLUMNS + column(x);
+        ArrayList<TCard> cell = grid.get(i);
+        if (cell == null && create) {
+            cell = new ArrayList<>(4);
+            grid.set(i, cell);
+        }
+        return cell;
+    }
+
+    private static int column(int x) {
+        return Math.max(0, Math.min(COLUMNS - 1, x / CELL));
+    }
+
+    private static int row(int y) {
+        return Math.max(0, Math.min(ROWS - 1, y / CELL));
+    }
+
+    /**
+     * Paints the background, the centre of the table and all cards within
+     * the clip, from the bottom to the top.
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        if (background != null) {
+            Rectangle r = this.getVisibleRect();
+            Rectangle ts = new Rectangle(this.getPreferredSize());
+            g.drawImage(background,
+                    2 * r.x * (ts.width / 2 - 2000) / Math.max(1, ts.width - r.width),
+                    2 * r.y * (ts.height / 2 - 2000) / Math.max(1, ts.height - r.height),
+                    null);
+        } else {
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        }
+
+        Rectangle c = getCentre();
+        if (c.intersects(clip)) {
+            if (centre != null) {
+                Graphics2D g2 = (Graphics2D) g.create();
+                g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2.drawImage(centre, c.x, c.y, c.width, c.height, null);
+                g2.dispose();
+            } else {
+                CENTRE.paintBorder(this, g, c.x, c.y, c.width, c.height);
+            }
+        }
+
+        for (TCard card : cardsIn(clip)) {
+            card.paint(g);
+        }
+    }
+
+    /**
+     * Returns bounds of the centre of the table at the current zoom.
+     */
+    private Rectangle getCentre() {
+        int w;
+        int h;
+        if (centre != null) {
+            w = 480 * Table.zoom / 100;
+            h = 560 * Table.zoom / 100;
+        } else {
+            w = TCard.W() + 8;
+            h = TCard.H() + 8;
+        }
+        return new Rectangle(
+                (Table.SIZE.width * Table.zoom / 100 - w) / 2,
+                (Table.SIZE.height * Table.zoom / 100 - h) / 2, w, h);
+    }
+}
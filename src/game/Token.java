@@ -7,7 +7,6 @@ import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import mtg.Card;
-import mtg.Utilities;
 import server.flags.CreateToken;
 
 /**
@@ -233,7 +232,7 @@ public class Token extends TCard {
         
         g2.dispose();
         
-        super.setBufferedImage(Utilities.resize(bi, W(), H()));
+        super.setBufferedImage(bi);
     }
     
     private static Rectangle d(Graphics2D g2, int x, int y, int width, int height, Color fill, Color outline) {
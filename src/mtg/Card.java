@@ -1,6 +1,7 @@
 package mtg;
 
 import java.awt.Dimension;
+import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.Toolkit;
@@ -12,8 +13,6 @@ import java.awt.event.MouseWheelEvent;
 import java.awt.event.MouseWheelListener;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -71,10 +70,34 @@ public final class Card extends JLabel {
         });
 
         if (path != null) {
-            this.setIcon(new ImageIcon(Utilities.resize(this.load(), W, H)));
+            BufferedImage bi = ImageCache.peek(image, W, H, false);
+            if (bi != null) {
+                this.setIcon(new ImageIcon(bi));
+            } else {
+                ImageCache.fetch(image, W, H, false, new Runnable() {
+                    @Override
+                    public void run() {
+                        BufferedImage bi = ImageCache.get(image, W, H, false);
+                        if (bi != null) {
+                            Card.this.setIcon(new ImageIcon(bi));
+                        }
+                    }
+                });
+            }
         }
     }
 
+    /**
+     * Paints a placeholder until card's image is loaded.
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        if (getIcon() == null && image != null) {
+            Utilities.paintPlaceholder(g, W, H);
+        }
+        super.paintComponent(g);
+    }
+
     public Card(String path) {
         this(path, null);
     }
@@ -95,21 +118,6 @@ public final class Card extends JLabel {
         return Utilities.getName(image);
     }
 
-    /**
-     * Returns BufferedImage loaded from card's <code>image</code>
-     * @return BufferedImage loaded from card's <code>image</code>
-     */
-    private BufferedImage load() {
-        BufferedImage img = null;
-        try {
-            img = ImageIO.read(image);
-        } catch (IOException e) {
-            Debug.p("Could not load card's image from " + image + ": " + e,
-                    Debug.CE);
-        }
-        return img;
-    }
-
     /**
      * Sets bounds of a card where x and y are the centre of a card.
      * @param x x coordinate
@@ -169,7 +177,9 @@ public final class Card extends JLabel {
         frame.setUndecorated(true);
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 
-        JLabel contentPane = new JLabel(new ImageIcon(image.getPath()));
+        BufferedImage original = ImageCache.get(image);
+        JLabel contentPane = new JLabel(original == null? null
+                : new ImageIcon(original));
         contentPane.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseReleased(MouseEvent e) {
@@ -0,0 +1,179 @@
+package mtg;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Index of all card images in {@link Main#CARDS} and its subdirectories.
+ * It maps lower case file names (without extension) to paths, so finding
+ * a card takes constant time instead of walking the whole directory tree.
+ * <p>
+ * The index is built once by a background thread, which then watches all
+ * the directories with a <code>WatchService</code> and keeps the index
+ * up to date when cards are added, removed or renamed. Lookups made before
+ * the index is built wait for it.
+ */
+public class CardIndex extends Thread {
+    private static CardIndex instance;
+
+    private final ConcurrentHashMap<String, Path> paths;
+    private final CountDownLatch built;
+    private final HashMap<WatchKey, Path> directories;
+    private WatchService watcher;
+
+    private CardIndex() {
+        super("Card Index");
+        this.paths = new ConcurrentHashMap<>();
+        this.built = new CountDownLatch(1);
+        this.directories = new HashMap<>();
+        setDaemon(true);
+    }
+
+    /**
+     * Starts building the index in the background. If it has already been
+     * started, it does nothing.
+     */
+    public synchronized static void build() {
+        if (instance == null) {
+            instance = new CardIndex();
+            instance.start();
+        }
+    }
+
+    /**
+     * Returns a path of a card image of given name (case insensitive).
+     * If there are many such images, any of them is returned.
+     * @param name file name without extension
+     * @return file path or null if not found
+     */
+    public static String find(String name) {
+        build();
+        try {
+            instance.built.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        Path path = instance.paths.get(name.toLowerCase());
+        return path == null? null : path.toString();
+    }
+
+    @Override
+    public void run() {
+        long time = System.currentTimeMillis();
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException ex) {
+            Debug.p("Card index: directories cannot be watched: " + ex, Debug.E);
+        }
+        Main.CARDS.mkdirs();
+        add(Main.CARDS.toPath());
+        built.countDown();
+        Debug.p("Card index: " + paths.size() + " cards indexed in "
+                + (System.currentTimeMillis() - time) + " ms");
+
+        while (watcher != null) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rebuild();
+                    break;
+                } else if (dir == null) {
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    add(path);
+                } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                    paths.remove(nameOf(path), path);
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Adds a file or a whole directory tree to the index. Directories are
+     * registered with the watcher.
+     */
+    private void add(Path start) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir,
+                        BasicFileAttributes attrs) throws IOException {
+                    if (watcher != null) {
+                        directories.put(dir.register(watcher,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE), dir);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file,
+                        BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        paths.putIfAbsent(nameOf(file), file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file,
+                        IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            Debug.p("Card index: " + start + " cannot be indexed: " + ex,
+                    Debug.W);
+        }
+    }
+
+    /**
+     * Indexes all cards again, used when some changes have been missed.
+     */
+    private void rebuild() {
+        for (WatchKey key : directories.keySet()) {
+            key.cancel();
+        }
+        directories.clear();
+        Iterator<Map.Entry<String, Path>> it = paths.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!Files.isRegularFile(it.next().getValue())) {
+                it.remove();
+            }
+        }
+        add(Main.CARDS.toPath());
+    }
+
+    private static String nameOf(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return (dot == -1? name : name.substring(0, dot)).toLowerCase();
+    }
+}
@@ -0,0 +1,381 @@
+package mtg;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Content-addressed storage of downloaded card images. Every image is
+ * identified by a hash of its content and downloaded images are saved in
+ * {@link Main#CARDS_DL} as <code>hash.jpg</code>, so an image is never
+ * downloaded twice, even if it is used under different card names. Names of
+ * downloaded cards are kept in an index file and used by
+ * {@link Utilities#findPath(String)} when a card cannot be found by its name.
+ * <p>
+ * Players exchange a manifest (hash and size of every card image of a deck)
+ * and request all missing images at once.
+ * <p>
+ * Hashes and names received from the other side are never trusted: only
+ * hashes of {@link #isHash(String) the right form} make paths of files and
+ * only {@link #isName(String) names} which cannot break the index file are
+ * saved in it.
+ * <p>
+ * The store is guarded by {@link #LOCK} rather than a monitor, as it reads
+ * and moves files while holding it and may be used by virtual threads (see
+ * {@link Threads}).
+ */
+public class CardStore {
+    private static final File INDEX = new File(Main.CARDS_DL, "index.txt");
+    private static final String EXTENSION = ".jpg";
+    private static final String PART = ".part";
+    private static final String ALGORITHM = "SHA-1";
+    private static final ReentrantLock LOCK = new ReentrantLock();
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+    /**
+     * The largest image accepted from the other side, in bytes.
+     */
+    public static final long MAX_SIZE = Integer.getInteger(
+            "mtg.cards.max.kb", 8192) * 1024L;
+
+    /**
+     * hash -> image file
+     */
+    private static HashMap<String, File> files;
+    /**
+     * lower case name -> hash, only for cards not found by their file names
+     */
+    private static HashMap<String, String> names;
+    /**
+     * path, size and modification time -> hash, to avoid hashing the same
+     * file twice
+     */
+    private static HashMap<String, String> hashes;
+
+    private CardStore() {}
+
+    private static void load() {
+        if (files != null) {
+            return;
+        }
+        files = new HashMap<>();
+        names = new HashMap<>();
+        hashes = new HashMap<>();
+        File[] downloaded = Main.CARDS_DL.listFiles();
+        if (downloaded != null) {
+            for (File e : downloaded) {
+                if (e.isFile()
+                        && e.getName().matches("[0-9a-f]{40}\\" + EXTENSION)) {
+                    files.put(Utilities.getName(e), e);
+                }
+            }
+        }
+        if (INDEX.exists()) {
+            try (Scanner s = new Scanner(INDEX, "UTF-8")) {
+                while (s.hasNextLine()) {
+                    String[] l = s.nextLine().split(":", 2);
+                    if (l.length == 2) {
+                        names.put(l[1].toLowerCase(), l[0]);
+                    }
+                }
+            } catch (IOException ex) {
+                Debug.p("Card index could not be loaded: " + ex, Debug.E);
+            }
+        }
+    }
+
+    /**
+     * Returns a path of a downloaded image of a card which could not be found
+     * by its file name.
+     * @param name card name
+     * @return file path or null if such card has not been downloaded
+     */
+    public static String findPath(String name) {
+        LOCK.lock();
+        try {
+            load();
+            String hash = names.get(name.toLowerCase());
+            File file = hash == null? null : files.get(hash);
+            return file == null? null : file.getPath();
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Returns a hash of file's content. Hashes are cached as long as file's
+     * size and modification time do not change.
+     * @param file file
+     * @return hex encoded hash
+     * @throws IOException if file cannot be read
+     */
+    public static String hash(File file) throws IOException {
+        LOCK.lock();
+        try {
+            load();
+            String key = file.getAbsolutePath() + "|" + file.length()
+                    + "|" + file.lastModified();
+            String hash = hashes.get(key);
+            if (hash == null) {
+                hash = digest(file);
+                hashes.put(key, hash);
+                if (!files.containsKey(hash)) {
+                    files.put(hash, file);
+                }
+            }
+            return hash;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Computes a hash of file's content, without caching it.
+     */
+    private static String digest(File file) throws IOException {
+        MessageDigest md = digest();
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(file))) {
+            byte[] b = new byte[8192];
+            int read;
+            while ((read = in.read(b)) >= 0) {
+                md.update(b, 0, read);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Returns true if a string has the form of a hash made by this store:
+     * 40 lower case hexadecimal digits. Only such hashes are used in names
+     * of files.
+     * @param hash hash received
+     * @return true if hash is valid
+     */
+    public static boolean isHash(String hash) {
+        return hash != null && HASH.matcher(hash).matches();
+    }
+
+    /**
+     * Returns true if a card name may be saved in the index file, i.e. it
+     * contains neither a line break nor a colon.
+     * @param name card name received
+     * @return true if name is valid
+     */
+    public static boolean isName(String name) {
+        return name != null && name.indexOf('\n') < 0
+                && name.indexOf('\r') < 0 && name.indexOf(':') < 0;
+    }
+
+    /**
+     * Returns hashes of images of all cards of the deck, in the order
+     * of {@link Deck#getArrayNames(int)}.
+     * @param deck deck
+     * @return hashes of cards' images
+     * @throws IOException if any image cannot be found or read
+     */
+    public static String[] hashes(Deck deck) throws IOException {
+        String[] r = new String[deck.getArraySize()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = hash(deck.getArrayFiles(i));
+        }
+        return r;
+    }
+
+    /**
+     * Returns sizes of images of all cards of the deck in bytes, in the order
+     * of {@link Deck#getArrayNames(int)}.
+     * @param deck deck
+     * @return sizes of cards' images
+     */
+    public static long[] sizes(Deck deck) {
+        long[] r = new long[deck.getArraySize()];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = deck.getArrayFiles(i).length();
+        }
+        return r;
+    }
+
+    /**
+     * Checks which images of deck's cards are missing. A card is missing if
+     * it can be found neither by its name nor by its hash. If only the hash
+     * is known, the card is registered under its name, so no image is
+     * transferred.
+     * @param deck deck received
+     * @param hashes hashes of deck's images, in the order of
+     * {@link Deck#getArrayNames(int)}, may be null
+     * @return indices of missing cards, each image only once
+     */
+    public static int[] missing(Deck deck, String[] hashes) {
+        LOCK.lock();
+        try {
+            load();
+            LinkedHashSet<String> requested = new LinkedHashSet<>();
+            ArrayList<Integer> r = new ArrayList<>();
+            for (int i = 0; i < deck.getArraySize(); i++) {
+                String name = deck.getArrayNames(i);
+                String hash = hashes == null? null : hashes[i];
+                if (Utilities.findPath(name) != null) {
+                    continue;
+                }
+                if (hash != null && files.containsKey(hash)) {
+                    register(name, hash);
+                } else if (hash != null && !requested.add(hash)) {
+                    register(name, hash); //requested under another name
+                } else {
+                    r.add(i);
+                }
+            }
+            int[] indices = new int[r.size()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = r.get(i);
+            }
+            return indices;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Returns an image requested by the other side. Images are looked up by
+     * hash and then by name.
+     * @param name card name
+     * @param hash hash of the image, may be null
+     * @return image file or null if not found
+     */
+    public static File find(String name, String hash) {
+        LOCK.lock();
+        try {
+            load();
+            File file = hash == null? null : files.get(hash);
+            if (file == null || !file.exists()) {
+                String path = Utilities.findPath(name);
+                file = path == null? null : new File(path);
+            }
+            return file;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+
+    /**
+     * Returns a file for a partially downloaded image of given hash. It may
+     * not exist yet.
+     * @param hash hash of the image
+     * @return partial file in {@link Main#CARDS_DL}
+     * @throws IllegalArgumentException if hash is not {@link #isHash(String)
+     * valid}
+     */
+    public static File partFile(String hash) {
+        if (!isHash(hash)) {
+            throw new IllegalArgumentException("Invalid hash: " + hash);
+        }
+        Main.CARDS_DL.mkdirs();
+        return new File(Main.CARDS_DL, hash + PART);
+    }
+
+    /**
+     * Creates an empty file for an image being downloaded whose hash is not
+     * known.
+     * @return temporary file in {@link Main#CARDS_DL}
+     * @throws IOException if file cannot be created
+     */
+    public static File createTempFile() throws IOException {
+        Main.CARDS_DL.mkdirs();
+        return File.createTempFile("card", PART, Main.CARDS_DL);
+    }
+
+    /**
+     * Verifies a completely downloaded image, stores it under hash of its
+     * content and registers it under card's name. Image is moved with
+     * an atomic rename, so no other thread or process ever sees it
+     * incomplete. If verification fails, the file is deleted.
+     * @param name card name
+     * @param expected hash announced by the sender, may be null
+     * @param part downloaded image
+     * @return false if image's content does not match expected hash or
+     * name is not {@link #isName(String) valid}
+     * @throws IOException if image cannot be read or moved
+     */
+    public static boolean store(String name, String expected,
+            File part) throws IOException {
+        LOCK.lock();
+        try {
+            load();
+            String hash = digest(part);
+            if (!isName(name) || expected != null && !expected.equals(hash)) {
+                part.delete();
+                return false;
+            }
+            File file = new File(Main.CARDS_DL, hash + EXTENSION);
+            if (file.exists()) {
+                part.delete();
+            } else {
+                try {
+                    Files.move(part.toPath(), file.toPath(),
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(part.toPath(), file.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            files.put(hash, file);
+            register(name, hash);
+            return true;
+        } finally {
+            LOCK.unlock();
+        }
+    }
+    /**
+     * Saves that a card of given name has given image.
+     */
+    private static void register(String name, String hash) {
+        if (!isName(name) || !isHash(hash)) {
+            Debug.p("Card " + name + " has an invalid name or hash " + hash,
+                    Debug.W);
+            return;
+        }
+        if (hash.equals(names.put(name.toLowerCase(), hash))) {
+            return; //already known
+        }
+        INDEX.getParentFile().mkdirs();
+        try (Writer w = new OutputStreamWriter(
+                new FileOutputStream(INDEX, true), "UTF-8")) {
+            w.write(hash + ":" + name + System.lineSeparator());
+        } catch (IOException ex) {
+            Debug.p("Card index could not be saved: " + ex, Debug.E);
+        }
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex); //every JVM supports SHA-1
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
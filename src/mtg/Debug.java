@@ -69,6 +69,24 @@ public class Debug {
         }
     }
 
+    /**
+     * Turns printing of messages of given type on or off. Critical errors
+     * cannot be turned off.
+     * @param type one of {@link #W}, {@link #I} and {@link #E}
+     * @param enabled true if messages of given type should be printed
+     */
+    public static void set(int type, boolean enabled) {
+        if (type == W) {
+            warning = enabled;
+        } else if (type == I) {
+            info = enabled;
+        } else if (type == E) {
+            error = enabled;
+        } else if (type != CE) {
+            other = enabled;
+        }
+    }
+
     private static String print(Object message) {
         Calendar c = Calendar.getInstance();
         String msg = df2.format(c.get(Calendar.HOUR_OF_DAY)) + ":"
@@ -1,5 +1,7 @@
 package mtg;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -233,6 +235,45 @@ public class Deck implements Serializable {
         }
     }
 
+    /**
+     * Writes deck's name and cards (without paths) in a compact binary form.
+     * @param out output to write to
+     * @throws IOException if an I/O error occurs
+     * @see #readFrom(DataInput)
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(deckName != null);
+        if (deckName != null) {
+            out.writeUTF(deckName);
+        }
+        out.writeShort(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            out.writeUTF(names.get(i));
+            out.writeShort(amounts.get(i));
+        }
+    }
+
+    /**
+     * Reads a deck written by {@link #writeTo(DataOutput)}. Cards are not
+     * validated, use {@link #check(Deck)} for that.
+     * @param in input to read from
+     * @return deck read
+     * @throws IOException if an I/O error occurs
+     */
+    public static Deck readFrom(DataInput in) throws IOException {
+        Deck result = new Deck();
+        if (in.readBoolean()) {
+            result.deckName = in.readUTF();
+        }
+        int size = in.readUnsignedShort();
+        for (int i = 0; i < size; i++) {
+            result.names.add(in.readUTF());
+            result.amounts.add((int) in.readShort());
+            result.paths.add(null);
+        }
+        return result;
+    }
+
     /**
      * Loads a deck from text file given
      * @param file file to load a deck from
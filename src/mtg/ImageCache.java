@@ -0,0 +1,373 @@
+package mtg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import javax.swing.SwingUtilities;
+
+/**
+ * Process-wide cache of cards' images, shared by all card components: cards
+ * on the table, in hand and card viewers and in the deck creator. Images are
+ * kept by their file, size and rotation, so all copies of a card of the same
+ * size share one image and an image file is decoded only once - playing
+ * twenty Forests decodes Forest's image once.
+ * <p>
+ * Both decoded originals and scaled images are kept, at most
+ * <code>mtg.images.cache.mb</code> megabytes of them (64 by default), and
+ * the least recently used are evicted first. Images returned are shared and
+ * must not be modified.
+ * <p>
+ * Components on the event dispatch thread should not wait for images:
+ * they {@link #peek(File, int, int, boolean) peek} and if an image is not
+ * cached yet, they {@link #fetch(File, int, int, boolean, Runnable) fetch}
+ * it - it is decoded and scaled by a small pool of background threads
+ * (<code>mtg.images.threads</code>) and the component is called back on
+ * the event dispatch thread. An image requested many times at once is
+ * loaded once and its file is decoded once.
+ */
+public final class ImageCache {
+    /**
+     * Memory budget in bytes, images take 4 bytes per pixel.
+     */
+    private static final long BUDGET = Integer.getInteger(
+            "mtg.images.cache.mb", 64) * 1024L * 1024L;
+    /**
+     * Number of threads loading images in the background.
+     */
+    private static final int THREADS = Integer.getInteger("mtg.images.threads",
+            Math.max(1, Math.min(4,
+            Runtime.getRuntime().availableProcessors() - 1)));
+
+    /**
+     * Access-ordered, so the eldest entry is the least recently used.
+     * Guarded by itself.
+     */
+    private static final LinkedHashMap<Key, BufferedImage> IMAGES
+            = new LinkedHashMap<>(256, 0.75f, true);
+    /**
+     * Bytes of all images in {@link #IMAGES}. Guarded by IMAGES.
+     */
+    private static long bytes;
+    /**
+     * Callbacks of images being loaded in the background. Guarded by IMAGES.
+     */
+    private static final HashMap<Key, List<Runnable>> PENDING = new HashMap<>();
+    /**
+     * Originals being decoded, so concurrent requests wait for one decode.
+     */
+    private static final ConcurrentHashMap<Key, FutureTask<BufferedImage>>
+            DECODING = new ConcurrentHashMap<>();
+    private static final ExecutorService LOADERS = Executors.newFixedThreadPool(
+            THREADS, new ThreadFactory() {
+        private final AtomicInteger number = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread t = new Thread(task, "Image Loader-"
+                    + number.getAndIncrement());
+            t.setDaemon(true);
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    });
+
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong DECODES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    private ImageCache() {}
+
+    /**
+     * Returns an image of a card scaled to given size, loading and scaling
+     * it if it is not cached.
+     * @param image file with card's image
+     * @param w width of the card
+     * @param h height of the card
+     * @param rotated true if the card is rotated by 90 degrees - the image
+     * is <code>h</code> wide and <code>w</code> high then
+     * @return scaled image or null if the file cannot be read
+     * @see Utilities#resize(BufferedImage, int, int)
+     * @see Utilities#rotate(BufferedImage, int, int)
+     */
+    public static BufferedImage get(File image, int w, int h, boolean rotated) {
+        Key key = new Key(image, w, h, rotated);
+        BufferedImage scaled = lookup(key);
+        return scaled != null? scaled : load(key);
+    }
+
+    /**
+     * Returns an image of a card scaled to given size if it is cached.
+     * Never loads an image.
+     * @param image file with card's image
+     * @param w width of the card
+     * @param h height of the card
+     * @param rotated true if the card is rotated by 90 degrees
+     * @return scaled image or null if it is not cached
+     * @see #get(File, int, int, boolean)
+     */
+    public static BufferedImage peek(File image, int w, int h, boolean rotated) {
+        return lookup(new Key(image, w, h, rotated));
+    }
+
+    /**
+     * Loads an image of a card scaled to given size in the background.
+     * When it is cached, <code>loaded</code> is run on the event dispatch
+     * thread and it may {@link #get(File, int, int, boolean) get} it.
+     * If the image cannot be read, <code>loaded</code> is not run.
+     * @param image file with card's image
+     * @param w width of the card
+     * @param h height of the card
+     * @param rotated true if the card is rotated by 90 degrees
+     * @param loaded callback run when the image is cached
+     */
+    public static void fetch(File image, int w, int h, boolean rotated,
+            Runnable loaded) {
+        final Key key = new Key(image, w, h, rotated);
+        synchronized (IMAGES) {
+            if (IMAGES.containsKey(key)) {
+                SwingUtilities.invokeLater(loaded);
+                return;
+            }
+            List<Runnable> waiting = PENDING.get(key);
+            if (waiting != null) {
+                waiting.add(loaded);
+                return;
+            }
+            waiting = new ArrayList<>(2);
+            waiting.add(loaded);
+            PENDING.put(key, waiting);
+        }
+        LOADERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage scaled = null;
+                try {
+                    scaled = load(key);
+                } finally {
+                    List<Runnable> waiting;
+                    synchronized (IMAGES) {
+                        waiting = PENDING.remove(key);
+                    }
+                    if (scaled != null) {
+                        for (Runnable e : waiting) {
+                            SwingUtilities.invokeLater(e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Scales an original image and caches the result.
+     */
+    private static BufferedImage load(Key key) {
+        BufferedImage original = get(key.file);
+        if (original == null) {
+            return null;
+        }
+        BufferedImage scaled = key.rotated
+                ? Utilities.rotate(original, key.w, key.h)
+                : Utilities.resize(original, key.w, key.h);
+        return put(key, scaled);
+    }
+
+    /**
+     * Returns a decoded image of a card in its original size, decoding it if
+     * it is not cached. If it is being decoded by another thread, waits for
+     * that thread.
+     * @param image file with card's image
+     * @return decoded image or null if the file cannot be read
+     */
+    public static BufferedImage get(File image) {
+        final Key key = new Key(image, -1, -1, false);
+        BufferedImage original = lookup(key);
+        if (original != null) {
+            return original;
+        }
+        FutureTask<BufferedImage> decode = new FutureTask<>(
+                new Callable<BufferedImage>() {
+            @Override
+            public BufferedImage call() {
+                return decode(key);
+            }
+        });
+        FutureTask<BufferedImage> running = DECODING.putIfAbsent(key, decode);
+        if (running == null) {
+            running = decode;
+            try {
+                decode.run();
+            } finally {
+                DECODING.remove(key, decode);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            Debug.p("Could not load card's image from " + image + ": "
+                    + ex.getCause(), Debug.CE);
+            return null;
+        }
+    }
+
+    private static BufferedImage decode(Key key) {
+        BufferedImage original;
+        try {
+            original = ImageIO.read(key.file);
+        } catch (IOException ex) {
+            Debug.p("Could not load card's image from " + key.file + ": " + ex,
+                    Debug.CE);
+            return null;
+        }
+        if (original == null) {
+            Debug.p("Unknown format of card's image " + key.file, Debug.CE);
+            return null;
+        }
+        DECODES.incrementAndGet();
+        return put(key, original);
+    }
+
+    private static BufferedImage lookup(Key key) {
+        BufferedImage image;
+        synchronized (IMAGES) {
+            image = IMAGES.get(key);
+        }
+        (image != null? HITS : MISSES).incrementAndGet();
+        return image;
+    }
+
+    /**
+     * Caches an image and evicts the least recently used ones over
+     * the budget. If another thread has cached the same image meanwhile,
+     * that one is kept and returned, so all callers share it.
+     */
+    private static BufferedImage put(Key key, BufferedImage image) {
+        synchronized (IMAGES) {
+            BufferedImage previous = IMAGES.get(key);
+            if (previous != null) {
+                return previous;
+            }
+            IMAGES.put(key, image);
+            bytes += sizeOf(image);
+            Iterator<Map.Entry<Key, BufferedImage>> i
+                    = IMAGES.entrySet().iterator();
+            while (bytes > BUDGET && IMAGES.size() > 1) {
+                bytes -= sizeOf(i.next().getValue());
+                i.remove();
+                EVICTIONS.incrementAndGet();
+            }
+        }
+        return image;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    /**
+     * Returns the number of lookups which found an image cached.
+     * @return number of hits
+     */
+    public static long getHits() {
+        return HITS.get();
+    }
+
+    /**
+     * Returns the number of lookups which did not find an image cached.
+     * @return number of misses
+     */
+    public static long getMisses() {
+        return MISSES.get();
+    }
+
+    /**
+     * Returns the number of image files decoded.
+     * @return number of decodes
+     */
+    public static long getDecodes() {
+        return DECODES.get();
+    }
+
+    /**
+     * Returns the number of images evicted to stay within the budget.
+     * @return number of evictions
+     */
+    public static long getEvictions() {
+        return EVICTIONS.get();
+    }
+
+    /**
+     * Returns the number of bytes taken by cached images.
+     * @return size of the cache in bytes
+     */
+    public static long getBytes() {
+        synchronized (IMAGES) {
+            return bytes;
+        }
+    }
+
+    /**
+     * Returns all counters of the cache as text, e.g. for logging.
+     * @return statistics of the cache
+     */
+    public static String getStatistics() {
+        return "ImageCache(hits = " + getHits() + ", misses = " + getMisses()
+                + ", decodes = " + getDecodes() + ", evictions = "
+                + getEvictions() + ", bytes = " + getBytes() + ")";
+    }
+
+    /**
+     * File, size and rotation of an image. Originals have size -1.
+     */
+    private static final class Key {
+        final File file;
+        final int w;
+        final int h;
+        final boolean rotated;
+
+        Key(File file, int w, int h, boolean rotated) {
+            this.file = file;
+            this.w = w;
+            this.h = h;
+            this.rotated = rotated;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return w == k.w && h == k.h && rotated == k.rotated
+                    && file.equals(k.file);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = file.hashCode();
+            hash = 31 * hash + w;
+            hash = 31 * hash + h;
+            return rotated? ~hash : hash;
+        }
+    }
+}
@@ -11,8 +11,20 @@ public class JoinGameFrame {
     private JoinGameFrame() {}
     
     public static void show(JFrame parent) {
-        Deck deck = Settings.getDeck();
-        if (deck == null) {
+        join(parent, false);
+    }
+
+    /**
+     * Asks for an address of a table and watches it as a spectator.
+     * @param parent main frame
+     */
+    public static void watch(JFrame parent) {
+        join(parent, true);
+    }
+
+    private static void join(JFrame parent, boolean spectate) {
+        Deck deck = spectate? null : Settings.getDeck();
+        if (!spectate && deck == null) {
             JOptionPane.showMessageDialog(parent,
                     "Could not load chosen deck",
                     Main.TITLE_SHORT, JOptionPane.ERROR_MESSAGE);
@@ -20,6 +32,7 @@ public class JoinGameFrame {
             String ip = "";
             String msg = "Host:";
             String portStr;
+            String table = null;
             int port = -1;
 
             while (true) {
@@ -28,7 +41,13 @@ public class JoinGameFrame {
                         null, Settings.getLastIP());
                 if (ip == null) {
                     return; //user cancel
-                } else if (ip.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")
+                }
+                table = null;
+                if (ip.matches(".+/\\w+")) { //host[:port]/table
+                    table = ip.substring(ip.lastIndexOf('/') + 1);
+                    ip = ip.substring(0, ip.lastIndexOf('/'));
+                }
+                if (ip.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")
                         || ip.matches("\\d+\\.\\d+\\.\\d+\\.\\d+:\\d{2,}")
                         || ip.matches("[\\w+\\.]+\\w+")
                         || ip.matches("[\\w+\\.]+\\w+:\\d{2,}")
@@ -72,9 +91,15 @@ public class JoinGameFrame {
             }
 
             try {
-                Settings.setLastIP(ip + ":" + port);
+                Settings.setLastIP(ip + ":" + port
+                        + (table == null? "" : "/" + table));
                 Settings.save();
-                new game.Client(parent, Settings.getName(), ip, port, deck);
+                if (spectate) {
+                    new game.Client(parent, ip, port, table);
+                } else {
+                    new game.Client(parent, Settings.getName(), ip, port,
+                            table, deck);
+                }
                 parent.setVisible(false);
             } catch (Exception ex) {
                 Debug.p("Exception while joining the server: " + ex);
@@ -83,6 +108,13 @@ public class JoinGameFrame {
                             "Your deck has been rejected by the server: "
                             + ex.getLocalizedMessage(), Main.TITLE_SHORT,
                             JOptionPane.WARNING_MESSAGE);
+                } else if (ex.getLocalizedMessage() != null
+                        && (ex.getLocalizedMessage().startsWith("No such table")
+                        || ex.getLocalizedMessage().equals("Table is full")
+                        || ex.getLocalizedMessage().equals("Too many spectators"))) {
+                    JOptionPane.showMessageDialog(parent,
+                            ex.getLocalizedMessage(), Main.TITLE_SHORT,
+                            JOptionPane.WARNING_MESSAGE);
                 } else {
                     switch (ex.getLocalizedMessage()) {
                         case "Connection refused: connect":
@@ -53,6 +53,7 @@ public class Main extends JFrame {
     private JButton exit;
     private JButton createGame;
     private JButton joinGame;
+    private JButton watchGame;
     private JButton settingsButton;
     private JButton helpButton;
     private JLabel background;
@@ -83,6 +84,7 @@ public class Main extends JFrame {
         CARDS.mkdirs();
         CARDS_DL.mkdirs();
         DECKS.mkdirs();
+        CardIndex.build();
         
         Settings.load();
         
@@ -212,6 +214,15 @@ public class Main extends JFrame {
             }
         });
         
+        watchGame = new JButton("Watch game");
+        watchGame.setOpaque(false);
+        watchGame.setFocusable(false);
+        watchGame.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                JoinGameFrame.watch(Main.this);
+            }
+        });
+        
         settingsButton = new JButton("Settings");
         settingsButton.setOpaque(false);
         settingsButton.setFocusable(false);
@@ -303,6 +314,14 @@ public class Main extends JFrame {
                 joinGame.getPreferredSize().height);
         contentPane.add(joinGame);
         
+        watchGame.setBounds(
+                joinGame.getBounds().x + joinGame.getBounds().width
+                - watchGame.getPreferredSize().width,
+                joinGame.getBounds().y + joinGame.getBounds().height + 5,
+                watchGame.getPreferredSize().width,
+                watchGame.getPreferredSize().height);
+        contentPane.add(watchGame);
+        
         settingsButton.setBounds(640, 380,
                 settingsButton.getPreferredSize().width,
                 settingsButton.getPreferredSize().height);
@@ -217,8 +217,8 @@ public class ServerFrame extends JFrame {
             messagesField.append("Your internal IP ("
                     + Utilities.getInternalIP() + ") "
                     + "and external IP differ.\n");
-            messagesField.append("You may need port forwarding for ports <"
-                    + port + ";" + (port + players) + ">.\n");
+            messagesField.append("You may need port forwarding for port "
+                    + port + ".\n");
         }
 
         if (allOK) {
@@ -0,0 +1,137 @@
+package mtg;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads which spend most of their time blocked on I/O: readers of
+ * client connections, workers admitting players and transferring cards.
+ * By default they are ordinary daemon threads. If <code>mtg.threads</code>
+ * system property is <code>virtual</code>, they are virtual threads, so
+ * hundreds of connections do not need hundreds of platform threads.
+ * <p>
+ * Virtual threads are looked up by reflection, so the application still runs
+ * on Java versions without them - it then falls back to platform threads.
+ * Code run on these threads must not hold a monitor
+ * (<code>synchronized</code>) while blocked on I/O, as that pins a virtual
+ * thread to its carrier; locks from <code>java.util.concurrent.locks</code>
+ * are used instead.
+ */
+public class Threads {
+    /**
+     * True if threads created are virtual.
+     */
+    public static final boolean VIRTUAL;
+
+    /**
+     * Thread.ofVirtual(), null if virtual threads are not used.
+     */
+    private static final Method OF_VIRTUAL;
+    /**
+     * Thread.Builder methods name(String), name(String, long),
+     * unstarted(Runnable) and factory().
+     */
+    private static final Method NAME;
+    private static final Method NAME_COUNTER;
+    private static final Method UNSTARTED;
+    private static final Method FACTORY;
+
+    static {
+        Method[] m = null;
+        if ("virtual".equalsIgnoreCase(System.getProperty("mtg.threads"))) {
+            try {
+                Method ofVirtual = Thread.class.getMethod("ofVirtual");
+                Class<?> builder = Class.forName("java.lang.Thread$Builder");
+                m = new Method[] {
+                    ofVirtual,
+                    builder.getMethod("name", String.class),
+                    builder.getMethod("name", String.class, long.class),
+                    builder.getMethod("unstarted", Runnable.class),
+                    builder.getMethod("factory")
+                };
+                ofVirtual.invoke(null); //fails if only a preview feature
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                Debug.p("Virtual threads are not supported by Java "
+                        + System.getProperty("java.version")
+                        + ", platform threads are used", Debug.W);
+                m = null;
+            }
+        }
+        VIRTUAL = m != null;
+        OF_VIRTUAL = VIRTUAL? m[0] : null;
+        NAME = VIRTUAL? m[1] : null;
+        NAME_COUNTER = VIRTUAL? m[2] : null;
+        UNSTARTED = VIRTUAL? m[3] : null;
+        FACTORY = VIRTUAL? m[4] : null;
+    }
+
+    private Threads() {}
+
+    /**
+     * Creates a thread which is not started yet. A platform thread is
+     * a daemon.
+     * @param name name of the thread
+     * @param task task run by the thread
+     * @return new thread
+     */
+    public static Thread create(String name, Runnable task) {
+        if (VIRTUAL) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        Thread t = new Thread(task, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Creates and starts a thread.
+     * @param name name of the thread
+     * @param task task run by the thread
+     * @return started thread
+     * @see #create(String, Runnable)
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread t = create(name, task);
+        t.start();
+        return t;
+    }
+
+    /**
+     * Creates an executor running every task on its own thread. Platform
+     * threads are pooled and reused, virtual ones are not.
+     * @param name prefix of names of executor's threads
+     * @return new executor
+     */
+    public static ExecutorService newExecutor(String name) {
+        if (VIRTUAL) {
+            try {
+                Object builder = NAME_COUNTER.invoke(OF_VIRTUAL.invoke(null),
+                        name + "-", 0L);
+                ThreadFactory factory = (ThreadFactory) FACTORY.invoke(builder);
+                return (ExecutorService) Executors.class.getMethod(
+                        "newThreadPerTaskExecutor", ThreadFactory.class)
+                        .invoke(null, factory);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        final AtomicInteger number = new AtomicInteger();
+        final String prefix = name + "-";
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread t = new Thread(task, prefix + number.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
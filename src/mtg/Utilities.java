@@ -1,20 +1,16 @@
 package mtg;
 
+import java.awt.Color;
+import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
-import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.text.DecimalFormat;
@@ -28,6 +24,8 @@ public class Utilities {
     private static DecimalFormat df2 = new DecimalFormat("00");
 
     private static final int TIMEOUT = 300;
+
+    private static final Color PLACEHOLDER = new Color(48, 44, 40);
     private static String IP;
     private static long IPtime;
 
@@ -36,78 +34,13 @@ public class Utilities {
     /**
      * Looks for a file with given name (with no extension) in directory
      * {@link Main#CARDS} and all its subdirectories. Returns a total path
-     * of file found or null.
+     * of file found or null. Files are looked up in {@link CardIndex}.
      * @param name file name without extension
      * @return file path or null if not found
      */
     public static String findPath(String name) {
-        return findPath(Main.CARDS, name);
-    }
-
-    /**
-     * Looks for a file with given name (with no extension) in specified
-     * directory (and subdirectories) and returns a total path of file found.
-     * @param directory top directory to search
-     * @param name file name without extension
-     * @return total path or null if file not found
-     */
-    private static String findPath(File directory, String name) {
-        for (File e : directory.listFiles()) {
-            if (e.isFile() && Utilities.getName(e).equalsIgnoreCase(name)) {
-                return e.getPath();
-            }
-            if (e.isDirectory()) {
-                String x = findPath(e, name);
-                if (x != null) {
-                    return x;
-                }
-            }
-        }
-        return null;
-    }
-
-    /**
-     * Receives file from the socket and saves it to the specified file path
-     * @param path where to save a file received
-     * @param socket socket to read data from
-     * @throws FileNotFoundException
-     * @throws IOException
-     */
-    public static void receiveFile(File path, Socket socket)
-            throws FileNotFoundException, IOException  {
-        path.getParentFile().mkdirs();
-        try (BufferedInputStream bis
-                = new BufferedInputStream(socket.getInputStream());
-                BufferedOutputStream bos
-                = new BufferedOutputStream(new FileOutputStream(path))) {
-            
-
-            byte[] b = new byte[256];
-            int read = -1;
-
-            while ((read = bis.read(b)) >= 0) {
-                bos.write(b, 0, read);
-            }
-        }
-    }
-
-    /**
-     * Sends a file to the specified socket.
-     * @param file file to be sent
-     * @param socket socket to send to
-     * @throws IOException
-     */
-    public static void sendFile(File file, Socket socket) throws IOException {
-        try (BufferedOutputStream bos
-                = new BufferedOutputStream(socket.getOutputStream());
-                BufferedInputStream bis
-                = new BufferedInputStream(new FileInputStream(file))) {
-            byte[] b = new byte[256];
-            int read = -1;
-            while ((read = bis.read(b)) >= 0) {
-                bos.write(b, 0, read);
-            }
-        }
+        String path = CardIndex.find(name);
+        return path == null? CardStore.findPath(name) : path;
     }
 
     /**
@@ -202,6 +135,20 @@ public class Utilities {
         return name;
     }
 
+    /**
+     * Paints a placeholder of a card whose image is not loaded yet.
+     * @param g graphics to paint with
+     * @param w width of the card
+     * @param h height of the card
+     */
+    public static void paintPlaceholder(Graphics g, int w, int h) {
+        int arc = Math.max(4, Math.min(w, h) / 10);
+        g.setColor(PLACEHOLDER);
+        g.fillRoundRect(0, 0, w - 1, h - 1, arc, arc);
+        g.setColor(PLACEHOLDER.brighter());
+        g.drawRoundRect(0, 0, w - 1, h - 1, arc, arc);
+    }
+
     /**
      * Resizes BufferedImage to height equal <code>h</code> and
      * width equal <code>w</code>
@@ -0,0 +1,380 @@
+package server;
+
+import server.flags.*;
+import java.util.Random;
+import mtg.Debug;
+import mtg.Zone;
+import server.net.CardUpload;
+
+/**
+ * Handles actions received from players of a single table. It is called
+ * by a {@link Reactor} thread for every complete action read from
+ * a player's channel.
+ */
+class ActionHandler {
+
+    private final GameSession session;
+
+    ActionHandler(GameSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Handles an action received from a player.
+     * @param id player who sent the action
+     * @param object action received
+     * @throws Exception if an action cannot be handled
+     */
+    void handle(final int id, Action object) throws Exception {
+        object.requestor = id;
+
+        // DRAG IN PROGRESS - coalesced and sent on the next tick
+        if (object.getClass().equals(DragCard.class)
+                && ((DragCard) object).inProgress) {
+            if (session.getStatus() == Server.PLAYERS_CONNECTED) {
+                session.drags.offer((DragCard) object);
+            }
+            return;
+        }
+
+        Debug.p("Server received: " + object);
+
+        // MESSAGE
+        if (object.getClass().equals(Message.class)) {
+            session.sendToAll(object);
+
+        // DISCONNECT
+        } else if (object.getClass().equals(Disconnect.class)) {
+            session.drags.flushAll();
+            session.sendToAllExcept(id, object);
+            session.disconnect(id);
+            return;
+        }
+
+        // GAME NOT YET INITIALISED - only cards exchange is allowed
+        if (session.getStatus() != Server.PLAYERS_CONNECTED
+                && !object.getClass().equals(RequestCard.class)
+                && !object.getClass().equals(Ready.class)) {
+            return;
+        }
+
+        // DRAG
+        if (object.getClass().equals(DragCard.class)) {
+            session.drags.finish((DragCard) object);
+
+        // TAP CARD
+        } else if (object.getClass().equals(TapCard.class)) {
+            TapCard tc = (TapCard) object;
+            session.drags.flush(tc.ID);
+            session.game.tableTap(tc.ID, tc.tapped);
+            session.sendToAll(tc);
+
+        // MOVE CARD
+        } else if (object.getClass().equals(MoveCard.class)) {
+            session.drags.flush(((MoveCard) object).cardID);
+            handleMoveCard(id, (MoveCard) object);
+
+        // CHANGE HP OR POISON COUNTERS
+        } else if (object.getClass().equals(Player.class)) {
+            Player p = (Player) object;
+            if (p.poisonOrHealth == Player.HEALTH) {
+                session.game.playerSetHealth(p.target, p.newValue);
+                session.sendToAll(p);
+            } else if (p.poisonOrHealth == Player.POISON) {
+                session.game.playerSetPoison(p.target, p.newValue);
+                session.sendToAll(p);
+            }
+
+        // UNTAP ALL
+        } else if (object.getClass().equals(UntapAll.class)) {
+            session.game.tableUntapAll(id);
+            session.sendToAll(object);
+
+        // SEARCH
+        } else if (object.getClass().equals(Search.class)) {
+            Search s = (Search) object;
+            switch (s.zone) {
+                case LIBRARY:
+                    if (s.amount < -1 || s.amount == 0) {
+                        return; // ignore client's request
+                    }
+                    s.cardsIDs = session.game.librarySearch(id, s.amount);
+                    if (s.amount >= session.game.libraryGetSize(id)) {
+                        s.amount = -1;
+                    }
+                    break;
+                case GRAVEYARD:
+                    s.cardsIDs = session.game.graveyardView(s.zoneOwner);
+                    break;
+                case EXILED:
+                    s.cardsIDs = session.game.exiledView(s.zoneOwner);
+                    break;
+            }
+            session.sendToAllInvisible(s);
+
+        // SHUFFLE
+        } else if (object.getClass().equals(Shuffle.class)) {
+            session.game.libraryShuffle(id);
+            session.sendToAll(object);
+
+        // REVEAL
+        } else if (object.getClass().equals(Reveal.class)) {
+            Reveal r = (Reveal) object;
+            if (r.source == Zone.TOP_LIBRARY) {
+                Card c = session.game.libraryGetTop(id);
+                if (c != null) {
+                    r.cardID = c.ID;
+                    session.sendToAll(r);
+                }
+            }
+            
+       // CREATE TOKEN
+        } else if (object.getClass().equals(CreateToken.class)) {
+            CreateToken ct = (CreateToken) object;
+            ct.cardID = session.game.createToken(ct);
+            session.sendToAll(ct);
+            
+        // RANDOM VALUE
+        } else if (object.getClass().equals(RandomValue.class)) {
+            RandomValue rv = (RandomValue) object;
+            rv.value = new Random().nextInt(rv.max);
+            session.sendToAll(rv);
+            
+        // RESTART
+        } else if (object.getClass().equals(Restart.class)) {
+            Restart r = (Restart) object;
+            session.drags.flushAll();
+            r.IDs = session.game.restart(id);
+            r.deckSize = session.getDeckSize(id);
+            session.sendToAllInvisible(r);
+            
+        // RANDOM CARD
+        } else if (object.getClass().equals(RandomCard.class)) {
+            RandomCard rc = (RandomCard) object;
+            rc.cardID = session.game.handRandomCard(id);
+            session.sendToAll(rc);
+            
+         //REQUEST CARD
+        } else if (object.getClass().equals(RequestCard.class)) {
+            RequestCard t = (RequestCard) object;
+            session.upload(id, new CardUpload(t.names, t.hashes, t.offsets));
+            
+        // READY
+        } else if (object.getClass().equals(Ready.class)) {
+            session.ready(id, ((Ready) object).decks);
+
+        // BATCH
+        } else if (object.getClass().equals(Batch.class)) {
+            final Action[] actions = ((Batch) object).actions;
+            session.batch(id, new Runnable() {
+                @Override
+                public void run() {
+                    for (Action a : actions) {
+                        if (!isBatchable(a)) {
+                            Debug.p("Server: " + a + " cannot be batched",
+                                    Debug.W);
+                            continue;
+                        }
+                        try {
+                            handle(id, a);
+                        } catch (Exception ex) {
+                            Debug.p("Server: Error while handling batched "
+                                    + a + ": " + ex, Debug.E);
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns true if an action may be a part of a {@link Batch} - if it
+     * only changes the game.
+     */
+    private static boolean isBatchable(Action a) {
+        return !a.getClass().equals(Disconnect.class)
+                && !a.getClass().equals(RequestCard.class)
+                && !a.getClass().equals(Ready.class)
+                && !a.getClass().equals(Batch.class);
+    }
+
+    private void handleMoveCard(int id, MoveCard mc) {
+        Card card = null;
+        switch (mc.source) {
+            case HAND:
+                switch (mc.destination) {
+                    case TABLE:
+                        if (session.game.handPlay(id, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case GRAVEYARD:
+                        if (session.game.handDestroy(id, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case EXILED:
+                        if (session.game.handExile(id, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case LIBRARY:
+                        throw new UnsupportedOperationException("Illegal move");
+                    case TOP_LIBRARY:
+                        if (session.game.handToLibrary(mc.requestor, mc.cardID)) {
+                            if (mc.reveal) {
+                                session.sendToAll(mc);
+                            } else {
+                                session.sendToAllInvisible(mc);
+                            }
+                        }
+                        break;
+                }
+                break;
+            case TABLE:
+                if (mc.cardID.charAt(1) == 'X') {
+                    if (session.game.tableDestroy(mc.cardID)) {
+                        session.sendToAll(mc);
+                    }
+                    break;
+                }
+                switch (mc.destination) {
+                    case HAND:
+                        if (session.game.tableTake(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case GRAVEYARD:
+                        if (session.game.tableDestroy(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case EXILED:
+                        if (session.game.tableExile(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case LIBRARY:
+                        throw new UnsupportedOperationException("Illegal move");
+                    case TOP_LIBRARY:
+                        if (session.game.tablePutOnTopOfLibrary(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                }
+                break;
+            case GRAVEYARD:
+                switch (mc.destination) {
+                    case HAND:
+                        if (session.game.graveyardToHand(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case TABLE:
+                        if (session.game.graveyardPlay(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case EXILED:
+                        if (session.game.graveyardExile(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case LIBRARY:
+                        throw new UnsupportedOperationException("Illegal move");
+                    case TOP_LIBRARY:
+                        if (session.game.graveyardToLibrary(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                }
+                break;
+            case EXILED:
+                switch (mc.destination) {
+                    case HAND:
+                        if (session.game.exiledToHand(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case TABLE:
+                        if (session.game.exiledPlay(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case GRAVEYARD:
+                        if (session.game.exiledToGraveyard(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case LIBRARY:
+                        throw new UnsupportedOperationException("Illegal move");
+                    case TOP_LIBRARY:
+                        if (session.game.exiledToLibrary(mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                }
+                break;
+            case LIBRARY:
+                switch (mc.destination) {
+                    case HAND:
+                        if (session.game.libraryToHand(mc.requestor, mc.cardID)) {
+                            if (mc.reveal) {
+                                session.sendToAll(mc);
+                            } else {
+                                session.sendToAllInvisible(mc);
+                            }
+                        }
+                        break;
+                    case TABLE:
+                        if (session.game.libraryPlay(mc.requestor, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case GRAVEYARD:
+                        if (session.game.libraryDestroy(mc.requestor, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case EXILED:
+                        if (session.game.libraryExile(mc.requestor, mc.cardID)) {
+                            session.sendToAll(mc);
+                        }
+                        break;
+                    case TOP_LIBRARY:
+                        if (session.game.libraryToTop(mc.requestor, mc.cardID)) {
+                            if (mc.reveal) {
+                                session.sendToAll(mc);
+                            } else {
+                                session.sendToAllInvisible(mc);
+                            }
+                        }
+                        break;
+                }
+                break;
+            case TOP_LIBRARY:
+                switch (mc.destination) {
+                    case HAND:
+                        if ((card = session.game.libraryDraw(id)) != null) {
+                            session.sendToAllInvisible(new MoveCard(
+                                    Zone.TOP_LIBRARY, Zone.HAND, id, card.ID));
+                        }
+                        break;
+                    case TABLE:
+                        if ((card = session.game.libraryPlayTop(id)) != null){
+                            session.sendToAll(new MoveCard(
+                                    Zone.TOP_LIBRARY, Zone.TABLE, id, card.ID));
+                        }
+                        break;
+                    case GRAVEYARD:
+                        throw new UnsupportedOperationException(); //TODO this move is legal
+                    case EXILED:
+                        throw new UnsupportedOperationException(); //TODO this move is legal
+                    case LIBRARY:
+                        throw new UnsupportedOperationException("Illegal move");
+                }
+                break;
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package server;
+
+import bench.Benchmark;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import mtg.Deck;
+
+/**
+ * Benchmarks of zones and games, run by {@link bench.Harness}. They live
+ * in this package, because {@link Collection} and {@link Game} are not
+ * public.
+ */
+public class Benchmarks {
+    /**
+     * Sizes of collections: a library, a busy table and a stress size.
+     */
+    private static final String[] SIZES = {"60", "1000", "10000"};
+
+    private Benchmarks() {}
+
+    /**
+     * Returns benchmarks of {@link Collection} operations.
+     * @return benchmarks of collections
+     */
+    public static List<Benchmark> collection() {
+        List<Benchmark> r = new ArrayList<>();
+        r.add(new CollectionBenchmark("Collection.removeCard") {
+            @Override
+            protected long run(int thread) {
+                String id = ids[next++ % ids.length];
+                collection.removeCard(id);
+                collection.addCard(new Card(null, id));
+                return collection.getSize();
+            }
+        });
+        r.add(new CollectionBenchmark("Collection.contains") {
+            @Override
+            protected long run(int thread) {
+                return collection.contains(ids[next++ % ids.length])? 1 : 0;
+            }
+        });
+        r.add(new CollectionBenchmark("Collection.getLast") {
+            @Override
+            protected long run(int thread) {
+                return collection.getLast(7).length;
+            }
+        });
+        r.add(new CollectionBenchmark("Collection.shuffle") {
+            @Override
+            protected long run(int thread) {
+                return collection.shuffle().length;
+            }
+        });
+        r.add(new CollectionBenchmark("Collection.transferCardsTo") {
+            private Collection other;
+
+            @Override
+            protected void setUp(String param, int threads) {
+                super.setUp(param, threads);
+                other = new Collection();
+            }
+
+            @Override
+            protected long run(int thread) {
+                collection.transferCardsTo(other, 0);
+                other.transferCardsTo(collection, 0);
+                return collection.getSize();
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Returns benchmarks of {@link Game} zone moves. Every thread plays
+     * cards of one player, so with more threads than players, threads
+     * contend for the same player's zones, and all threads contend for
+     * the table.
+     * @return benchmarks of games
+     */
+    public static List<Benchmark> game() {
+        List<Benchmark> r = new ArrayList<>();
+        r.add(new Benchmark("Game.moveCycle", new int[] {1, 2, 4, 8},
+                "2", "4") {
+            private Game game;
+            private int players;
+
+            @Override
+            protected void setUp(String param, int threads) {
+                players = Integer.parseInt(param);
+                Deck[] decks = new Deck[players];
+                for (int i = 0; i < players; i++) {
+                    decks[i] = new Deck();
+                    decks[i].addCard("Forest", 60);
+                }
+                game = new Game(decks, null);
+            }
+
+            /**
+             * Draws a card, plays it, takes it back to hand and puts it on
+             * top of the library.
+             */
+            @Override
+            protected long run(int thread) throws Exception {
+                int player = thread % players;
+                Card card = game.libraryDraw(player);
+                if (card == null
+                        || !game.handPlay(player, card.ID)
+                        || !game.tableTake(card.ID)
+                        || !game.handToLibrary(player, card.ID)) {
+                    throw new IllegalStateException("Move failed");
+                }
+                return card.ID.length();
+            }
+        });
+        return r;
+    }
+
+    /**
+     * Collection of <code>param</code> cards, half of them owned by player 0.
+     */
+    private static abstract class CollectionBenchmark extends Benchmark {
+        Collection collection;
+        String[] ids;
+        int next;
+
+        CollectionBenchmark(String name) {
+            super(name, SIZES);
+        }
+
+        @Override
+        protected void setUp(String param, int threads) {
+            int size = Integer.parseInt(param);
+            collection = new Collection();
+            ids = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (char) ('A' + i % 2) + "" + i;
+                collection.addCard(new Card(null, ids[i]));
+            }
+            // look cards up in random order
+            Random random = new Random(size);
+            for (int i = size - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                String t = ids[i];
+                ids[i] = ids[j];
+                ids[j] = t;
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package server;
 
+import server.flags.CreateToken;
+
 /**
  * @author Jaroslaw Pawlak
  */
@@ -7,6 +9,17 @@ public class Card {
 
     String name;
     String ID;
+    /**
+     * Position and tap state of a card on the table. Position is -1 until
+     * the card is moved after it has been played.
+     */
+    int x = -1;
+    int y = -1;
+    boolean tapped;
+    /**
+     * Description of a token, null for cards.
+     */
+    CreateToken token;
 
     private Card() {}
 
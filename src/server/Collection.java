@@ -1,27 +1,57 @@
 package server;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Random;
 import mtg.Debug;
 
 /**
  * @author Jaroslaw Pawlak
+ *
+ * Ordered collection of cards (a zone) with an index of cards' IDs. Cards
+ * are kept in order in which they were added, so the last card is the top
+ * of a library. Finding and removing a card by its ID takes constant time:
+ * a removed card leaves an empty slot, which is skipped, and slots are
+ * compacted once there are more empty slots than cards.
+ * <p>
+ * IDs may be assigned after cards are added (see {@link Game}), so the index
+ * is rebuilt lazily when a card without an ID has been added.
  */
 class Collection {
     private ArrayList<Card> cards;
+    /**
+     * card's ID -> its position in <code>cards</code>
+     */
+    private HashMap<String, Integer> positions;
+    private int size;
+    private boolean indexed;
 
     Collection() {
         cards = new ArrayList<>();
+        positions = new HashMap<>();
+        indexed = true;
     }
 
     void addCard(Card card) {
         if (card != null) {
+            if (card.ID == null) {
+                indexed = false;
+            } else if (indexed) {
+                positions.put(card.ID, cards.size());
+            }
             cards.add(card);
+            size++;
         }
     }
 
     Card removeCard(String ID) {
-        cards.remove(new Card(null, ID));
+        Integer i = index().get(ID);
+        if (i != null) {
+            positions.remove(ID);
+            cards.set(i, null);
+            size--;
+            trim();
+        }
         if (ID.charAt(1) == 'X') {
             return null;
         } else {
@@ -30,11 +60,12 @@ class Collection {
     }
 
     Card get(int i) {
+        compact();
         return cards.get(i);
     }
 
     int getSize() {
-        return cards.size();
+        return size;
     }
 
     /**
@@ -42,7 +73,7 @@ class Collection {
      * @return the last card in the collection or null if a collection is empty
      */
     Card getLast() {
-        if (cards.isEmpty()) {
+        if (size == 0) {
             return null;
         } else {
             return cards.get(cards.size() - 1);
@@ -59,16 +90,21 @@ class Collection {
      * a collection
      */
     Card[] getLast(int amount) {
-        if (amount == -1 || amount >= cards.size()) {
-            Card[] r = new Card[cards.size()];
+        if (amount == -1 || amount >= size) {
+            compact();
+            Card[] r = new Card[size];
             return cards.toArray(r);
         } else if (amount == 0 || amount < -1) {
             return new Card[0];
         } else {
             Card[] x = new Card[amount];
+            int j = cards.size() - 1;
             for (int i = 0; i < amount; i++) {
+                while (cards.get(j) == null) {
+                    j--;
+                }
                 try {
-                    x[i] = (Card) cards.get(cards.size() - 1 - i).clone();
+                    x[i] = (Card) cards.get(j--).clone();
                 } catch (CloneNotSupportedException ex) {
                     //this should never happen
                     Debug.p(ex + " while cloning card", Debug.E);
@@ -79,25 +115,62 @@ class Collection {
     }
 
     Card removeLast() {
-        return cards.remove(cards.size() - 1);
+        Card c = cards.remove(cards.size() - 1);
+        if (c.ID != null) {
+            positions.remove(c.ID);
+        }
+        size--;
+        trim();
+        return c;
     }
 
     boolean contains(String cardID) {
-        return cards.contains(new Card(null, cardID));
+        return index().containsKey(cardID);
+    }
+
+    /**
+     * Returns the card of given ID or null if there is no such card.
+     * @param cardID card's ID
+     * @return card or null
+     */
+    Card find(String cardID) {
+        Integer i = index().get(cardID);
+        return i == null? null : cards.get(i);
     }
 
-    void shuffle() {
+    /**
+     * Shuffles the collection and returns the swaps made, so the same shuffle
+     * can be repeated by {@link #shuffle(int[])}.
+     * @return position swapped with each consecutive position
+     */
+    int[] shuffle() {
+        compact();
         Random r = new Random();
+        int[] swaps = new int[cards.size()];
+        for (int i = 0; i < swaps.length; i++) {
+            swaps[i] = r.nextInt(cards.size());
+        }
+        shuffle(swaps);
+        return swaps;
+    }
+
+    /**
+     * Repeats a shuffle returned by {@link #shuffle()}.
+     * @param swaps position swapped with each consecutive position
+     */
+    void shuffle(int[] swaps) {
+        compact();
         int n;
         Card t;
-        for (int i = 0; i < cards.size(); i++) {
-            n = r.nextInt(cards.size());
+        for (int i = 0; i < cards.size() && i < swaps.length; i++) {
+            n = swaps[i];
             t = cards.get(i);
             cards.set(i, cards.get(n));
             cards.set(n, t);
         }
+        indexed = false;
     }
-    
+
     /**
      * Moves all cards owned by requested player from <code>this</code>
      * collection to <code>c</code> collection.
@@ -105,12 +178,67 @@ class Collection {
      * @param player player
      */
     void transferCardsTo(Collection c, int player) {
+        ArrayList<Card> kept = new ArrayList<>(cards.size());
+        for (Card e : cards) {
+            if (e == null || e.ID.charAt(1) == 'X') { //empty slot or token
+                continue;
+            } else if (e.ID.charAt(0) == player + 'A') {
+                c.addCard(e);
+            } else {
+                kept.add(e);
+            }
+        }
+        cards = kept;
+        size = kept.size();
+        indexed = false;
+    }
+
+    /**
+     * Returns the index of cards' IDs, rebuilding it if needed.
+     */
+    private HashMap<String, Integer> index() {
+        if (!indexed) {
+            compact();
+            positions.clear();
+            for (int i = 0; i < cards.size(); i++) {
+                positions.put(cards.get(i).ID, i);
+            }
+            indexed = true;
+        }
+        return positions;
+    }
+
+    /**
+     * Removes empty slots from the top, so the last slot is always a card,
+     * and compacts the collection if most slots are empty.
+     */
+    private void trim() {
+        while (!cards.isEmpty() && cards.get(cards.size() - 1) == null) {
+            cards.remove(cards.size() - 1);
+        }
+        if (cards.size() > 2 * size + 16) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes all empty slots keeping cards' order.
+     */
+    private void compact() {
+        if (cards.size() == size) {
+            return;
+        }
+        int j = 0;
         for (int i = 0; i < cards.size(); i++) {
-            if (cards.get(i).ID.charAt(1) == 'X') { //token
-                cards.remove(i--);
-            } else if (cards.get(i).ID.charAt(0) == player + 'A') {
-                c.addCard(cards.remove(i--));
+            Card e = cards.get(i);
+            if (e != null) {
+                cards.set(j, e);
+                if (indexed) {
+                    positions.put(e.ID, j);
+                }
+                j++;
             }
         }
+        cards.subList(j, cards.size()).clear();
     }
 }
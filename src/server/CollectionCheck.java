@@ -0,0 +1,218 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks {@link Collection} against a plain list of cards, which is how
+ * collections used to be kept. Random operations - adding cards with and
+ * without IDs, removing cards from the middle and the top, shuffling,
+ * transferring cards between collections and reading the top cards - are
+ * applied to both and their results are compared. Swaps of a shuffle are
+ * repeated on the list. The whole content is compared after a random
+ * operation now and then, as reading it removes empty slots left by
+ * removed cards.
+ * <p>
+ * Usage: <code>server.CollectionCheck [seed]</code>, the number of
+ * operations is set by <code>mtg.check.operations</code>. Exits with
+ * status 1 and prints the seed and the operation at the first difference.
+ */
+public class CollectionCheck {
+    private static final int OPERATIONS
+            = Integer.getInteger("mtg.check.operations", 200000);
+    private static final int PLAYERS = 3;
+    /**
+     * No cards are added to a collection of this size.
+     */
+    private static final int LIMIT = 300;
+
+    private final Random random;
+    private final Collection[] collections = new Collection[PLAYERS];
+    private final ArrayList<ArrayList<Card>> lists = new ArrayList<>();
+    private int next;
+
+    private CollectionCheck(long seed) {
+        random = new Random(seed);
+        for (int i = 0; i < PLAYERS; i++) {
+            collections[i] = new Collection();
+            lists.add(new ArrayList<Card>());
+        }
+    }
+
+    public static void main(String[] args) {
+        long seed = args.length > 0? Long.parseLong(args[0])
+                : System.nanoTime();
+        CollectionCheck check = new CollectionCheck(seed);
+        for (int i = 0; i < OPERATIONS; i++) {
+            String difference = check.step();
+            if (difference != null) {
+                System.out.println("FAILED seed " + seed + ", operation " + i
+                        + ": " + difference);
+                System.exit(1);
+            }
+        }
+        System.out.println(OPERATIONS + " operations, seed " + seed + ", OK");
+        System.exit(0);
+    }
+
+    /**
+     * Applies a random operation to a collection and its list.
+     * @return description of a difference or null if there is none
+     */
+    private String step() {
+        int z = random.nextInt(PLAYERS);
+        Collection c = collections[z];
+        ArrayList<Card> l = lists.get(z);
+        int op = l.size() < LIMIT? random.nextInt(100) : 35 + random.nextInt(65);
+        String r;
+        if (op < 30) {
+            String ID = newID();
+            Card card = new Card("card " + ID, ID);
+            c.addCard(card);
+            l.add(card);
+            r = null;
+        } else if (op < 35) {
+            // cards are added without IDs and get them later, as in a game
+            int amount = 1 + random.nextInt(8);
+            Card[] added = new Card[amount];
+            for (int i = 0; i < amount; i++) {
+                added[i] = new Card("card");
+                c.addCard(added[i]);
+                l.add(added[i]);
+            }
+            for (Card e : added) {
+                e.ID = newID();
+            }
+            r = null;
+        } else if (op < 55) {
+            String ID = l.isEmpty() || random.nextInt(8) == 0? newID()
+                    : l.get(random.nextInt(l.size())).ID;
+            r = compare("removeCard(" + ID + ")", c.removeCard(ID),
+                    oldRemoveCard(l, ID));
+        } else if (op < 60) {
+            r = l.isEmpty()? null : compare("removeLast()", c.removeLast(),
+                    l.remove(l.size() - 1));
+        } else if (op < 70) {
+            int amount = random.nextInt(l.size() + 4) - 2;
+            r = compare("getLast(" + amount + ")", c.getLast(amount),
+                    oldGetLast(l, amount));
+        } else if (op < 75) {
+            r = compare("getLast()", c.getLast(),
+                    l.isEmpty()? null : l.get(l.size() - 1));
+        } else if (op < 85) {
+            String ID = l.isEmpty() || random.nextInt(4) == 0? newID()
+                    : l.get(random.nextInt(l.size())).ID;
+            r = c.contains(ID) == l.contains(new Card(null, ID))? null
+                    : "contains(" + ID + ") differs";
+        } else if (op < 90) {
+            oldShuffle(l, c.shuffle());
+            r = null;
+        } else if (op < 95) {
+            int to = (z + 1 + random.nextInt(PLAYERS - 1)) % PLAYERS;
+            int player = random.nextInt(PLAYERS);
+            c.transferCardsTo(collections[to], player);
+            oldTransferCardsTo(l, lists.get(to), player);
+            r = compare("transferCardsTo(" + to + ")", collections[to],
+                    lists.get(to));
+        } else {
+            r = l.isEmpty()? null : compare("get()", c.get(0), l.get(0));
+        }
+        // reading all cards compacts a collection, so it is done rarely
+        // to let empty slots pile up
+        return r != null || random.nextInt(64) != 0? r
+                : compare("content", c, l);
+    }
+
+    private String newID() {
+        int owner = random.nextInt(PLAYERS);
+        return (char) ('A' + owner) + (random.nextInt(10) == 0? "X" : "")
+                + next++;
+    }
+
+    private static String compare(String operation, Collection c,
+            ArrayList<Card> l) {
+        if (c.getSize() != l.size()) {
+            return operation + ": size " + c.getSize() + ", expected "
+                    + l.size();
+        }
+        for (int i = 0; i < l.size(); i++) {
+            String r = compare(operation + " at " + i, c.get(i), l.get(i));
+            if (r != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private static String compare(String operation, Card[] actual,
+            Card[] expected) {
+        if (actual.length != expected.length) {
+            return operation + ": " + Arrays.toString(actual) + ", expected "
+                    + Arrays.toString(expected);
+        }
+        for (int i = 0; i < expected.length; i++) {
+            String r = compare(operation + " at " + i, actual[i], expected[i]);
+            if (r != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    private static String compare(String operation, Card actual, Card expected) {
+        boolean same = actual == null? expected == null : expected != null
+                && String.valueOf(actual.ID).equals(String.valueOf(expected.ID))
+                && String.valueOf(actual.name).equals(String.valueOf(expected.name));
+        return same? null : operation + ": " + actual + ", expected " + expected;
+    }
+
+    /*
+     * Operations as they were implemented on a plain list.
+     */
+
+    private static Card oldRemoveCard(ArrayList<Card> l, String ID) {
+        l.remove(new Card(null, ID));
+        if (ID.charAt(1) == 'X') {
+            return null;
+        } else {
+            return new Card(null, ID);
+        }
+    }
+
+    private static Card[] oldGetLast(ArrayList<Card> l, int amount) {
+        if (amount == -1 || amount >= l.size()) {
+            return l.toArray(new Card[l.size()]);
+        } else if (amount == 0 || amount < -1) {
+            return new Card[0];
+        } else {
+            Card[] x = new Card[amount];
+            for (int i = 0; i < amount; i++) {
+                x[i] = l.get(l.size() - 1 - i);
+            }
+            return x;
+        }
+    }
+
+    private static void oldShuffle(ArrayList<Card> l, int[] swaps) {
+        int n;
+        Card t;
+        for (int i = 0; i < l.size(); i++) {
+            n = swaps[i];
+            t = l.get(i);
+            l.set(i, l.get(n));
+            l.set(n, t);
+        }
+    }
+
+    private static void oldTransferCardsTo(ArrayList<Card> l,
+            ArrayList<Card> c, int player) {
+        for (int i = 0; i < l.size(); i++) {
+            if (l.get(i).ID.charAt(1) == 'X') { //token
+                l.remove(i--);
+            } else if (l.get(i).ID.charAt(0) == player + 'A') {
+                c.add(l.remove(i--));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import server.flags.DragCard;
+
+/**
+ * Coalesces drags in progress of a single table. Clients stream positions
+ * of cards being dragged, while this class keeps only the latest position
+ * of each card and sends it to the other players on every tick, so
+ * the outbound traffic does not depend on how fast players move their mice.
+ * <p>
+ * A pending drag of a card is sent before any other action concerning that
+ * card (see {@link #flush(String)}), so players never see a card move after
+ * it has been tapped or left the table. All methods send while holding
+ * the lock, which keeps a drag and a following action in order even if they
+ * are sent by different threads.
+ * <p>
+ * Every position sent is also set in the {@link Game}, so a player who has
+ * missed it receives it in a {@link server.flags.GameState}.
+ */
+class DragStream {
+    /**
+     * Interval between sending coalesced drags in milliseconds.
+     */
+    static final long TICK = 50;
+
+    private final GameSession session;
+    private final LinkedHashMap<String, DragCard> pending;
+
+    DragStream(GameSession session) {
+        this.session = session;
+        this.pending = new LinkedHashMap<>();
+    }
+
+    /**
+     * Stores the latest position of a card being dragged. It replaces
+     * a position received earlier which has not been sent yet.
+     * @param dc drag in progress
+     */
+    synchronized void offer(DragCard dc) {
+        pending.put(dc.ID, dc);
+    }
+
+    /**
+     * Sends a pending drag of a card immediately. It should be called before
+     * sending any other action concerning that card.
+     * @param ID card's ID, may be null
+     */
+    synchronized void flush(String ID) {
+        if (ID == null) {
+            return;
+        }
+        DragCard dc = pending.remove(ID);
+        if (dc != null) {
+            moved(dc);
+            session.sendToAllExcept(dc.requestor, dc);
+        }
+    }
+
+    /**
+     * Drops a pending drag of a card and sends its final position to all
+     * players.
+     * @param dc finished drag
+     */
+    synchronized void finish(DragCard dc) {
+        pending.remove(dc.ID);
+        moved(dc);
+        session.sendToAll(dc);
+    }
+
+    /**
+     * Sends all pending drags in order in which cards started moving.
+     * Called on every tick.
+     */
+    synchronized void flushAll() {
+        Iterator<DragCard> it = pending.values().iterator();
+        while (it.hasNext()) {
+            DragCard dc = it.next();
+            it.remove();
+            moved(dc);
+            session.sendToAllExcept(dc.requestor, dc);
+        }
+    }
+
+    /**
+     * Sets a new position of a card in the game.
+     */
+    private void moved(DragCard dc) {
+        Game game = session.game;
+        if (game != null) {
+            game.tableDrag(dc.ID, dc.newxpos, dc.newypos);
+        }
+    }
+}
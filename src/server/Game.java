@@ -1,10 +1,15 @@
 package server;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import mtg.Debug;
 import mtg.Deck;
 import server.flags.CreateToken;
+import server.flags.GameState;
 
 /**
  * @author Jaroslaw Pawlak
@@ -16,6 +21,14 @@ import server.flags.CreateToken;
  * if player's library is empty, player cannot draw a card so nothing has
  * to be sent to clients. Possibility of drawing a card from empty library
  * should be also disabled at client side, but a server has to be error-safe.
+ * <p>
+ * Each player's zones are guarded by that player's lock and the table by
+ * a separate lock, so players acting on their own zones do not wait for each
+ * other. A method which needs both always takes the player's lock first and
+ * the table lock second. No method holds locks of two players, except
+ * {@link #atomically(Runnable)} and snapshots, which take all of them.
+ * <p>
+ * Every mutation is recorded in a {@link Journal}, if the game has one.
  */
 class Game {
     private Collection[] library;
@@ -29,14 +42,30 @@ class Game {
 
     private TreeMap<String, String> cardsList;
 
+    /**
+     * locks[p] guards all zones, health and poison of player p
+     */
+    private Object[] locks;
+    private final Object tableLock = new Object();
+    private Journal journal;
+
     private Game() {}
 
-    Game(Deck[] decks) {
+    /**
+     * Creates a new game with shuffled libraries.
+     * @param decks players' decks
+     * @param journal journal of the game, may be null
+     */
+    Game(Deck[] decks, Journal journal) {
         library = new Collection[decks.length];
         hand = new Collection[decks.length];
         graveyard = new Collection[decks.length];
         exiled = new Collection[decks.length];
         table = new Collection();
+        locks = new Object[decks.length];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
         health = new int[decks.length];
         for (int i = 0; i < health.length; i++) {
             health[i] = 20;
@@ -72,6 +101,53 @@ class Game {
             }
             code++;
         }
+
+        this.journal = journal;
+        if (journal != null) {
+            journal.start(this);
+        }
+    }
+
+    /**
+     * Restores a game from a snapshot written by
+     * {@link #snapshot(DataOutputStream, Journal)}, after its sequence number
+     * has been read. The game is not journaled.
+     * @param in stream to read from
+     * @throws IOException if the snapshot cannot be read
+     */
+    Game(DataInputStream in) throws IOException {
+        int players = in.readShort();
+        library = new Collection[players];
+        hand = new Collection[players];
+        graveyard = new Collection[players];
+        exiled = new Collection[players];
+        locks = new Object[players];
+        health = new int[players];
+        poison = new int[players];
+        tokens = new int[players];
+        cardsList = new TreeMap<>();
+        String[][] zones = new String[players * 4 + 1][];
+        for (int p = 0; p < players; p++) {
+            locks[p] = new Object();
+            health[p] = in.readInt();
+            poison[p] = in.readInt();
+            tokens[p] = in.readInt();
+            for (int z = 0; z < 4; z++) {
+                zones[p * 4 + z] = readIDs(in);
+            }
+        }
+        zones[players * 4] = readIDs(in);
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            cardsList.put(in.readUTF(), in.readUTF());
+        }
+        for (int p = 0; p < players; p++) {
+            library[p] = collection(zones[p * 4]);
+            hand[p] = collection(zones[p * 4 + 1]);
+            graveyard[p] = collection(zones[p * 4 + 2]);
+            exiled[p] = collection(zones[p * 4 + 3]);
+        }
+        table = collection(zones[players * 4]);
     }
 
     /**
@@ -86,6 +162,20 @@ class Game {
         return cardsList;
     }
 
+    /**
+     * Returns an owner of a card or -1 if the ID is invalid.
+     * @param cardID card's ID
+     * @return owner's index or -1
+     */
+    private int owner(String cardID) {
+        int player = cardID.charAt(0) - 'A';
+        if (player < 0 || player >= library.length) {
+            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
+            return -1;
+        }
+        return player;
+    }
+
 ////////////////////////////////////////////////////////////////////////////////
 /////////////////////////////////// LIBRARY ////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////
@@ -96,13 +186,16 @@ class Game {
      * @param player player who draws a card
      * @return top card of library or null if library is empty
      */
-    synchronized Card libraryDraw(int player) {
-        if (library[player].getSize() > 0) {
-            Card c = library[player].removeLast();
-            hand[player].addCard(c);
-            return c;
-        } else {
-            return null;
+    Card libraryDraw(int player) {
+        synchronized (locks[player]) {
+            if (library[player].getSize() > 0) {
+                Card c = library[player].removeLast();
+                hand[player].addCard(c);
+                record(Journal.LIBRARY_DRAW, player, null);
+                return c;
+            } else {
+                return null;
+            }
         }
     }
 
@@ -113,13 +206,15 @@ class Game {
      * @param amount the amount of cards to be returned
      * @return array of cards' IDs
      */
-    synchronized String[] librarySearch(int player, int amount) {
-        Card[] x = library[player].getLast(amount);
-        String[] result = new String[x.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = x[i].ID;
+    String[] librarySearch(int player, int amount) {
+        synchronized (locks[player]) {
+            Card[] x = library[player].getLast(amount);
+            String[] result = new String[x.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i].ID;
+            }
+            return result;
         }
-        return result;
     }
 
     /**
@@ -127,8 +222,10 @@ class Game {
      * @param player player
      * @return top card of player's library
      */
-    synchronized Card libraryGetTop(int player) {
-        return library[player].getLast();
+    Card libraryGetTop(int player) {
+        synchronized (locks[player]) {
+            return library[player].getLast();
+        }
     }
 
     /**
@@ -137,13 +234,18 @@ class Game {
      * @param player player
      * @return top card or null if library is empty
      */
-    synchronized Card libraryPlayTop(int player) {
-        if (library[player].getSize() == 0) {
-            return null;
-        } else {
-            Card c = library[player].removeLast();
-            table.addCard(c);
-            return c;
+    Card libraryPlayTop(int player) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (library[player].getSize() == 0) {
+                    return null;
+                } else {
+                    Card c = library[player].removeLast();
+                    play(c);
+                    record(Journal.LIBRARY_PLAY_TOP, player, null);
+                    return c;
+                }
+            }
         }
     }
 
@@ -155,12 +257,17 @@ class Game {
      * @return true if card is in the library and has been moved,
      * false otherwise
      */
-    synchronized boolean libraryPlay(int player, String cardID) {
-        if (library[player].contains(cardID)) {
-            table.addCard(library[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean libraryPlay(int player, String cardID) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (library[player].contains(cardID)) {
+                    play(library[player].removeCard(cardID));
+                    record(Journal.LIBRARY_PLAY, player, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
         }
     }
 
@@ -172,12 +279,15 @@ class Game {
      * @return true if card is in the library and has been moved,
      * false otherwise
      */
-    synchronized boolean libraryToHand(int player, String cardID) {
-        if (library[player].contains(cardID)) {
-            hand[player].addCard(library[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean libraryToHand(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (library[player].contains(cardID)) {
+                hand[player].addCard(library[player].removeCard(cardID));
+                record(Journal.LIBRARY_TO_HAND, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
     
@@ -189,12 +299,15 @@ class Game {
      * @return true if card is in the library and has been moved,
      * false otherwise
      */
-    synchronized boolean libraryToTop(int player, String cardID) {
-        if (library[player].contains(cardID)) {
-            library[player].addCard(library[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean libraryToTop(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (library[player].contains(cardID)) {
+                library[player].addCard(library[player].removeCard(cardID));
+                record(Journal.LIBRARY_TO_TOP, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
@@ -206,12 +319,15 @@ class Game {
      * @return true if card is in the library and has been moved,
      * false otherwise
      */
-    synchronized boolean libraryDestroy(int player, String cardID) {
-        if (library[player].contains(cardID)) {
-            graveyard[player].addCard(library[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean libraryDestroy(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (library[player].contains(cardID)) {
+                graveyard[player].addCard(library[player].removeCard(cardID));
+                record(Journal.LIBRARY_DESTROY, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
@@ -223,12 +339,15 @@ class Game {
      * @return true if card is in the library and has been moved,
      * false otherwise
      */
-    synchronized boolean libraryExile(int player, String cardID) {
-        if (library[player].contains(cardID)) {
-            exiled[player].addCard(library[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean libraryExile(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (library[player].contains(cardID)) {
+                exiled[player].addCard(library[player].removeCard(cardID));
+                record(Journal.LIBRARY_EXILE, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
@@ -236,8 +355,23 @@ class Game {
      * Shuffles library of requested player.
      * @param player player
      */
-    synchronized void libraryShuffle(int player) {
-        library[player].shuffle();
+    void libraryShuffle(int player) {
+        libraryShuffle(player, null);
+    }
+
+    /**
+     * Shuffles library of requested player repeating given swaps, or randomly
+     * if swaps are null.
+     */
+    private void libraryShuffle(int player, int[] swaps) {
+        synchronized (locks[player]) {
+            if (swaps == null) {
+                swaps = library[player].shuffle();
+            } else {
+                library[player].shuffle(swaps);
+            }
+            record(Journal.LIBRARY_SHUFFLE, player, null, -1, swaps);
+        }
     }
 
     /**
@@ -245,14 +379,27 @@ class Game {
      * @param player player whose library size is to be returned
      * @return size of a library
      */
-    synchronized int libraryGetSize(int player) {
-        return library[player].getSize();
+    int libraryGetSize(int player) {
+        synchronized (locks[player]) {
+            return library[player].getSize();
+        }
     }
 
 ////////////////////////////////////////////////////////////////////////////////
 //////////////////////////////////// HAND //////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Returns an array of cards' IDs in a player's hand
+     * @param player player
+     * @return array of cards IDs
+     */
+    String[] handView(int player) {
+        synchronized (locks[player]) {
+            return IDs(hand[player]);
+        }
+    }
+
     /**
      * Modifies server's game by moving requested card from hand to the table
      * if the hand really contained requested card.
@@ -261,12 +408,17 @@ class Game {
      * @return true if hand contained requested card and was played, false
      * otherwise
      */
-    synchronized boolean handPlay(int player, String cardID) {
-        if (hand[player].contains(cardID)) {
-            table.addCard(hand[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean handPlay(int player, String cardID) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (hand[player].contains(cardID)) {
+                    play(hand[player].removeCard(cardID));
+                    record(Journal.HAND_PLAY, player, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
         }
     }
 
@@ -278,12 +430,15 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean handToLibrary(int player, String cardID) {
-        if (hand[player].contains(cardID)) {
-            library[player].addCard(hand[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean handToLibrary(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (hand[player].contains(cardID)) {
+                library[player].addCard(hand[player].removeCard(cardID));
+                record(Journal.HAND_TO_LIBRARY, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
@@ -295,12 +450,15 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean handDestroy(int player, String cardID) {
-        if (hand[player].contains(cardID)) {
-            graveyard[player].addCard(hand[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean handDestroy(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (hand[player].contains(cardID)) {
+                graveyard[player].addCard(hand[player].removeCard(cardID));
+                record(Journal.HAND_DESTROY, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
@@ -312,41 +470,125 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean handExile(int player, String cardID) {
-        if (hand[player].contains(cardID)) {
-            exiled[player].addCard(hand[player].removeCard(cardID));
-            return true;
-        } else {
-            return false;
+    boolean handExile(int player, String cardID) {
+        synchronized (locks[player]) {
+            if (hand[player].contains(cardID)) {
+                exiled[player].addCard(hand[player].removeCard(cardID));
+                record(Journal.HAND_EXILE, player, cardID);
+                return true;
+            } else {
+                return false;
+            }
         }
     }
 
-    synchronized String handRandomCard(int player) {
-        return hand[player].get(new Random().nextInt(hand[player].getSize())).ID;
+    String handRandomCard(int player) {
+        synchronized (locks[player]) {
+            return hand[player].get(new Random().nextInt(hand[player].getSize())).ID;
+        }
     }
 
 ////////////////////////////////////////////////////////////////////////////////
 //////////////////////////////////// TABLE /////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Returns an array of IDs of all cards on the table, including tokens
+     * @return array of cards IDs
+     */
+    String[] tableView() {
+        synchronized (tableLock) {
+            return IDs(table);
+        }
+    }
+
+    private static String[] IDs(Collection c) {
+        Card[] cards = c.getLast(-1);
+        String[] result = new String[cards.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = cards[i].ID;
+        }
+        return result;
+    }
+
+    /**
+     * Puts a card on the table untapped, where it has not been moved yet.
+     * Called while holding the table lock.
+     */
+    private void play(Card c) {
+        c.x = -1;
+        c.y = -1;
+        c.tapped = false;
+        table.addCard(c);
+    }
+
+    /**
+     * Sets a position of a card on the table, if it is there. Positions and
+     * tap state are not journaled, they are kept only to be sent to players
+     * who have missed them (see {@link #state(int)}).
+     * @param cardID card's ID
+     * @param x new x position
+     * @param y new y position
+     */
+    void tableDrag(String cardID, int x, int y) {
+        synchronized (tableLock) {
+            Card c = table.find(cardID);
+            if (c != null) {
+                c.x = x;
+                c.y = y;
+            }
+        }
+    }
+
+    /**
+     * Taps or untaps a card on the table, if it is there.
+     * @param cardID card's ID
+     * @param tapped true if card is tapped
+     */
+    void tableTap(String cardID, boolean tapped) {
+        synchronized (tableLock) {
+            Card c = table.find(cardID);
+            if (c != null) {
+                c.tapped = tapped;
+            }
+        }
+    }
+
+    /**
+     * Untaps all cards and tokens on the table owned by a player.
+     * @param player player
+     */
+    void tableUntapAll(int player) {
+        synchronized (tableLock) {
+            for (Card c : table.getLast(-1)) {
+                if (c.ID.charAt(0) - 'A' == player) {
+                    c.tapped = false;
+                }
+            }
+        }
+    }
 
     /**
      * Moves requested card from the table to card's owner's hand.
      * @param cardID
      * @return true if card moved, false otherwise
      */
-    synchronized boolean tableTake(String cardID) {
-        if (table.contains(cardID)) {
-            int player = cardID.charAt(0) - 'A';
-            if (player < 0 || player > library.length) {
-                Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-                return false;
-            }
-            hand[player].addCard(table.removeCard(cardID));
-            return true;
-        } else {
+    boolean tableTake(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (table.contains(cardID)) {
+                    hand[player].addCard(table.removeCard(cardID));
+                    record(Journal.TABLE_TAKE, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -355,18 +597,22 @@ class Game {
      * @param cardID card's ID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean tablePutOnTopOfLibrary(String cardID) {
-        if (table.contains(cardID)) {
-            int player = cardID.charAt(0) - 'A';
-            if (player < 0 || player > library.length) {
-                Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-                return false;
-            }
-            library[player].addCard(table.removeCard(cardID));
-            return true;
-        } else {
+    boolean tablePutOnTopOfLibrary(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (table.contains(cardID)) {
+                    library[player].addCard(table.removeCard(cardID));
+                    record(Journal.TABLE_TO_LIBRARY, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -374,18 +620,22 @@ class Game {
      * @param cardID card's ID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean tableDestroy(String cardID) {
-        if (table.contains(cardID)) {
-            int player = cardID.charAt(0) - 'A';
-            if (player < 0 || player > library.length) {
-                Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-                return false;
-            }
-            graveyard[player].addCard(table.removeCard(cardID));
-            return true;
-        } else {
+    boolean tableDestroy(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (table.contains(cardID)) {
+                    graveyard[player].addCard(table.removeCard(cardID));
+                    record(Journal.TABLE_DESTROY, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -393,18 +643,22 @@ class Game {
      * @param cardID card's ID
      * @return true if card was on the table and has been moved, false otherwise
      */
-    synchronized boolean tableExile(String cardID) {
-        if (table.contains(cardID)) {
-            int player = cardID.charAt(0) - 'A';
-            if (player < 0 || player > library.length) {
-                Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-                return false;
-            }
-            exiled[player].addCard(table.removeCard(cardID));
-            return true;
-        } else {
+    boolean tableExile(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (table.contains(cardID)) {
+                    exiled[player].addCard(table.removeCard(cardID));
+                    record(Journal.TABLE_EXILE, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
 ////////////////////////////////////////////////////////////////////////////////
@@ -416,13 +670,15 @@ class Game {
      * @param player player
      * @return array of cards IDs
      */
-    synchronized String[] graveyardView(int player) {
-        Card[] x = graveyard[player].getLast(graveyard[player].getSize());
-        String[] result = new String[x.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = x[i].ID;
+    String[] graveyardView(int player) {
+        synchronized (locks[player]) {
+            Card[] x = graveyard[player].getLast(graveyard[player].getSize());
+            String[] result = new String[x.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i].ID;
+            }
+            return result;
         }
-        return result;
     }
 
     /**
@@ -432,17 +688,22 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean graveyardPlay(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (graveyard[player].contains(cardID)) {
-            table.addCard(graveyard[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean graveyardPlay(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (graveyard[player].contains(cardID)) {
+                    play(graveyard[player].removeCard(cardID));
+                    record(Journal.GRAVEYARD_PLAY, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -452,17 +713,20 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean graveyardToHand(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (graveyard[player].contains(cardID)) {
-            hand[player].addCard(graveyard[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean graveyardToHand(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (graveyard[player].contains(cardID)) {
+                hand[player].addCard(graveyard[player].removeCard(cardID));
+                record(Journal.GRAVEYARD_TO_HAND, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
     /**
@@ -472,17 +736,20 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean graveyardExile(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (graveyard[player].contains(cardID)) {
-            exiled[player].addCard(graveyard[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean graveyardExile(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (graveyard[player].contains(cardID)) {
+                exiled[player].addCard(graveyard[player].removeCard(cardID));
+                record(Journal.GRAVEYARD_EXILE, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
     /**
@@ -492,30 +759,35 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean graveyardToLibrary(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (graveyard[player].contains(cardID)) {
-            library[player].addCard(graveyard[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean graveyardToLibrary(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (graveyard[player].contains(cardID)) {
+                library[player].addCard(graveyard[player].removeCard(cardID));
+                record(Journal.GRAVEYARD_TO_LIBRARY, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
 ////////////////////////////////////////////////////////////////////////////////
 /////////////////////////////////// EXILED /////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////
 
-    synchronized String[] exiledView(int player) {
-        Card[] x = exiled[player].getLast(exiled[player].getSize());
-        String[] result = new String[x.length];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = x[i].ID;
+    String[] exiledView(int player) {
+        synchronized (locks[player]) {
+            Card[] x = exiled[player].getLast(exiled[player].getSize());
+            String[] result = new String[x.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = x[i].ID;
+            }
+            return result;
         }
-        return result;
     }
 
     /**
@@ -525,17 +797,22 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean exiledPlay(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (exiled[player].contains(cardID)) {
-            table.addCard(exiled[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean exiledPlay(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                if (exiled[player].contains(cardID)) {
+                    play(exiled[player].removeCard(cardID));
+                    record(Journal.EXILED_PLAY, -1, cardID);
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        }
     }
 
     /**
@@ -545,17 +822,20 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean exiledToHand(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (exiled[player].contains(cardID)) {
-            hand[player].addCard(exiled[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean exiledToHand(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (exiled[player].contains(cardID)) {
+                hand[player].addCard(exiled[player].removeCard(cardID));
+                record(Journal.EXILED_TO_HAND, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
     /**
@@ -565,17 +845,20 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean exiledToGraveyard(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (exiled[player].contains(cardID)) {
-            graveyard[player].addCard(exiled[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean exiledToGraveyard(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (exiled[player].contains(cardID)) {
+                graveyard[player].addCard(exiled[player].removeCard(cardID));
+                record(Journal.EXILED_TO_GRAVEYARD, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
     /**
@@ -584,69 +867,308 @@ class Game {
      * @param cardID cardID
      * @return true if card has been moved, false otherwise
      */
-    synchronized boolean exiledToLibrary(String cardID) {
-        int player = cardID.charAt(0) - 'A';
-        if (player < 0 || player > library.length) {
-            Debug.p("Received non-exisitng card's ID: " + cardID, Debug.W);
-            return false;
-        } else if (exiled[player].contains(cardID)) {
-            library[player].addCard(exiled[player].removeCard(cardID));
-            return true;
-        } else {
+    boolean exiledToLibrary(String cardID) {
+        int player = owner(cardID);
+        if (player == -1) {
             return false;
         }
+        synchronized (locks[player]) {
+            if (exiled[player].contains(cardID)) {
+                library[player].addCard(exiled[player].removeCard(cardID));
+                record(Journal.EXILED_TO_LIBRARY, -1, cardID);
+                return true;
+            } else {
+                return false;
+            }
+        }
     }
 
 ////////////////////////////////////////////////////////////////////////////////
 /////////////////////////////////// OTHER //////////////////////////////////////
 ////////////////////////////////////////////////////////////////////////////////
 
-    synchronized void playerSetPoison(int target, int value) {
-        poison[target] = value;
+    void playerSetPoison(int target, int value) {
+        synchronized (locks[target]) {
+            poison[target] = value;
+            record(Journal.SET_POISON, target, null, value, null);
+        }
     }
 
-    synchronized void playerSetHealth(int target, int value) {
-        health[target] = value;
+    void playerSetHealth(int target, int value) {
+        synchronized (locks[target]) {
+            health[target] = value;
+            record(Journal.SET_HEALTH, target, null, value, null);
+        }
     }
 
     /**
      * Exiles all cards owned by player. Sets players health and poison to 0.
      * @param player killed player
      */
-    synchronized void kill(int player) {
-        library[player].transferCardsTo(exiled[player], player);
-        hand[player].transferCardsTo(exiled[player], player);
-        graveyard[player].transferCardsTo(exiled[player], player);
-        table.transferCardsTo(exiled[player], player);
-        health[player] = 0;
-        poison[player] = 0;
-    }
-
-    synchronized String[] restart(int player) {
-        hand[player].transferCardsTo(library[player], player);
-        graveyard[player].transferCardsTo(library[player], player);
-        exiled[player].transferCardsTo(library[player], player);
-        table.transferCardsTo(library[player], player);
-        health[player] = 20;
-        poison[player] = 0;
+    void kill(int player) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                library[player].transferCardsTo(exiled[player], player);
+                hand[player].transferCardsTo(exiled[player], player);
+                graveyard[player].transferCardsTo(exiled[player], player);
+                table.transferCardsTo(exiled[player], player);
+                health[player] = 0;
+                poison[player] = 0;
+                record(Journal.KILL, player, null, -1, null);
+            }
+        }
+    }
+
+    String[] restart(int player) {
+        return restart(player, null);
+    }
+
+    private String[] restart(int player, int[] swaps) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                hand[player].transferCardsTo(library[player], player);
+                graveyard[player].transferCardsTo(library[player], player);
+                exiled[player].transferCardsTo(library[player], player);
+                table.transferCardsTo(library[player], player);
+                health[player] = 20;
+                poison[player] = 0;
+        
+                if (swaps == null) {
+                    swaps = library[player].shuffle();
+                } else {
+                    library[player].shuffle(swaps);
+                }
+                record(Journal.RESTART, player, null, -1, swaps);
         
-        library[player].shuffle();
+                int size = library[player].getSize() < 7? library[player].getSize() : 7;
+                String[] result = new String[size];
+                for (int i = 0; i < 7; i++) {
+                    Card c = library[player].removeLast();
+                    hand[player].addCard(c);
+                    result[i] = c.ID;
+                }
         
-        int size = library[player].getSize() < 7? library[player].getSize() : 7;
-        String[] result = new String[size];
-        for (int i = 0; i < 7; i++) {
-            Card c = library[player].removeLast();
-            hand[player].addCard(c);
-            result[i] = c.ID;
+                return result;
+            }
         }
-        
-        return result;
     }
     
-    synchronized String createToken(CreateToken ct) {
-        String r = (char) ('A' + ct.requestor) + "X" + tokens[ct.requestor]++;
-        table.addCard(new Card("token \"ct.name\"", r));
+    String createToken(CreateToken ct) {
+        return createToken(ct.requestor, ct);
+    }
+
+    /**
+     * Puts a new token on the table.
+     * @param ct token's description, null if it is not known
+     */
+    private String createToken(int player, CreateToken ct) {
+        synchronized (locks[player]) {
+            synchronized (tableLock) {
+                String r = (char) ('A' + player) + "X" + tokens[player]++;
+                Card token = new Card("token \"ct.name\"", r);
+                token.token = ct;
+                table.addCard(token);
+                record(Journal.CREATE_TOKEN, player, null, -1, null);
+                return r;
+            }
+        }
+    }
+
+    /**
+     * Runs a task which calls several methods of this game, so that no other
+     * thread changes the game until all of them are done. Takes locks of all
+     * players in order and then the table lock.
+     * @param task task to be run
+     */
+    void atomically(Runnable task) {
+        atomically(task, 0);
+    }
+
+    private void atomically(Runnable task, int player) {
+        if (player < locks.length) {
+            synchronized (locks[player]) {
+                atomically(task, player + 1);
+            }
+            return;
+        }
+        synchronized (tableLock) {
+            task.run();
+        }
+    }
+
+    /**
+     * Returns the whole game as a player sees it, with cards in their own
+     * hand, or as a spectator sees it. Players who have left are not known
+     * to the game and are not set. Takes locks of all players in order and
+     * then the table lock.
+     * @param viewer player who receives the state or -1 for a spectator
+     * @return state of the game
+     */
+    GameState state(final int viewer) {
+        final GameState[] result = new GameState[1];
+        atomically(new Runnable() {
+            @Override
+            public void run() {
+                Card[] cards = table.getLast(-1);
+                GameState s = new GameState(locks.length, cards.length);
+                for (int p = 0; p < locks.length; p++) {
+                    s.librarySizes[p] = library[p].getSize();
+                    s.handSizes[p] = hand[p].getSize();
+                    s.health[p] = health[p];
+                    s.poison[p] = poison[p];
+                }
+                if (viewer >= 0) {
+                    s.hand = IDs(hand[viewer]);
+                }
+                for (int i = 0; i < cards.length; i++) {
+                    Card c = cards[i];
+                    s.table[i] = c.ID;
+                    s.x[i] = c.x;
+                    s.y[i] = c.y;
+                    s.tapped[i] = c.tapped;
+                    if (c.ID.charAt(1) == 'X') {
+                        s.tokens[i] = token(c);
+                    }
+                }
+                result[0] = s;
+            }
+        });
+        return result[0];
+    }
+
+    /**
+     * Returns a copy of a token's description. Tokens restored from
+     * a journal have none, so a colourless token is described.
+     */
+    private static CreateToken token(Card c) {
+        CreateToken t = c.token;
+        CreateToken r = t == null? new CreateToken(false, false, false,
+                false, false, "Token", "", "", false, 0, 0)
+                : new CreateToken(t.red, t.blue, t.white, t.black, t.green,
+                t.name, t.type, t.desc, t.creature, t.atk, t.def);
+        r.requestor = c.ID.charAt(0) - 'A';
+        r.cardID = c.ID;
         return r;
     }
 
+////////////////////////////////////////////////////////////////////////////////
+////////////////////////////////// JOURNAL /////////////////////////////////////
+////////////////////////////////////////////////////////////////////////////////
+
+    private void record(byte type, int player, String cardID) {
+        record(type, player, cardID, -1, null);
+    }
+
+    private void record(byte type, int player, String cardID, int value,
+            int[] swaps) {
+        if (journal != null) {
+            journal.record(type, player, cardID, value, swaps);
+        }
+    }
+
+    /**
+     * Writes the whole game preceded by the sequence number of the last event
+     * included. Takes locks of all players in order and then the table lock,
+     * so no event is recorded meanwhile.
+     * @param out stream to write to
+     * @param journal journal which is snapshotted
+     * @throws IOException if the snapshot cannot be written
+     */
+    void snapshot(DataOutputStream out, Journal journal) throws IOException {
+        snapshot(out, journal, 0);
+    }
+
+    private void snapshot(DataOutputStream out, Journal journal, int player)
+            throws IOException {
+        if (player < locks.length) {
+            synchronized (locks[player]) {
+                snapshot(out, journal, player + 1);
+            }
+            return;
+        }
+        synchronized (tableLock) {
+            out.writeLong(journal.snapshotTaken());
+            out.writeShort(locks.length);
+            for (int p = 0; p < locks.length; p++) {
+                out.writeInt(health[p]);
+                out.writeInt(poison[p]);
+                out.writeInt(tokens[p]);
+                write(out, library[p]);
+                write(out, hand[p]);
+                write(out, graveyard[p]);
+                write(out, exiled[p]);
+            }
+            write(out, table);
+            out.writeInt(cardsList.size());
+            for (Map.Entry<String, String> e : cardsList.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Collection c)
+            throws IOException {
+        Card[] cards = c.getLast(-1);
+        out.writeInt(cards.length);
+        for (Card e : cards) {
+            out.writeUTF(e.ID);
+        }
+    }
+
+    private static String[] readIDs(DataInputStream in) throws IOException {
+        String[] IDs = new String[in.readInt()];
+        for (int i = 0; i < IDs.length; i++) {
+            IDs[i] = in.readUTF();
+        }
+        return IDs;
+    }
+
+    private Collection collection(String[] IDs) {
+        Collection c = new Collection();
+        for (String ID : IDs) {
+            c.addCard(new Card(cardsList.get(ID), ID));
+        }
+        return c;
+    }
+
+    /**
+     * Applies an event read from a journal. The game must not be journaled.
+     */
+    void apply(byte type, int player, String cardID, int value, int[] swaps) {
+        switch (type) {
+            case Journal.LIBRARY_DRAW: libraryDraw(player); break;
+            case Journal.LIBRARY_PLAY_TOP: libraryPlayTop(player); break;
+            case Journal.LIBRARY_PLAY: libraryPlay(player, cardID); break;
+            case Journal.LIBRARY_TO_HAND: libraryToHand(player, cardID); break;
+            case Journal.LIBRARY_TO_TOP: libraryToTop(player, cardID); break;
+            case Journal.LIBRARY_DESTROY: libraryDestroy(player, cardID); break;
+            case Journal.LIBRARY_EXILE: libraryExile(player, cardID); break;
+            case Journal.LIBRARY_SHUFFLE: libraryShuffle(player, swaps); break;
+            case Journal.HAND_PLAY: handPlay(player, cardID); break;
+            case Journal.HAND_TO_LIBRARY: handToLibrary(player, cardID); break;
+            case Journal.HAND_DESTROY: handDestroy(player, cardID); break;
+            case Journal.HAND_EXILE: handExile(player, cardID); break;
+            case Journal.TABLE_TAKE: tableTake(cardID); break;
+            case Journal.TABLE_TO_LIBRARY: tablePutOnTopOfLibrary(cardID); break;
+            case Journal.TABLE_DESTROY: tableDestroy(cardID); break;
+            case Journal.TABLE_EXILE: tableExile(cardID); break;
+            case Journal.GRAVEYARD_PLAY: graveyardPlay(cardID); break;
+            case Journal.GRAVEYARD_TO_HAND: graveyardToHand(cardID); break;
+            case Journal.GRAVEYARD_EXILE: graveyardExile(cardID); break;
+            case Journal.GRAVEYARD_TO_LIBRARY: graveyardToLibrary(cardID); break;
+            case Journal.EXILED_PLAY: exiledPlay(cardID); break;
+            case Journal.EXILED_TO_HAND: exiledToHand(cardID); break;
+            case Journal.EXILED_TO_GRAVEYARD: exiledToGraveyard(cardID); break;
+            case Journal.EXILED_TO_LIBRARY: exiledToLibrary(cardID); break;
+            case Journal.SET_POISON: playerSetPoison(player, value); break;
+            case Journal.SET_HEALTH: playerSetHealth(player, value); break;
+            case Journal.KILL: kill(player); break;
+            case Journal.RESTART: restart(player, swaps); break;
+            case Journal.CREATE_TOKEN: createToken(player, null); break;
+            default:
+                Debug.p("Unknown journal event: " + type, Debug.W);
+        }
+    }
+
 }
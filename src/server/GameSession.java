@@ -0,0 +1,1124 @@
+package server;
+
+import server.flags.*;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import mtg.CardStore;
+import mtg.Debug;
+import mtg.Deck;
+import mtg.InvalidDeckException;
+import mtg.Utilities;
+import mtg.Zone;
+import server.net.CardDownload;
+import server.net.CardUpload;
+import server.net.Frame;
+
+/**
+ * A single table hosted by the {@link Server}. It owns its players' seats,
+ * decks, ready flags and {@link Game}, so one server process may host many
+ * tables at once.
+ * <p>
+ * Players are admitted by {@link #admit(SocketChannel, DataInputStream,
+ * DataOutputStream, CheckDeck) admit}, many at once. This thread waits until
+ * all seats are taken and all players are ready - have checked all decks
+ * sent to them - and then it deals the opening hands and terminates.
+ * Waiting is done on a condition of {@link #lobby}, so the game starts as
+ * soon as the last player is ready.
+ * <p>
+ * Every seated player receives a {@link Reconnect} token. If their connection
+ * is lost during the game, their seat is held for {@link #GRACE} milliseconds
+ * and they may take it again with {@link #resume(SocketChannel,
+ * DataOutputStream, Reconnect) resume}, receiving only the frames they have
+ * missed, or the whole game in a {@link GameState} if the frames are no longer
+ * kept. Player's cards are exiled only when the grace period passes.
+ * <p>
+ * Everything sent to all players, or to all but one, is public and it is
+ * also sent to the table's {@link Spectators}.
+ * <p>
+ * Actions sent within {@link #batch(int, Runnable) batch} are collected
+ * instead of being queued, and each player and spectator receives them as
+ * a single {@link Batch}.
+ */
+public class GameSession extends Thread {
+    /**
+     * Time for which a seat of a player who has lost their connection is
+     * held, in milliseconds. If 0, such players leave the game immediately.
+     */
+    static final int GRACE = Integer.getInteger(
+            "mtg.server.reconnect.grace", 30000);
+    /**
+     * Time for which a player being admitted waits for images downloaded
+     * from others, in milliseconds. Images not downloaded by then are
+     * requested from the player themselves.
+     */
+    static final int DOWNLOAD_WAIT = Integer.getInteger(
+            "mtg.server.download.wait", 10000);
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /**
+     * Images being downloaded from players being admitted at any table, by
+     * hash. The admission which puts a hash here downloads the image and
+     * releases the latch when it is done, whether the image has been stored
+     * or not. Others wait for it instead of downloading the image again.
+     */
+    private static final ConcurrentHashMap<String, CountDownLatch> DOWNLOADS
+            = new ConcurrentHashMap<>();
+
+    private final Server server;
+    private final String table;
+    private final ActionHandler handler;
+    final DragStream drags;
+    final Spectators spectators;
+    private ScheduledFuture<?> tick;
+    private Journal journal;
+    private ScheduledFuture<?> sync;
+
+    private Seat[] seats;
+    /**
+     * Tokens of seated players. Seats are taken over while holding this lock.
+     */
+    private final String[] tokens;
+    private final ScheduledFuture<?>[] expiries;
+
+    private Deck[] decks;
+    private String[] names;
+    private String[][] hashes;
+    private long[][] sizes;
+
+    private final int players;
+    /**
+     * Guards admission of players, {@link #changed} is signalled whenever
+     * a player is seated, becomes ready or leaves before the game starts.
+     */
+    private final ReentrantLock lobby;
+    private final Condition changed;
+    /**
+     * Seats taken by players seated or being admitted. Guarded by lobby.
+     */
+    private final boolean[] reserved;
+    /**
+     * Number of decks sent to each player to be checked and the number
+     * the player has confirmed. Guarded by lobby.
+     */
+    private final int[] decksSent;
+    private final int[] decksChecked;
+    /**
+     * Number of players seated. Guarded by lobby.
+     */
+    private int admitted;
+    /**
+     * Frames sent by the thread running {@link #batch(int, Runnable)}, null
+     * for other threads.
+     */
+    private final ThreadLocal<Batched> batched = new ThreadLocal<>();
+    /**
+     * Held for reading while the game is changed and actions are sent, and
+     * for writing while a {@link GameState} of the game is taken for a player
+     * or a spectator, so the state includes exactly the frames which have
+     * been sent before.
+     */
+    final ReentrantReadWriteLock relay = new ReentrantReadWriteLock();
+
+    Game game;
+
+    GameSession(Server server, String table, int players) {
+        super("Table " + (table.isEmpty()? "(default)" : table));
+        this.server = server;
+        this.table = table;
+        this.handler = new ActionHandler(this);
+        this.drags = new DragStream(this);
+        this.spectators = new Spectators(server, this);
+
+        seats = new Seat[players];
+        tokens = new String[players];
+        expiries = new ScheduledFuture<?>[players];
+
+        decks = new Deck[players];
+        names = new String[players];
+        hashes = new String[players][];
+        sizes = new long[players][];
+
+        this.players = players;
+        lobby = new ReentrantLock();
+        changed = lobby.newCondition();
+        reserved = new boolean[players];
+        decksSent = new int[players];
+        decksChecked = new int[players];
+        admitted = 0;
+    }
+
+    /**
+     * Returns the name of this table.
+     * @return name of this table
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * Takes a free seat for a player who has just connected. Validates
+     * player's deck, sends them their name and the number of players,
+     * downloads their missing cards and exchanges decks with players already
+     * seated. Channel must still be in blocking mode, it is handed over to
+     * a reactor once the player is seated.
+     * <p>
+     * Players are admitted concurrently, each by its own worker thread:
+     * {@link #lobby} is held only while a seat is reserved and while
+     * the player is seated, never while decks and cards are transferred.
+     * @param channel player's channel
+     * @param in stream reading from the channel
+     * @param out stream writing to the channel
+     * @param newdeck player's name and deck
+     * @throws Exception if table is full or any error occurs while dealing
+     * with the player - caller is responsible for closing the channel then
+     */
+    void admit(SocketChannel channel, DataInputStream in,
+            DataOutputStream out, CheckDeck newdeck) throws Exception {
+        int i = reserve(newdeck);
+        if (i < 0) {
+            IOException ex = new IOException("Table is full");
+            Frame.write(out, ex);
+            throw ex;
+        }
+
+        Debug.p("Server: seating player " + i + "/" + players
+                + " at " + getName());
+        try {
+            // exchange basic info
+            try {
+                Deck.check(newdeck.deck);
+            } catch (InvalidDeckException ex) {
+                Frame.write(out, ex);
+                throw ex;
+            }
+            Frame.write(out, newdeck.owner);
+            Frame.write(out, players);
+
+            // check new deck and download all missing cards at once
+            int downloaded = download(in, out, newdeck);
+            Debug.p("Server: " + downloaded + " missing cards downloaded");
+
+            seat(i, channel, newdeck);
+        } catch (Exception ex) {
+            String ip = channel.socket().getInetAddress() == null?
+                "not received" : "" + channel.socket().getInetAddress();
+            String msg = "Server: Error while dealing with player " + i + ": "
+                    + "IP = " + ip + ", name = " + newdeck.owner
+                    + ", exception = " + ex;
+            Debug.p(msg, Debug.W);
+            release(i);
+            throw ex;
+        }
+    }
+
+    /**
+     * Downloads all missing cards of a player being admitted. An image
+     * which is already being downloaded from another player, at this or any
+     * other table, is not requested - it is waited for instead, for up to
+     * {@link #DOWNLOAD_WAIT}, and requested only if that download fails or
+     * does not finish in time. Images are requested in one
+     * {@link RequestCard} and each is written to its own temporary file.
+     * @return number of images downloaded from this player
+     */
+    private int download(DataInputStream in, DataOutputStream out,
+            CheckDeck newdeck) throws Exception {
+        String[] h = newdeck.hashes;
+        int downloaded = 0;
+        int[] missing = CardStore.missing(newdeck.deck, h);
+        // images others have not downloaded in time, not shared any more
+        HashSet<Integer> late = new HashSet<>();
+        while (missing.length > 0) {
+            ArrayList<Integer> mine = new ArrayList<>();
+            HashMap<String, CountDownLatch> claimed = new HashMap<>();
+            HashMap<Integer, CountDownLatch> others = new HashMap<>();
+            for (int e : missing) {
+                String hash = h == null? null : h[e];
+                if (!CardStore.isHash(hash) || late.contains(e)) {
+                    mine.add(e); //not shared, invalid ones are rejected
+                    continue;
+                }
+                CountDownLatch claim = new CountDownLatch(1);
+                CountDownLatch other = DOWNLOADS.putIfAbsent(hash, claim);
+                if (other == null) {
+                    claimed.put(hash, claim);
+                    mine.add(e);
+                } else {
+                    others.put(e, other);
+                }
+            }
+            try {
+                if (!mine.isEmpty()) {
+                    int[] indices = new int[mine.size()];
+                    for (int i = 0; i < indices.length; i++) {
+                        indices[i] = mine.get(i);
+                    }
+                    RequestCard rc = new RequestCard(newdeck.deck, h, indices);
+                    CardDownload download = new CardDownload(rc.names,
+                            rc.hashes, false);
+                    Frame.write(out, rc);
+                    try {
+                        while (!download.accept((CardChunk) Frame.read(in))) {}
+                    } finally {
+                        download.abort();
+                    }
+                    downloaded += indices.length;
+                }
+            } finally {
+                for (Map.Entry<String, CountDownLatch> e : claimed.entrySet()) {
+                    DOWNLOADS.remove(e.getKey(), e.getValue());
+                    e.getValue().countDown();
+                }
+            }
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(DOWNLOAD_WAIT);
+            int timedOut = 0;
+            for (Map.Entry<Integer, CountDownLatch> e : others.entrySet()) {
+                if (!e.getValue().await(deadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS)) {
+                    late.add(e.getKey());
+                    timedOut++;
+                }
+            }
+            if (timedOut > 0) {
+                Debug.p("Server: " + timedOut + " images not downloaded by"
+                        + " others in time, requested from "
+                        + newdeck.owner, Debug.W);
+            }
+            // images others have failed to download are requested again
+            ArrayList<Integer> again = new ArrayList<>();
+            for (int e : CardStore.missing(newdeck.deck, h)) {
+                if (others.containsKey(e)) {
+                    again.add(e);
+                }
+            }
+            missing = new int[again.size()];
+            for (int i = 0; i < missing.length; i++) {
+                missing[i] = again.get(i);
+            }
+        }
+        return downloaded;
+    }
+
+    /**
+     * Reserves a free seat for a player being admitted and gives them a name
+     * not used by anyone else at the table.
+     * @return reserved seat or -1 if all seats are taken
+     */
+    private int reserve(CheckDeck newdeck) {
+        lobby.lock();
+        try {
+            if (seats == null) {
+                return -1;
+            }
+            for (int i = 0; i < players; i++) {
+                if (!reserved[i]) {
+                    reserved[i] = true;
+                    newdeck.owner = checkName(
+                            Utilities.checkName(newdeck.owner));
+                    names[i] = newdeck.owner;
+                    return i;
+                }
+            }
+            return -1;
+        } finally {
+            lobby.unlock();
+        }
+    }
+
+    /**
+     * Frees a seat reserved for a player who could not be admitted.
+     */
+    private void release(int i) {
+        lobby.lock();
+        try {
+            if (seats != null) {
+                seats[i] = null;
+                names[i] = null;
+                decks[i] = null;
+                reserved[i] = false;
+            }
+        } finally {
+            lobby.unlock();
+        }
+    }
+
+    /**
+     * Seats a player whose cards have been downloaded, hands their channel
+     * over to a reactor and exchanges decks with all players seated so far.
+     */
+    private void seat(int i, SocketChannel channel, CheckDeck newdeck)
+            throws IOException {
+        lobby.lock();
+        try {
+            if (seats == null) {
+                throw new IOException("Table closed");
+            }
+            decks[i] = newdeck.deck;
+            hashes[i] = newdeck.hashes;
+            sizes[i] = newdeck.sizes;
+
+            // start listening to the new client
+            seats[i] = new Seat(i, channel, this, server.nextReactor());
+            seats[i].reactor.register(seats[i]);
+            tokens[i] = token();
+            send(i, new Reconnect(i, table, tokens[i], 0));
+            admitted++;
+
+            // all clients check all decks
+            for (int other = 0; other < players; other++) {
+                if (other == i || seats[other] == null) {
+                    continue; //not seated yet
+                }
+                // send new deck to already connected clients
+                sendDeck(other, newdeck);
+                // send already connected clients' decks to the new client
+                CheckDeck cd = new CheckDeck(names[other], decks[other]);
+                cd.hashes = hashes[other];
+                cd.sizes = sizes[other];
+                sendDeck(i, cd);
+                if (!seats[other].isConnected()) { //INIT KILL
+                    send(i, new Disconnect(other, true));
+                }
+            }
+
+            sendDeck(i, newdeck);
+            spectators.publish(newdeck);
+            changed.signalAll();
+        } finally {
+            lobby.unlock();
+        }
+    }
+
+    /**
+     * Sends a deck to be checked by a player. The player is not ready until
+     * they have checked it. Called while holding {@link #lobby}.
+     */
+    private void sendDeck(int player, CheckDeck deck) {
+        decksSent[player]++;
+        send(player, deck);
+    }
+
+    /**
+     * Called when a player confirms that they have all cards of the decks
+     * they have checked. The game starts as soon as all players are seated
+     * and have confirmed all decks sent to them. Confirmations of fewer decks
+     * than sent are outdated and ignored.
+     * @param player player
+     * @param decks number of decks the player has checked
+     */
+    void ready(int player, int decks) {
+        lobby.lock();
+        try {
+            decksChecked[player] = decks;
+            if (decks == decksSent[player]) {
+                changed.signalAll();
+            }
+        } finally {
+            lobby.unlock();
+        }
+    }
+
+    /**
+     * Returns true if all players are seated and ready. Players who have
+     * already left do not hold the game. Called while holding
+     * {@link #lobby}.
+     */
+    private boolean isLobbyReady() {
+        if (admitted < players) {
+            return false;
+        }
+        for (int i = 0; i < players; i++) {
+            if (seats[i].isConnected()
+                    && decksChecked[i] != decksSent[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        lobby.lock();
+        try {
+            while (seats != null && !isLobbyReady()) {
+                changed.await();
+            }
+        } catch (InterruptedException ex) {
+            return; //table closed
+        } finally {
+            lobby.unlock();
+        }
+        Debug.p("Server: Game initialisation finished", Debug.I);
+        if (seats == null) {
+            return; //table closed while waiting
+        }
+
+        journal = Journal.open(table);
+        game = new Game(decks, journal);
+        if (journal != null) {
+            sync = server.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    server.execute(journal);
+                }
+            }, Journal.FLUSH);
+        }
+        tick = server.schedule(new Runnable() {
+            @Override
+            public void run() {
+                relay.readLock().lock();
+                try {
+                    drags.flushAll();
+                } finally {
+                    relay.readLock().unlock();
+                }
+            }
+        }, DragStream.TICK);
+        CardsList x = new CardsList(game.getAllCardsList());
+        for (int i = 0; i < players; i++) {
+            send(i, x);
+        }
+        spectators.publish(x);
+
+        relay.readLock().lock();
+        try {
+            deal();
+        } finally {
+            relay.readLock().unlock();
+        }
+        spectators.pin(); //decks, cards and opening hands
+
+        Debug.p("Server: " + getName() + " thread terminates");
+    }
+
+    /**
+     * Shuffles libraries and deals opening hands to players still connected.
+     */
+    private void deal() {
+        for (int p = 0; p < players; p++) {
+            if (seats[p].isConnected()) {
+                final int player = p;
+                batch(player, new Runnable() {
+                    @Override
+                    public void run() {
+                        game.libraryShuffle(player);
+                        sendToAll(new Shuffle(player));
+                        for (int c = 0; c < 7; c++) {
+                            Card card = game.libraryDraw(player);
+                            if (card != null) {
+                                sendToAllInvisible(new MoveCard(
+                                        Zone.TOP_LIBRARY, Zone.HAND, player,
+                                        card.ID));
+                            }
+                        }
+                    }
+                });
+            } else { //INIT KILL - player disconnected before game started
+                game.kill(p);
+            }
+        }
+    }
+
+    /**
+     * Returns status of this table, one of {@link Server#RUNNING},
+     * {@link Server#PLAYERS_CONNECTED} and {@link Server#DEAD}.
+     * @return status of this table
+     */
+    public int getStatus() {
+        Seat[] seats = this.seats;
+        if (isAlive() && !isInterrupted()) {
+            return Server.RUNNING;
+        } else if (seats == null) {
+            return Server.DEAD; //when table has been closed
+        } else {
+            for (Seat seat : seats) {
+                if (seat != null && (seat.isConnected() || seat.isHeld())) {
+                    return Server.PLAYERS_CONNECTED;
+                }
+            }
+            return Server.DEAD;
+        }
+    }
+
+    /**
+     * Returns the number of seats at this table.
+     * @return the number of players
+     */
+    int getPlayers() {
+        return players;
+    }
+
+    /**
+     * Handles an action received from a seated player.
+     * @param player player who sent the action
+     * @param object action received
+     * @throws Exception if an action cannot be handled
+     */
+    void handle(int player, Action object) throws Exception {
+        relay.readLock().lock();
+        try {
+            handler.handle(player, object);
+        } finally {
+            relay.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sends an action to specified player.
+     * @param player player to be sent to
+     * @param object action to be sent
+     */
+    void send(int player, Action object) {
+        Seat[] seats = this.seats;
+        if (seats == null || seats[player] == null) {
+            return;
+        }
+        Batched b = batched.get();
+        if (b == null) {
+            seats[player].send(object);
+            return;
+        }
+        try {
+            b.players[player].add(Frame.encode(object));
+        } catch (IOException ex) {
+            Debug.p("Server: Error while encoding " + object + ": " + ex, Debug.E);
+        }
+    }
+
+    /**
+     * Sends an action to all players. Action is encoded only once.
+     * @param object action to be sent
+     */
+    void sendToAll(Action object) {
+        sendToAllExcept(-1, object);
+    }
+
+    /**
+     * Sends an action to all players except specified player and to all
+     * spectators. Action is encoded only once.
+     * @param player player to be ignored
+     * @param object action to be sent
+     */
+    void sendToAllExcept(int player, Action object) {
+        Seat[] seats = this.seats;
+        if (seats == null) {
+            return;
+        }
+        ByteBuffer frame;
+        try {
+            frame = Frame.encode(object);
+        } catch (IOException ex) {
+            Debug.p("Server: Error while encoding " + object + ": " + ex, Debug.E);
+            return;
+        }
+        Batched b = batched.get();
+        if (b != null) {
+            for (int i = 0; i < seats.length; i++) {
+                if (i != player && seats[i] != null) {
+                    b.players[i].add(frame);
+                }
+            }
+            b.spectators.add(frame);
+            return;
+        }
+        Object key = Seat.keyOf(object);
+        for (int i = 0; i < seats.length; i++) {
+            if (i != player && seats[i] != null) {
+                seats[i].send(frame, key);
+            }
+        }
+        spectators.publish(frame, key);
+    }
+
+    /**
+     * Runs a task which changes the game and sends actions, so that the game
+     * is changed atomically (see {@link Game#atomically(Runnable)}) and
+     * everything the task sends to a player or to spectators reaches them as
+     * a single {@link Batch}, in the order it was sent. The batches are
+     * queued before the game is unlocked, so no other action overtakes them.
+     * @param requestor player who requested the batch
+     * @param task task to be run, it must not block
+     */
+    void batch(final int requestor, final Runnable task) {
+        final Batched b = new Batched(players);
+        game.atomically(new Runnable() {
+            @Override
+            public void run() {
+                batched.set(b);
+                try {
+                    task.run();
+                } finally {
+                    batched.remove();
+                }
+                Seat[] seats = GameSession.this.seats;
+                if (seats == null) {
+                    return;
+                }
+                for (int i = 0; i < seats.length; i++) {
+                    ByteBuffer frame = b.frame(requestor, b.players[i]);
+                    if (frame != null && seats[i] != null) {
+                        seats[i].send(frame, null);
+                    }
+                }
+                ByteBuffer frame = b.frame(requestor, b.spectators);
+                if (frame != null) {
+                    spectators.publish(frame, null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of frames waiting to be sent to each player.
+     * Disconnected players have depth 0.
+     * @return outbound queue depth of each seat
+     */
+    int[] getQueueDepths() {
+        Seat[] seats = this.seats;
+        if (seats == null) {
+            return new int[0];
+        }
+        int[] depths = new int[seats.length];
+        for (int i = 0; i < seats.length; i++) {
+            if (seats[i] != null && seats[i].isConnected()) {
+                depths[i] = seats[i].getQueueDepth();
+            }
+        }
+        return depths;
+    }
+
+    /**
+     * Returns the number of bytes read from or written to each player,
+     * including bytes of their previous connections.
+     * @param in true for bytes read, false for bytes written
+     * @return bytes of each seat
+     */
+    long[] getBytes(boolean in) {
+        Seat[] seats = this.seats;
+        if (seats == null) {
+            return new long[0];
+        }
+        long[] bytes = new long[seats.length];
+        for (int i = 0; i < seats.length; i++) {
+            if (seats[i] != null) {
+                bytes[i] = in? seats[i].getBytesIn() : seats[i].getBytesOut();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Sends a MoveCard action to all players but only to a requestor player
+     * is sent a card's ID. For example, if there are four players and player 2
+     * draws a card, players 0, 1 and 3 receives MoveCard object but with
+     * no card ID, while player 2 receives a full object with a proper ID.
+     * @param mc object to be sent
+     */
+    void sendToAllInvisible(MoveCard mc) {
+        String id = mc.cardID;
+        mc.cardID = null;
+        sendToAllExcept(mc.requestor, mc);
+        mc.cardID = id;
+        send(mc.requestor, mc);
+    }
+
+    /**
+     * Sends a Restart action to all players but only to a requestor player
+     * is sent cards' IDs.
+     * @param r object to be sent
+     */
+    void sendToAllInvisible(Restart r) {
+        String[] ids = r.IDs;
+        r.IDs = null;
+        sendToAllExcept(r.requestor, r);
+        r.IDs = ids;
+        send(r.requestor, r);
+    }
+
+    /**
+     * Sends a search Action to all the players, but only requestor player
+     * receives list of cards. For other players it is only an information
+     * that a player is searching a zone.
+     * @param s Search action
+     */
+    void sendToAllInvisible(Search s) {
+        String[] cards = s.cardsIDs;
+        s.cardsIDs = null;
+        sendToAllExcept(s.requestor, s);
+        s.cardsIDs = cards;
+        send(s.requestor, s);
+    }
+
+    /**
+     * Informs all other players that connection to a player has been lost
+     * and disconnects them.
+     * @param player player whose connection has been lost
+     */
+    void connectionLost(int player) {
+        relay.readLock().lock();
+        try {
+            if (game != null && GRACE > 0 && hold(player)) {
+                return;
+            }
+            sendToAllExcept(player, new Disconnect(player, false));
+            disconnect(player);
+        } finally {
+            relay.readLock().unlock();
+        }
+    }
+
+    /**
+     * Holds a seat of a player who has lost their connection and informs
+     * other players.
+     * @return false if the seat cannot be held
+     */
+    private boolean hold(final int player) {
+        synchronized (tokens) {
+            Seat[] seats = this.seats;
+            if (seats == null) {
+                return false;
+            }
+            seats[player].hold();
+            expiries[player] = server.later(new Runnable() {
+                @Override
+                public void run() {
+                    expire(player);
+                }
+            }, GRACE);
+        }
+        Debug.p("Server: Player " + player + " (" + names[player] + ") lost"
+                + " connection, seat held for " + GRACE + " ms");
+        Message m = new Message("lost connection, waiting "
+                + GRACE / 1000 + " seconds to reconnect");
+        m.requestor = player;
+        sendToAllExcept(player, m);
+        return true;
+    }
+
+    /**
+     * Called when a player has not reconnected in time. They leave the game.
+     */
+    private void expire(int player) {
+        synchronized (tokens) {
+            Seat[] seats = this.seats;
+            if (seats == null || !seats[player].isHeld()) {
+                return; //reconnected or table closed
+            }
+            seats[player].release();
+            expiries[player] = null;
+        }
+        Debug.p("Server: Player " + player + " has not reconnected");
+        relay.readLock().lock();
+        try {
+            sendToAllExcept(player, new Disconnect(player, false));
+            disconnect(player);
+        } finally {
+            relay.readLock().unlock();
+        }
+    }
+
+    /**
+     * Seats a player who has reconnected again. If their old connection has
+     * not been noticed to be lost yet, it is closed. Player receives
+     * the <code>Reconnect</code> back and then all frames they have missed
+     * or, if their seat no longer has them, the state of the game, taken
+     * while no action is being sent.
+     * @param channel player's new channel, still in blocking mode
+     * @param out stream writing to the channel
+     * @param rn player's token and the number of frames they have received
+     * @throws Exception if player cannot take their seat - caller is
+     * responsible for closing the channel then
+     */
+    void resume(SocketChannel channel, DataOutputStream out, Reconnect rn)
+            throws Exception {
+        int player = rn.requestor;
+        Seat seat;
+        relay.writeLock().lock();
+        try {
+            seat = take(channel, out, rn);
+        } finally {
+            relay.writeLock().unlock();
+        }
+        try {
+            rn.received = -1;
+            Frame.write(out, rn);
+            seat.reactor.register(seat);
+        } catch (IOException ex) {
+            hold(player);
+            throw ex;
+        }
+        Debug.p("Server: Player " + player + " (" + names[player] + ")"
+                + " reconnected");
+        Message m = new Message("has reconnected");
+        m.requestor = player;
+        sendToAllExcept(player, m);
+    }
+
+    /**
+     * Checks player's token and lets their new seat take over the held one.
+     * Called while holding {@link #relay} for writing.
+     */
+    private Seat take(SocketChannel channel, DataOutputStream out,
+            Reconnect rn) throws IOException {
+        int player = rn.requestor;
+        synchronized (tokens) {
+            Seat[] seats = this.seats;
+            if (seats == null || game == null || player < 0
+                    || player >= seats.length || tokens[player] == null
+                    || rn.token == null || !MessageDigest.isEqual(
+                    tokens[player].getBytes("UTF-8"),
+                    rn.token.getBytes("UTF-8"))) {
+                IOException ex = new IOException("Invalid session");
+                Frame.write(out, ex);
+                throw ex;
+            }
+            if (seats[player].isConnected()) {
+                seats[player].hold(); //old connection is half-open
+            }
+            GameState state = null;
+            if (!seats[player].canResume(rn.received)) {
+                state = state(player);
+                Debug.p("Server: Player " + player + " has missed too many"
+                        + " frames, the state of the game is sent instead");
+            }
+            Seat seat;
+            try {
+                seat = new Seat(seats[player], rn.received, channel,
+                        server.nextReactor(), state);
+            } catch (IOException ex) {
+                Frame.write(out, ex);
+                throw ex;
+            }
+            seats[player] = seat;
+            if (expiries[player] != null) {
+                expiries[player].cancel(false);
+                expiries[player] = null;
+            }
+            return seat;
+        }
+    }
+
+    /**
+     * Returns the state of the game as a player or a spectator sees it,
+     * including players who have left. It should be called while holding
+     * {@link #relay} for writing, so the game does not change before
+     * the state is queued.
+     * @param viewer player who receives the state or -1 for a spectator
+     * @return state of the game
+     */
+    GameState state(int viewer) {
+        GameState state = game.state(viewer);
+        Seat[] seats = this.seats;
+        for (int i = 0; seats != null && i < seats.length; i++) {
+            state.left[i] = seats[i] == null
+                    || !seats[i].isConnected() && !seats[i].isHeld();
+        }
+        return state;
+    }
+
+    /**
+     * Returns a new random session token.
+     */
+    private static String token() {
+        byte[] b = new byte[16];
+        RANDOM.nextBytes(b);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte e : b) {
+            sb.append(Character.forDigit((e >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(e & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs a task which may block, e.g. on disk, on a worker thread of
+     * the server.
+     * @param task task to be run
+     * @throws RejectedExecutionException if the server is shutting down
+     */
+    void execute(Runnable task) {
+        server.execute(task);
+    }
+
+    /**
+     * Queues card images to be sent to the player in chunks, between
+     * other actions sent to them.
+     * @param player player
+     * @param upload images to be sent
+     */
+    void upload(int player, CardUpload upload) {
+        Seat[] seats = this.seats;
+        if (seats != null && seats[player] != null) {
+            seats[player].upload(upload);
+        }
+    }
+
+    /**
+     * Closes all streams and sockets of given player. It should be used when
+     * clients sends information about its disconnection. Game is modified
+     * (player's cards are exiled) and if no one is connected
+     * a table is closed.
+     * @param player player
+     */
+    void disconnect(int player) {
+        disconnectOnly(player);
+        if (game != null) {
+            game.kill(player);
+        } else {
+            lobby.lock();
+            try {
+                changed.signalAll(); //player no longer holds the game
+            } finally {
+                lobby.unlock();
+            }
+        }
+        if (getStatus() == Server.DEAD) { //last client disconnects
+            closeNoOneConnected();
+        }
+    }
+
+    /**
+     * Just disconnects requested player by closing all their streams
+     * and sockets. If player is already disconnected, it does nothing.
+     * @param player player
+     */
+    private void disconnectOnly(int player) {
+        Seat[] seats = this.seats;
+        if (seats == null) {
+            return;
+        }
+        if (seats[player] != null && seats[player].isConnected()) {
+            Debug.p("Server: Player " + player + " (" + names[player] + ") disconneced");
+            Debug.p("Server: Player " + player + " outbound queue peak "
+                    + seats[player].getPeakQueueDepth() + " frames, "
+                    + seats[player].getDroppedFrames() + " coalesced");
+            seats[player].close();
+        }
+    }
+
+    /**
+     * Informs all players about table closure, disconnects all clients
+     * and closes the table.
+     */
+    void close() {
+        sendToAll(new Disconnect(true));
+        Seat[] seats = this.seats;
+        if (seats != null) {
+            for (int i = 0; i < seats.length; i++) {
+                disconnectOnly(i);
+            }
+        }
+        closeNoOneConnected();
+    }
+
+    /**
+     * Closes the table with no client connected to it and assigns nulls
+     * to references.
+     */
+    private void closeNoOneConnected() {
+        if (seats == null) {
+            return; //already closed
+        }
+        interrupt();
+        if (tick != null) {
+            tick.cancel(false);
+        }
+        for (ScheduledFuture<?> expiry : expiries) {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+        }
+        if (sync != null) {
+            sync.cancel(false);
+        }
+        if (journal != null) {
+            // may be called on a reactor, which must not wait for the disk
+            final Journal closing = journal;
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    closing.close(true); //game is over, nothing to recover
+                }
+            };
+            try {
+                server.execute(task);
+            } catch (RejectedExecutionException ex) {
+                task.run(); //server is shutting down
+            }
+        }
+        spectators.close();
+        //let gc do the rest
+        seats = null;
+        decks = null;
+        names = null;
+        hashes = null;
+        sizes = null;
+        Debug.p("Server: " + getName() + " closed");
+        server.tableClosed(this);
+    }
+
+    private String checkName(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equals(names[i])) {
+                return checkName(name + "-");
+            }
+        }
+        return name;
+    }
+
+    int getDeckSize(int player) {
+        return decks[player].getDeckSize();
+    }
+
+    /**
+     * Frames collected by {@link #batch(int, Runnable)} for each recipient.
+     */
+    private static class Batched {
+        final List<ByteBuffer>[] players;
+        final List<ByteBuffer> spectators = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        Batched(int players) {
+            this.players = (List<ByteBuffer>[]) new List<?>[players];
+            for (int i = 0; i < players; i++) {
+                this.players[i] = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Returns a single frame of all frames collected for a recipient,
+         * or null if there are none. A single frame is not wrapped.
+         */
+        ByteBuffer frame(int requestor, List<ByteBuffer> frames) {
+            if (frames.isEmpty()) {
+                return null;
+            } else if (frames.size() == 1) {
+                return frames.get(0);
+            }
+            try {
+                return Frame.encodeBatch(requestor, frames);
+            } catch (IOException ex) {
+                Debug.p("Server: Error while encoding a batch of "
+                        + frames.size() + " actions: " + ex, Debug.E);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import mtg.Deck;
+import server.flags.CreateToken;
+
+/**
+ * Stress test of {@link Game} locking. Many threads move random cards
+ * between random zones of all players at once - including moves which
+ * take a player's lock and the table lock, tokens, killing and restarting
+ * players - while another thread now and then waits for the moves in
+ * progress to finish and checks that every card is in exactly one zone and
+ * every token in at most one. The same check runs once more after all
+ * threads have stopped. Exceptions
+ * thrown by the game fail the test and threads which do not stop are
+ * reported as deadlocked.
+ * <p>
+ * Usage: <code>server.GameStress [players [threads [milliseconds]]]</code>,
+ * 4 players, 8 threads and 10 seconds by default. Exits with status 1 if
+ * any check fails.
+ */
+public class GameStress {
+    private static final int DECK = 60;
+
+    private final Game game;
+    private final int players;
+    private final String[] IDs;
+    private final List<String> failures = new ArrayList<>();
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final AtomicLong moves = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    /**
+     * Held for reading by every move and for writing by a check, so a check
+     * sees no move half done.
+     */
+    private final ReentrantReadWriteLock pause = new ReentrantReadWriteLock();
+
+    private GameStress(int players) {
+        Deck[] decks = new Deck[players];
+        for (int i = 0; i < players; i++) {
+            decks[i] = new Deck();
+            decks[i].addCard("Forest", DECK / 2);
+            decks[i].addCard("Island", DECK / 2);
+        }
+        this.game = new Game(decks, null);
+        this.players = players;
+        this.IDs = game.getAllCardsList().keySet().toArray(new String[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int players = args.length > 0? Integer.parseInt(args[0]) : 4;
+        int threads = args.length > 1? Integer.parseInt(args[1]) : 8;
+        long time = args.length > 2? Long.parseLong(args[2]) : 10000;
+
+        final GameStress stress = new GameStress(players);
+        Thread[] workers = new Thread[threads + 1];
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            workers[i] = new Thread("GameStress-" + i) {
+                @Override
+                public void run() {
+                    Random random = new Random(seed);
+                    try {
+                        while (!stress.stop.get()) {
+                            stress.pause.readLock().lock();
+                            try {
+                                stress.move(random);
+                            } finally {
+                                stress.pause.readLock().unlock();
+                            }
+                            stress.moves.incrementAndGet();
+                        }
+                    } catch (RuntimeException ex) {
+                        stress.fail(getName() + ": " + ex);
+                    }
+                }
+            };
+        }
+        workers[threads] = new Thread("GameStress-check") {
+            @Override
+            public void run() {
+                try {
+                    while (!stress.stop.get()) {
+                        stress.check();
+                        Thread.sleep(1);
+                    }
+                } catch (InterruptedException ex) {
+                    return;
+                } catch (RuntimeException ex) {
+                    stress.fail(getName() + ": " + ex);
+                }
+            }
+        };
+        for (Thread e : workers) {
+            e.setDaemon(true);
+            e.start();
+        }
+        Thread.sleep(time);
+        stress.stop.set(true);
+        for (Thread e : workers) {
+            e.join(5000);
+            if (e.isAlive()) {
+                stress.fail(e.getName() + " has not stopped, deadlocked threads: "
+                        + deadlocked());
+            }
+        }
+        if (stress.failures.isEmpty()) {
+            stress.check();
+        }
+
+        synchronized (stress.failures) {
+            for (String e : stress.failures) {
+                System.out.println("FAILED " + e);
+            }
+            System.out.println(players + " players, " + threads + " threads, "
+                    + stress.moves.get() + " moves, " + stress.checks.get()
+                    + " checks, " + stress.failures.size() + " failures");
+            System.exit(stress.failures.isEmpty()? 0 : 1);
+        }
+    }
+
+    /**
+     * Makes a random move of a random card. Most moves fail, because the card
+     * is not in the source zone, which is fine - they still take the locks.
+     */
+    private void move(Random random) {
+        String ID = IDs[random.nextInt(IDs.length)];
+        int player = ID.charAt(0) - 'A';
+        switch (random.nextInt(28)) {
+            case 0: game.libraryDraw(player); break;
+            case 1: game.libraryPlayTop(player); break;
+            case 2: game.libraryPlay(player, ID); break;
+            case 3: game.libraryToHand(player, ID); break;
+            case 4: game.libraryToTop(player, ID); break;
+            case 5: game.libraryDestroy(player, ID); break;
+            case 6: game.libraryExile(player, ID); break;
+            case 7: game.libraryShuffle(player); break;
+            case 8: game.handPlay(player, ID); break;
+            case 9: game.handToLibrary(player, ID); break;
+            case 10: game.handDestroy(player, ID); break;
+            case 11: game.handExile(player, ID); break;
+            case 12: game.tableTake(ID); break;
+            case 13: game.tablePutOnTopOfLibrary(ID); break;
+            case 14: game.tableDestroy(ID); break;
+            case 15: game.tableExile(ID); break;
+            case 16: game.graveyardPlay(ID); break;
+            case 17: game.graveyardToHand(ID); break;
+            case 18: game.graveyardExile(ID); break;
+            case 19: game.graveyardToLibrary(ID); break;
+            case 20: game.exiledPlay(ID); break;
+            case 21: game.exiledToHand(ID); break;
+            case 22: game.exiledToGraveyard(ID); break;
+            case 23: game.exiledToLibrary(ID); break;
+            case 24:
+                CreateToken ct = new CreateToken(false, false, true, false,
+                        false, "Soldier", "Creature - Soldier", "", true, 1, 1);
+                ct.requestor = player;
+                game.createToken(ct);
+                break;
+            case 25:
+                // the only way a token leaves the table apart from kill
+                // and restart
+                String[] table = game.tableView();
+                if (table.length > 0) {
+                    game.tableDestroy(table[random.nextInt(table.length)]);
+                }
+                break;
+            case 26:
+                if (random.nextInt(50) == 0) {
+                    game.kill(player);
+                }
+                break;
+            case 27:
+                if (random.nextInt(50) == 0) {
+                    game.restart(player);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Checks that every card is in exactly one zone and every token is on
+     * the table at most once, with no move in progress.
+     */
+    private void check() {
+        pause.writeLock().lock();
+        try {
+            Map<String, String> seen = new HashMap<>();
+            for (int p = 0; p < players; p++) {
+                count(seen, game.librarySearch(p, -1), "library " + p);
+                count(seen, game.handView(p), "hand " + p);
+                count(seen, game.graveyardView(p), "graveyard " + p);
+                count(seen, game.exiledView(p), "exiled " + p);
+            }
+            count(seen, game.tableView(), "table");
+            for (String e : IDs) {
+                if (!seen.containsKey(e)) {
+                    fail("lost " + e);
+                }
+            }
+        } finally {
+            pause.writeLock().unlock();
+        }
+        checks.incrementAndGet();
+    }
+
+    private void count(Map<String, String> seen, String[] zone, String name) {
+        for (String e : zone) {
+            String other = seen.put(e, name);
+            if (other != null) {
+                fail(e + " is both in " + other + " and " + name);
+            }
+        }
+    }
+
+    private void fail(String failure) {
+        synchronized (failures) {
+            if (failures.size() < 20) {
+                failures.add(failure);
+            }
+        }
+        stop.set(true);
+    }
+
+    private static String deadlocked() {
+        long[] threads = ManagementFactory.getThreadMXBean()
+                .findMonitorDeadlockedThreads();
+        return threads == null? "none" : threads.length + "";
+    }
+}
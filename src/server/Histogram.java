@@ -0,0 +1,102 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with power-of-two buckets: bucket
+ * <code>i</code> counts durations shorter than <code>2^i</code> ns, but not
+ * shorter than <code>2^(i-1)</code> ns. Recording takes a few atomic
+ * increments and allocates nothing, so it may be called for every frame.
+ * Percentiles are approximated by buckets' upper bounds.
+ */
+class Histogram {
+    /**
+     * Number of buckets, the last one counts durations from 2^38 ns
+     * (about 4.5 minutes) up.
+     */
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong sum;
+
+    Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.sum = new AtomicLong();
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos duration in nanoseconds, negative is treated as 0
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        sum.addAndGet(nanos);
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     * @return number of durations
+     */
+    long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the sum of all durations recorded.
+     * @return sum in nanoseconds
+     */
+    long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Returns the number of durations recorded in a bucket.
+     * @param bucket bucket
+     * @return number of durations
+     */
+    long getBucket(int bucket) {
+        return buckets.get(bucket);
+    }
+
+    /**
+     * Returns the upper bound of a bucket.
+     * @param bucket bucket
+     * @return upper bound in nanoseconds
+     */
+    static long bound(int bucket) {
+        return 1L << bucket;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing given percentile.
+     * @param p percentile between 0 and 100
+     * @return duration in nanoseconds or 0 if nothing has been recorded
+     */
+    long percentile(double p) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p / 100 * count);
+        for (int i = 0; i < BUCKETS; i++) {
+            if ((rank -= counts[i]) <= 0) {
+                return bound(i);
+            }
+        }
+        return bound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,441 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import mtg.Debug;
+import mtg.Main;
+
+/**
+ * Append-only journal of a single game. Every accepted mutation of
+ * {@link Game} is recorded as a small binary event while the game still holds
+ * the locks of the zones involved, so events which depend on each other are
+ * recorded in the order they happened. Events are buffered in memory and
+ * written and synced to disk in batches (see {@link #run()}), which is
+ * called periodically by the server.
+ * <p>
+ * Every {@link #SNAPSHOT} events the whole game is saved to a snapshot
+ * file and the journal is truncated. {@link #replay(File)} rebuilds a game
+ * from the latest snapshot and all events recorded after it, so a game
+ * survives a crash of the server losing at most one batch of events.
+ * <p>
+ * Journal consists of records <code>[int length][int crc][event]</code>,
+ * where an event is
+ * <code>[long seq][byte type][short player][utf cardID][int value][swaps]</code>.
+ * A record which is incomplete or does not match its checksum ends
+ * the journal.
+ */
+class Journal implements Runnable {
+    /**
+     * Directory in which journals of all tables are kept. If system property
+     * <code>mtg.server.journal</code> is set to <code>none</code>, games are
+     * not journaled.
+     */
+    static final String DIRECTORY = System.getProperty("mtg.server.journal",
+            new File(Main.DIRECTORY, "Journal").getPath());
+    /**
+     * Number of events after which a new snapshot is taken.
+     */
+    static final int SNAPSHOT = Integer.getInteger(
+            "mtg.server.journal.snapshot", 1000);
+    /**
+     * Interval between syncing the journal to disk in milliseconds.
+     */
+    static final long FLUSH = 100;
+
+    static final byte LIBRARY_DRAW = 1;
+    static final byte LIBRARY_PLAY_TOP = 2;
+    static final byte LIBRARY_PLAY = 3;
+    static final byte LIBRARY_TO_HAND = 4;
+    static final byte LIBRARY_TO_TOP = 5;
+    static final byte LIBRARY_DESTROY = 6;
+    static final byte LIBRARY_EXILE = 7;
+    static final byte LIBRARY_SHUFFLE = 8;
+    static final byte HAND_PLAY = 9;
+    static final byte HAND_TO_LIBRARY = 10;
+    static final byte HAND_DESTROY = 11;
+    static final byte HAND_EXILE = 12;
+    static final byte TABLE_TAKE = 13;
+    static final byte TABLE_TO_LIBRARY = 14;
+    static final byte TABLE_DESTROY = 15;
+    static final byte TABLE_EXILE = 16;
+    static final byte GRAVEYARD_PLAY = 17;
+    static final byte GRAVEYARD_TO_HAND = 18;
+    static final byte GRAVEYARD_EXILE = 19;
+    static final byte GRAVEYARD_TO_LIBRARY = 20;
+    static final byte EXILED_PLAY = 21;
+    static final byte EXILED_TO_HAND = 22;
+    static final byte EXILED_TO_GRAVEYARD = 23;
+    static final byte EXILED_TO_LIBRARY = 24;
+    static final byte SET_POISON = 25;
+    static final byte SET_HEALTH = 26;
+    static final byte KILL = 27;
+    static final byte RESTART = 28;
+    static final byte CREATE_TOKEN = 29;
+
+    static final String JOURNAL = "journal";
+    static final String SNAPSHOT_FILE = "snapshot";
+
+    private final File directory;
+    private final FileChannel channel;
+    /**
+     * Held while the journal is written to disk or closed. It is a lock
+     * rather than a monitor, as it is held while blocked on disk.
+     */
+    private final ReentrantLock flushing;
+    /**
+     * True once the journal has been closed. Guarded by flushing.
+     */
+    private boolean closed;
+    private Game game;
+
+    /**
+     * Events not written yet. Guarded by <code>this</code>.
+     */
+    private Buffer buffer;
+    private DataOutputStream out;
+    private Buffer spare;
+    private long seq;
+    private int sinceSnapshot;
+
+    private Journal(File directory) throws IOException {
+        this.directory = directory;
+        directory.mkdirs();
+        this.channel = FileChannel.open(new File(directory, JOURNAL).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.flushing = new ReentrantLock();
+        this.buffer = new Buffer();
+        this.out = new DataOutputStream(buffer);
+        this.spare = new Buffer();
+    }
+
+    /**
+     * Opens a new journal for a table, unless journaling is disabled.
+     * @param table table's name
+     * @return journal or null if games are not journaled or the journal
+     * cannot be created
+     */
+    static Journal open(String table) {
+        if ("none".equals(DIRECTORY)) {
+            return null;
+        }
+        String name = (table.isEmpty()? "default" : table)
+                .replaceAll("[^A-Za-z0-9_-]", "_")
+                + "-" + System.currentTimeMillis();
+        try {
+            return new Journal(new File(DIRECTORY, name));
+        } catch (IOException ex) {
+            Debug.p("Journal of table " + table + " cannot be created: " + ex,
+                    Debug.E);
+            return null;
+        }
+    }
+
+    /**
+     * Returns directory of the journal, to be passed to {@link #replay(File)}.
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Starts journaling a new game by saving its initial snapshot.
+     * @param game game which has just been created
+     */
+    void start(Game game) {
+        this.game = game;
+        snapshot();
+    }
+
+    /**
+     * Records an event. Called by {@link Game} while holding locks of
+     * the zones which have been modified.
+     * @param type one of event types
+     * @param player player, or -1 if not applicable
+     * @param cardID card's ID, may be null
+     * @param value value of counters or -1
+     * @param swaps swaps made by shuffling, may be null
+     */
+    synchronized void record(byte type, int player, String cardID, int value,
+            int[] swaps) {
+        int start = buffer.size();
+        try {
+            out.writeInt(0); //length, set below
+            out.writeInt(0); //crc, set below
+            out.writeLong(++seq);
+            out.writeByte(type);
+            out.writeShort(player);
+            out.writeUTF(cardID == null? "" : cardID);
+            out.writeInt(value);
+            writeInts(out, swaps);
+        } catch (IOException ex) {
+            //ByteArrayOutputStream does not throw
+        }
+        byte[] b = buffer.array();
+        int length = buffer.size() - start - 8;
+        CRC32 crc = new CRC32();
+        crc.update(b, start + 8, length);
+        putInt(b, start, length);
+        putInt(b, start + 4, (int) crc.getValue());
+        sinceSnapshot++;
+    }
+
+    /**
+     * Writes buffered events to the journal file and syncs it. Takes
+     * a snapshot if enough events have been recorded since the previous one.
+     * Called periodically on a worker thread. If the previous call is still
+     * writing or the journal has been closed, it does nothing.
+     */
+    @Override
+    public void run() {
+        if (!flushing.tryLock()) {
+            return;
+        }
+        try {
+            if (closed) {
+                return;
+            }
+            flush();
+            boolean snapshot;
+            synchronized (this) {
+                snapshot = sinceSnapshot >= SNAPSHOT;
+            }
+            if (snapshot) {
+                snapshot();
+            }
+        } finally {
+            flushing.unlock();
+        }
+    }
+
+    private void flush() {
+        Buffer full;
+        synchronized (this) {
+            if (buffer.size() == 0) {
+                return;
+            }
+            full = buffer;
+            buffer = spare;
+            out = new DataOutputStream(buffer);
+            spare = full;
+        }
+        try {
+            ByteBuffer b = ByteBuffer.wrap(full.array(), 0, full.size());
+            while (b.hasRemaining()) {
+                channel.write(b);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            Debug.p("Journal " + directory + " cannot be written: " + ex,
+                    Debug.E);
+        }
+        synchronized (this) {
+            spare.reset();
+        }
+    }
+
+    /**
+     * Saves the whole game to the snapshot file and truncates the journal.
+     * Events recorded after the snapshot stay in the buffer, while events
+     * written before it are skipped by {@link #replay(File)} thanks to their
+     * sequence numbers, so a crash at any moment does not lose nor repeat
+     * any event.
+     */
+    private void snapshot() {
+        File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        // game's locks are held only while it is written to memory
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream dos = new DataOutputStream(bytes);
+            game.snapshot(dos, this);
+            dos.flush();
+            bytes.writeTo(fos);
+            fos.getFD().sync();
+        } catch (IOException ex) {
+            Debug.p("Snapshot of " + directory + " cannot be saved: " + ex,
+                    Debug.E);
+            return;
+        }
+        try {
+            File file = new File(directory, SNAPSHOT_FILE);
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            channel.truncate(0);
+            channel.position(0);
+        } catch (IOException ex) {
+            Debug.p("Snapshot of " + directory + " cannot be saved: " + ex,
+                    Debug.E);
+        }
+    }
+
+    /**
+     * Returns sequence number of the last event recorded. Called by
+     * {@link Game} while holding all its locks.
+     */
+    synchronized long snapshotTaken() {
+        sinceSnapshot = 0;
+        return seq;
+    }
+
+    /**
+     * Writes all buffered events and closes the journal. If the game has
+     * finished, nothing is written and the journal is deleted. Waits for a periodic flush in
+     * progress and blocks on disk, so it should be called on a worker
+     * thread, never on a reactor.
+     * @param finished true if the game has finished and will not be replayed
+     */
+    void close(boolean finished) {
+        flushing.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!finished) {
+                flush();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Debug.p("Journal " + directory + " cannot be closed: " + ex,
+                        Debug.W);
+            }
+        } finally {
+            flushing.unlock();
+        }
+        if (finished) {
+            new File(directory, JOURNAL).delete();
+            new File(directory, SNAPSHOT_FILE).delete();
+            directory.delete();
+        }
+    }
+
+    /**
+     * Rebuilds a game from a journal directory: restores the latest snapshot
+     * and applies all events recorded after it. The game returned is not
+     * journaled.
+     * @param directory directory of the journal
+     * @return game as it was after the last event written to disk
+     * @throws IOException if there is no snapshot or it cannot be read
+     */
+    static Game replay(File directory) throws IOException {
+        Game game;
+        long last;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, SNAPSHOT_FILE))))) {
+            last = in.readLong();
+            game = new Game(in);
+        }
+        int applied = 0;
+        File file = new File(directory, JOURNAL);
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    int length = in.readInt();
+                    int crc = in.readInt();
+                    if (length < 0 || length > 1 << 20) {
+                        break;
+                    }
+                    byte[] b = new byte[length];
+                    in.readFully(b);
+                    CRC32 c = new CRC32();
+                    c.update(b);
+                    if ((int) c.getValue() != crc) {
+                        break;
+                    }
+                    DataInputStream e = new DataInputStream(
+                            new ByteArrayInputStream(b));
+                    long s = e.readLong();
+                    byte type = e.readByte();
+                    int player = e.readShort();
+                    String cardID = e.readUTF();
+                    int value = e.readInt();
+                    int[] swaps = readInts(e);
+                    if (s > last) {
+                        game.apply(type, player,
+                                cardID.isEmpty()? null : cardID, value, swaps);
+                        last = s;
+                        applied++;
+                    }
+                }
+            } catch (EOFException ex) {
+                //end of journal, possibly a torn record
+            }
+        }
+        Debug.p("Journal " + directory + " replayed: " + applied
+                + " events after snapshot", Debug.I);
+        return game;
+    }
+
+    /**
+     * Writes an array of ints, which may be null: its length (-1 if it is
+     * null) and all its elements as ints, so swaps of any library position
+     * are replayed exactly.
+     */
+    static void writeInts(DataOutputStream out, int[] a) throws IOException {
+        if (a == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(a.length);
+        for (int e : a) {
+            out.writeInt(e);
+        }
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        int[] a = new int[length];
+        for (int i = 0; i < length; i++) {
+            a[i] = in.readInt();
+        }
+        return a;
+    }
+
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Stream giving access to its internal array, so events can be written
+     * to disk without copying them.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(4096);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import mtg.Deck;
+import server.flags.CreateToken;
+import server.flags.GameState;
+
+/**
+ * Checks that {@link Journal#replay(File)} rebuilds a game exactly. Random
+ * moves between all zones, counters, tokens, killing and restarting players
+ * are made on a journaled game, whose journal is written to disk now and
+ * then as the server does, so snapshots are taken in the middle of the game.
+ * Then the journal is closed as if the server has stopped and the game is
+ * replayed from it. Libraries, hands, graveyards, exiled cards, the table,
+ * health and poison of both games are compared.
+ * <p>
+ * Usage: <code>server.JournalCheck [seed]</code>, the number of moves is set
+ * by <code>mtg.check.operations</code>. The journal is kept in
+ * <code>mtg.server.journal</code> and deleted if the check passes. Exits
+ * with status 1 and prints the seed and the first difference.
+ */
+public class JournalCheck {
+    private static final int OPERATIONS
+            = Integer.getInteger("mtg.check.operations", 20000);
+    private static final int PLAYERS = 3;
+    private static final int DECK = 60;
+    /**
+     * Number of moves after which the journal is written to disk.
+     */
+    private static final int FLUSH = 50;
+
+    private final Random random;
+    private final Journal journal;
+    private final Game game;
+    private final String[] IDs;
+
+    private JournalCheck(long seed, Journal journal) {
+        this.random = new Random(seed);
+        this.journal = journal;
+        Deck[] decks = new Deck[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            decks[i] = new Deck();
+            decks[i].addCard("Forest", DECK / 2);
+            decks[i].addCard("Island", DECK / 2);
+        }
+        this.game = new Game(decks, journal);
+        this.IDs = game.getAllCardsList().keySet().toArray(new String[0]);
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = args.length > 0? Long.parseLong(args[0])
+                : System.nanoTime();
+        Journal journal = Journal.open("JournalCheck");
+        if (journal == null) {
+            System.out.println("FAILED journal cannot be created in "
+                    + Journal.DIRECTORY);
+            System.exit(1);
+        }
+        JournalCheck check = new JournalCheck(seed, journal);
+        for (int i = 0; i < OPERATIONS; i++) {
+            check.move();
+            if (i % FLUSH == FLUSH - 1) {
+                journal.run();
+            }
+        }
+        journal.close(false);
+
+        File directory = journal.getDirectory();
+        long snapshot;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(
+                new File(directory, Journal.SNAPSHOT_FILE)))) {
+            snapshot = in.readLong();
+        }
+        String difference = snapshot > 0? compare(check.game,
+                Journal.replay(directory))
+                : "no snapshot has been taken during the game";
+        if (difference != null) {
+            System.out.println("FAILED seed " + seed + ", journal "
+                    + directory + ": " + difference);
+            System.exit(1);
+        }
+        for (File e : directory.listFiles()) {
+            e.delete();
+        }
+        directory.delete();
+        System.out.println(OPERATIONS + " moves, snapshot after event "
+                + snapshot + ", seed " + seed + ", OK");
+        System.exit(0);
+    }
+
+    /**
+     * Makes a random move of a random card. Most moves fail, because the card
+     * is not in the source zone, and are not journaled.
+     */
+    private void move() {
+        String ID = IDs[random.nextInt(IDs.length)];
+        int player = ID.charAt(0) - 'A';
+        switch (random.nextInt(30)) {
+            case 0: game.libraryDraw(player); break;
+            case 1: game.libraryPlayTop(player); break;
+            case 2: game.libraryPlay(player, ID); break;
+            case 3: game.libraryToHand(player, ID); break;
+            case 4: game.libraryToTop(player, ID); break;
+            case 5: game.libraryDestroy(player, ID); break;
+            case 6: game.libraryExile(player, ID); break;
+            case 7: game.libraryShuffle(player); break;
+            case 8: game.handPlay(player, ID); break;
+            case 9: game.handToLibrary(player, ID); break;
+            case 10: game.handDestroy(player, ID); break;
+            case 11: game.handExile(player, ID); break;
+            case 12: game.tableTake(ID); break;
+            case 13: game.tablePutOnTopOfLibrary(ID); break;
+            case 14: game.tableDestroy(ID); break;
+            case 15: game.tableExile(ID); break;
+            case 16: game.graveyardPlay(ID); break;
+            case 17: game.graveyardToHand(ID); break;
+            case 18: game.graveyardExile(ID); break;
+            case 19: game.graveyardToLibrary(ID); break;
+            case 20: game.exiledPlay(ID); break;
+            case 21: game.exiledToHand(ID); break;
+            case 22: game.exiledToGraveyard(ID); break;
+            case 23: game.exiledToLibrary(ID); break;
+            case 24:
+                CreateToken ct = new CreateToken(false, false, true, false,
+                        false, "Soldier", "Creature - Soldier", "", true, 1, 1);
+                ct.requestor = player;
+                game.createToken(ct);
+                break;
+            case 25:
+                String[] table = game.tableView();
+                if (table.length > 0) {
+                    game.tableDestroy(table[random.nextInt(table.length)]);
+                }
+                break;
+            case 26: game.playerSetHealth(player, random.nextInt(41) - 20); break;
+            case 27: game.playerSetPoison(player, random.nextInt(11)); break;
+            case 28:
+                if (random.nextInt(100) == 0) {
+                    game.kill(player);
+                }
+                break;
+            case 29:
+                if (random.nextInt(50) == 0) {
+                    game.restart(player);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Compares all zones and counters of a replayed game with the original.
+     * @return description of a difference or null if there is none
+     */
+    private static String compare(Game expected, Game actual) {
+        String r = null;
+        for (int p = 0; p < PLAYERS && r == null; p++) {
+            r = compare("library " + p, actual.librarySearch(p, -1),
+                    expected.librarySearch(p, -1));
+            if (r == null) {
+                r = compare("hand " + p, actual.handView(p),
+                        expected.handView(p));
+            }
+            if (r == null) {
+                r = compare("graveyard " + p, actual.graveyardView(p),
+                        expected.graveyardView(p));
+            }
+            if (r == null) {
+                r = compare("exiled " + p, actual.exiledView(p),
+                        expected.exiledView(p));
+            }
+        }
+        if (r == null) {
+            r = compare("table", actual.tableView(), expected.tableView());
+        }
+        if (r == null) {
+            GameState a = actual.state(-1);
+            GameState e = expected.state(-1);
+            if (!Arrays.equals(a.health, e.health)) {
+                r = "health: " + Arrays.toString(a.health) + ", expected "
+                        + Arrays.toString(e.health);
+            } else if (!Arrays.equals(a.poison, e.poison)) {
+                r = "poison: " + Arrays.toString(a.poison) + ", expected "
+                        + Arrays.toString(e.poison);
+            }
+        }
+        return r;
+    }
+
+    private static String compare(String zone, String[] actual,
+            String[] expected) {
+        return Arrays.equals(actual, expected)? null : zone + ": "
+                + Arrays.toString(actual) + ", expected "
+                + Arrays.toString(expected);
+    }
+}
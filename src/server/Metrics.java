@@ -0,0 +1,356 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import mtg.Debug;
+import server.net.ActionCodec;
+
+/**
+ * Server-wide counters and latency histograms. For every action type there
+ * is a preallocated {@link Histogram} of handling time (decoding and
+ * handling an action received, measured by {@link Reactor}) and one of
+ * fan-out time (from queueing a frame for a client until it is written to
+ * the socket, measured by {@link Seat}), so recording allocates nothing
+ * and never takes a lock.
+ * <p>
+ * Metrics are exposed as MXBeans: {@link MetricsMXBean} for the whole
+ * server and {@link TableMXBean} for each open table. If
+ * <code>mtg.server.metrics.port</code> system property is set, they are also
+ * served in Prometheus text format at <code>/metrics</code> on that port of
+ * the loopback interface.
+ */
+class Metrics implements MetricsMXBean {
+    /**
+     * Port of the text endpoint, 0 disables it.
+     */
+    static final int PORT = Integer.getInteger("mtg.server.metrics.port", 0);
+    static final String DOMAIN = "mtg.server";
+
+    private static final Histogram[] HANDLING = histograms();
+    private static final Histogram[] FANOUT = histograms();
+    private static final AtomicLong BYTES_IN = new AtomicLong();
+    private static final AtomicLong BYTES_OUT = new AtomicLong();
+
+    private static final Metrics METRICS = new Metrics();
+    private static final ConcurrentHashMap<GameSession, Table> TABLES
+            = new ConcurrentHashMap<>();
+    private static boolean registered;
+
+    private Metrics() {}
+
+    private static Histogram[] histograms() {
+        Histogram[] r = new Histogram[ActionCodec.TAG_COUNT];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new Histogram();
+        }
+        return r;
+    }
+
+    /**
+     * Records handling of an action received.
+     * @param tag codec tag of the action
+     * @param nanos time of decoding and handling
+     */
+    static void handled(int tag, long nanos) {
+        HANDLING[tag].record(nanos);
+    }
+
+    /**
+     * Records a frame written to a client.
+     * @param tag codec tag of the action
+     * @param nanos time since the frame was queued
+     */
+    static void written(int tag, long nanos) {
+        FANOUT[tag].record(nanos);
+    }
+
+    static void bytesIn(long bytes) {
+        BYTES_IN.addAndGet(bytes);
+    }
+
+    static void bytesOut(long bytes) {
+        BYTES_OUT.addAndGet(bytes);
+    }
+
+    /**
+     * Registers the server-wide MXBean, unless it is already registered.
+     */
+    static synchronized void register() {
+        if (!registered) {
+            registered = register(METRICS, "type=Metrics");
+        }
+    }
+
+    /**
+     * Registers an MXBean of an open table.
+     * @param session table
+     */
+    static void register(GameSession session) {
+        Table table = new Table(session);
+        if (register(table, "type=Table,name="
+                + ObjectName.quote(session.getTable()))) {
+            TABLES.put(session, table);
+        }
+    }
+
+    /**
+     * Unregisters an MXBean of a closed table.
+     * @param session table
+     */
+    static void unregister(GameSession session) {
+        if (TABLES.remove(session) != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                        new ObjectName(DOMAIN + ":type=Table,name="
+                        + ObjectName.quote(session.getTable())));
+            } catch (JMException ex) {
+                Debug.p("Server: Error while unregistering metrics of "
+                        + session.getName() + ": " + ex, Debug.W);
+            }
+        }
+    }
+
+    private static boolean register(Object bean, String name) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        try {
+            mbs.registerMBean(bean, new ObjectName(DOMAIN + ":" + name));
+            return true;
+        } catch (JMException ex) {
+            Debug.p("Server: Error while registering metrics " + name + ": "
+                    + ex, Debug.W);
+            return false;
+        }
+    }
+
+    /**
+     * Starts serving metrics on {@link #PORT} of the loopback interface.
+     * @return started HTTP server or null if the endpoint is disabled or
+     * cannot be started
+     */
+    static HttpServer listen() {
+        if (PORT <= 0) {
+            return null;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), PORT), 0);
+            http.createContext("/metrics", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    byte[] body = METRICS.getText().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type",
+                            "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                }
+            });
+            http.start();
+            Debug.p("Server: metrics available at http://localhost:" + PORT
+                    + "/metrics");
+            return http;
+        } catch (IOException ex) {
+            Debug.p("Server: Metrics endpoint could not be started: " + ex,
+                    Debug.W);
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, Long> getActionCounts() {
+        TreeMap<String, Long> r = new TreeMap<>();
+        for (int i = 0; i < HANDLING.length; i++) {
+            long count = HANDLING[i].getCount();
+            if (count > 0) {
+                r.put(ActionCodec.nameOf(i), count);
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public Map<String, Long> getHandlingP50() {
+        return percentiles(HANDLING, 50);
+    }
+
+    @Override
+    public Map<String, Long> getHandlingP99() {
+        return percentiles(HANDLING, 99);
+    }
+
+    @Override
+    public Map<String, Long> getFanoutP50() {
+        return percentiles(FANOUT, 50);
+    }
+
+    @Override
+    public Map<String, Long> getFanoutP99() {
+        return percentiles(FANOUT, 99);
+    }
+
+    private static Map<String, Long> percentiles(Histogram[] h, double p) {
+        TreeMap<String, Long> r = new TreeMap<>();
+        for (int i = 0; i < h.length; i++) {
+            if (h[i].getCount() > 0) {
+                r.put(ActionCodec.nameOf(i), h[i].percentile(p));
+            }
+        }
+        return r;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return BYTES_IN.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return BYTES_OUT.get();
+    }
+
+    @Override
+    public String getText() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP mtg_actions_total Actions received from clients.\n");
+        sb.append("# TYPE mtg_actions_total counter\n");
+        for (int i = 0; i < HANDLING.length; i++) {
+            long count = HANDLING[i].getCount();
+            if (count > 0) {
+                sb.append("mtg_actions_total{action=\"")
+                        .append(ActionCodec.nameOf(i)).append("\"} ")
+                        .append(count).append('\n');
+            }
+        }
+        histograms(sb, "mtg_action_handling_seconds",
+                "Time of decoding and handling an action received.", HANDLING);
+        histograms(sb, "mtg_fanout_seconds",
+                "Time from queueing a frame until it is written to a client.",
+                FANOUT);
+        sb.append("# TYPE mtg_bytes_in_total counter\n");
+        sb.append("mtg_bytes_in_total ").append(BYTES_IN.get()).append('\n');
+        sb.append("# TYPE mtg_bytes_out_total counter\n");
+        sb.append("mtg_bytes_out_total ").append(BYTES_OUT.get()).append('\n');
+
+        StringBuilder depths = new StringBuilder();
+        StringBuilder in = new StringBuilder();
+        StringBuilder out = new StringBuilder();
+        StringBuilder spectators = new StringBuilder();
+        for (Table table : TABLES.values()) {
+            String name = escape(table.session.getTable());
+            int[] d = table.getQueueDepths();
+            long[] bi = table.getBytesIn();
+            long[] bo = table.getBytesOut();
+            int seats = Math.min(d.length, Math.min(bi.length, bo.length));
+            for (int i = 0; i < seats; i++) {
+                String labels = "{table=\"" + name + "\",seat=\"" + i + "\"} ";
+                depths.append("mtg_seat_queue_depth").append(labels)
+                        .append(d[i]).append('\n');
+                in.append("mtg_seat_bytes_in_total").append(labels)
+                        .append(bi[i]).append('\n');
+                out.append("mtg_seat_bytes_out_total").append(labels)
+                        .append(bo[i]).append('\n');
+            }
+            spectators.append("mtg_table_spectators{table=\"").append(name)
+                    .append("\"} ").append(table.getSpectators()).append('\n');
+        }
+        sb.append("# TYPE mtg_seat_queue_depth gauge\n").append(depths);
+        sb.append("# TYPE mtg_seat_bytes_in_total counter\n").append(in);
+        sb.append("# TYPE mtg_seat_bytes_out_total counter\n").append(out);
+        sb.append("# TYPE mtg_table_spectators gauge\n").append(spectators);
+        return sb.toString();
+    }
+
+    /**
+     * Appends histograms of all action types which have been recorded.
+     */
+    private static void histograms(StringBuilder sb, String name, String help,
+            Histogram[] h) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        for (int i = 0; i < h.length; i++) {
+            long count = h[i].getCount();
+            if (count == 0) {
+                continue;
+            }
+            String action = ActionCodec.nameOf(i);
+            long cumulative = 0;
+            for (int b = 0; b < Histogram.BUCKETS - 1; b++) {
+                cumulative += h[i].getBucket(b);
+                sb.append(name).append("_bucket{action=\"").append(action)
+                        .append("\",le=\"").append(seconds(Histogram.bound(b)))
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            sb.append(name).append("_bucket{action=\"").append(action)
+                    .append("\",le=\"+Inf\"} ").append(count).append('\n');
+            sb.append(name).append("_sum{action=\"").append(action)
+                    .append("\"} ").append(seconds(h[i].getSum())).append('\n');
+            sb.append(name).append("_count{action=\"").append(action)
+                    .append("\"} ").append(count).append('\n');
+        }
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9g", nanos / 1e9);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    /**
+     * MXBean of a single table.
+     */
+    private static class Table implements TableMXBean {
+        final GameSession session;
+
+        Table(GameSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public int getStatus() {
+            return session.getStatus();
+        }
+
+        @Override
+        public int getPlayers() {
+            return session.getPlayers();
+        }
+
+        @Override
+        public int getSpectators() {
+            return session.spectators.getCount();
+        }
+
+        @Override
+        public int[] getQueueDepths() {
+            return session.getQueueDepths();
+        }
+
+        @Override
+        public long[] getBytesIn() {
+            return session.getBytes(true);
+        }
+
+        @Override
+        public long[] getBytesOut() {
+            return session.getBytes(false);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Management interface of server-wide metrics, registered as
+ * <code>mtg.server:type=Metrics</code>. Maps are keyed by action class name
+ * and contain only actions which have been received or sent at least once.
+ * All durations are in nanoseconds.
+ */
+public interface MetricsMXBean {
+    /**
+     * Returns the number of actions received from all clients.
+     * @return map from action name to number of actions
+     */
+    Map<String, Long> getActionCounts();
+
+    /**
+     * Returns the median time of decoding and handling a received action.
+     * @return map from action name to duration
+     */
+    Map<String, Long> getHandlingP50();
+
+    /**
+     * Returns the 99th percentile of time of decoding and handling
+     * a received action.
+     * @return map from action name to duration
+     */
+    Map<String, Long> getHandlingP99();
+
+    /**
+     * Returns the median time from queueing a frame for a client until it
+     * is written to client's socket.
+     * @return map from action name to duration
+     */
+    Map<String, Long> getFanoutP50();
+
+    /**
+     * Returns the 99th percentile of time from queueing a frame for a client
+     * until it is written to client's socket.
+     * @return map from action name to duration
+     */
+    Map<String, Long> getFanoutP99();
+
+    /**
+     * Returns the number of bytes read from all clients.
+     * @return number of bytes
+     */
+    long getBytesIn();
+
+    /**
+     * Returns the number of bytes written to all clients.
+     * @return number of bytes
+     */
+    long getBytesOut();
+
+    /**
+     * Returns all metrics of the server in Prometheus text format.
+     * @return metrics as text
+     */
+    String getText();
+}
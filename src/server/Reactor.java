@@ -0,0 +1,229 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import mtg.Debug;
+import server.flags.Action;
+import server.net.ActionCodec;
+import server.net.Frame;
+
+/**
+ * Event loop owning players' channels. A single thread waits on
+ * a selector, decodes complete frames as they arrive and dispatches them
+ * to seats' {@link GameSession}s, so the number of server threads does not
+ * grow with the number of players. A server runs a small pool of reactors
+ * and spreads seats of all its tables among them.
+ * <p>
+ * Outgoing frames are queued in {@link Seat}s and written by this thread
+ * whenever a channel is ready to accept them.
+ * <p>
+ * Time of decoding and handling every action is recorded in {@link Metrics}
+ * by action type.
+ */
+class Reactor extends Thread {
+    /**
+     * How long the reactor keeps writing frames queued for closed seats
+     * after it has been shut down.
+     */
+    private static final long LINGER = 1000;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Seat> registrations;
+    private final ConcurrentLinkedQueue<Seat> flushes;
+    private final ConcurrentLinkedQueue<Seat> drops;
+    private volatile long deadline;
+
+    Reactor(int number) throws IOException {
+        super("Server Reactor-" + number);
+        this.selector = Selector.open();
+        this.registrations = new ConcurrentLinkedQueue<>();
+        this.flushes = new ConcurrentLinkedQueue<>();
+        this.drops = new ConcurrentLinkedQueue<>();
+        this.deadline = Long.MAX_VALUE;
+        setDaemon(true);
+    }
+
+    /**
+     * Hands a seat over to this reactor. Seat's channel is switched to
+     * non-blocking mode, so nothing else may read from it afterwards.
+     * @param seat seat to be registered
+     * @throws IOException if channel mode cannot be changed
+     */
+    void register(Seat seat) throws IOException {
+        seat.channel.configureBlocking(false);
+        registrations.add(seat);
+        selector.wakeup();
+    }
+
+    /**
+     * Requests writing queued frames of a seat. If called by the reactor
+     * thread, frames are written immediately.
+     * @param seat seat which has frames to be written
+     */
+    void flushLater(Seat seat) {
+        if (Thread.currentThread() == this) {
+            flush(seat);
+        } else {
+            flushes.add(seat);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Requests closing a seat which cannot keep up with the game. The seat
+     * is closed and its session informed by the reactor thread in its next
+     * pass, never while an action is being handled.
+     * @param seat seat to be dropped
+     */
+    void dropLater(Seat seat) {
+        drops.add(seat);
+        selector.wakeup();
+    }
+
+    /**
+     * Stops the event loop. Frames queued for already closed seats are still
+     * being written for a short while, then all channels are closed.
+     */
+    void shutdown() {
+        deadline = System.currentTimeMillis() + LINGER;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        Debug.p("Reactor: started");
+        while (isRunning()) {
+            try {
+                if (deadline == Long.MAX_VALUE) {
+                    selector.select();
+                } else {
+                    selector.select(LINGER / 10);
+                }
+            } catch (IOException ex) {
+                Debug.p("Reactor: Error while selecting: " + ex, Debug.E);
+                break;
+            }
+
+            Seat seat;
+            while ((seat = registrations.poll()) != null) {
+                try {
+                    seat.key = seat.channel.register(
+                            selector, SelectionKey.OP_READ, seat);
+                    flush(seat);
+                } catch (IOException ex) {
+                    lost(seat);
+                }
+            }
+            while ((seat = flushes.poll()) != null) {
+                flush(seat);
+            }
+            while ((seat = drops.poll()) != null) {
+                lost(seat);
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                seat = (Seat) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        flush(seat);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(seat);
+                    }
+                } catch (CancelledKeyException ex) {
+                    //seat has been closed by another thread
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((Seat) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {}
+        Debug.p("Reactor: terminates");
+    }
+
+    /**
+     * Returns true until the reactor is shut down and either all channels
+     * are closed or linger time has passed.
+     */
+    private boolean isRunning() {
+        return deadline == Long.MAX_VALUE
+                || (System.currentTimeMillis() < deadline
+                && !selector.keys().isEmpty());
+    }
+
+    private void read(Seat seat) {
+        if (!seat.isConnected()) {
+            return;
+        }
+        ByteBuffer[] frames;
+        try {
+            frames = seat.read();
+        } catch (IOException ex) {
+            lost(seat);
+            return;
+        }
+        for (ByteBuffer frame : frames) {
+            Action object = null;
+            int tag = ActionCodec.tagOf(frame, frame.position());
+            long start = System.nanoTime();
+            try {
+                object = (Action) Frame.decode(frame);
+                if (seat.spectator) {
+                    seat.session.spectators.handle(seat, object);
+                } else {
+                    seat.session.handle(seat.id, object);
+                }
+            } catch (Exception ex) {
+                Debug.p("Reactor: error while dealing with " + object
+                        + " from player " + seat.id + ": " + ex);
+            }
+            Metrics.handled(tag, System.nanoTime() - start);
+            if (!seat.isConnected()) {
+                return;
+            }
+        }
+    }
+
+    private void flush(Seat seat) {
+        SelectionKey key = seat.key;
+        if (key == null || !key.isValid()) {
+            return; //not yet registered or already closed
+        }
+        try {
+            if (seat.flush()) {
+                if (!seat.isConnected()) {
+                    seat.closeNow();
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } else if (!seat.isConnected()) {
+                key.interestOps(SelectionKey.OP_WRITE); //closing, only flush
+            } else {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ex) {
+            lost(seat);
+        } catch (CancelledKeyException ex) {}
+    }
+
+    private void lost(Seat seat) {
+        if (seat.spectator) {
+            seat.session.spectators.leave(seat);
+        } else if (seat.isConnected()) {
+            Debug.p("Connection to player " + seat.id + " has been lost");
+            seat.session.connectionLost(seat.id); //may hold the seat
+        }
+        seat.closeNow();
+    }
+}
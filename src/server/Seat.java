@@ -0,0 +1,675 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+import mtg.Debug;
+import server.flags.Action;
+import server.flags.DragCard;
+import server.flags.Player;
+import server.flags.GameState;
+import server.net.ActionCodec;
+import server.net.CardUpload;
+import server.net.Frame;
+
+/**
+ * Connection of a single player, owned by a {@link Reactor}. It keeps
+ * the bytes read so far (until they form a complete frame) and frames
+ * waiting to be written to the player.
+ * <p>
+ * Any thread may call {@link #send(ByteBuffer, Object)}, but only the reactor
+ * thread reads from and writes to the channel, so a player on a slow
+ * connection never blocks the thread relaying actions to the others.
+ * <p>
+ * The outbound queue is bounded. What happens when it is full is decided by
+ * {@link Policy}, set with <code>mtg.server.queue.policy</code> system
+ * property, while its capacity (in frames) is set with
+ * <code>mtg.server.queue.capacity</code>. A player disconnected because
+ * of a full queue may reconnect and receive the whole game again.
+ * <p>
+ * Card images are sent as chunks on the same connection. A chunk is taken
+ * from {@link CardUpload}s only when all queued frames have been written,
+ * so game actions wait for at most one chunk and uploads never fill
+ * the queue. Images are found and opened by a worker thread, never under
+ * the lock of the queue.
+ * <p>
+ * Frames which have been written are kept in a bounded history. If
+ * the connection is lost during a game, the seat may be held (see
+ * {@link #hold()}), still queueing frames, until the player reconnects.
+ * A new seat then takes over the frames the player has not received
+ * (see {@link #Seat(Seat, long, SocketChannel, Reactor, GameState)}) or, if
+ * they are no longer kept, sends the whole game instead.
+ * <p>
+ * A seat may also belong to a spectator (see {@link Spectators}). Such
+ * a seat has no player's id, keeps no history and its capacity is set when
+ * the spectator joins.
+ * <p>
+ * Seat counts bytes read and written and records in {@link Metrics} how long
+ * each frame has waited for being written.
+ */
+class Seat {
+    private static final int INITIAL_BUFFER = 4096;
+
+    /**
+     * Describes what a seat does when its outbound queue is full.
+     */
+    enum Policy {
+        /**
+         * Queued frames superseded by newer ones (drags of the same card,
+         * changes of the same counter) are removed. If nothing can be
+         * removed, player is disconnected.
+         */
+        COALESCE,
+        /**
+         * Queued drags superseded by newer drags of the same card are removed.
+         * If nothing can be removed, player is disconnected.
+         */
+        DROP_DRAGS,
+        /**
+         * Player is disconnected.
+         */
+        DISCONNECT
+    }
+
+    static final int CAPACITY = Integer.getInteger(
+            "mtg.server.queue.capacity", 1024);
+    static final Policy POLICY = policy(
+            System.getProperty("mtg.server.queue.policy"));
+    /**
+     * Number of frames written which are kept, so they can be sent again
+     * to a player who reconnects.
+     */
+    static final int HISTORY = Integer.getInteger(
+            "mtg.server.reconnect.history", 4096);
+
+    final int id;
+    final boolean spectator;
+    final SocketChannel channel;
+    final GameSession session;
+    final Reactor reactor;
+
+    /**
+     * Frames waiting to be written. Guarded by itself.
+     */
+    private final ArrayDeque<Outgoing> outbound;
+    private final int capacity;
+    /**
+     * Card transfers waiting to be sent, in order. Guarded by outbound.
+     */
+    private final ArrayDeque<CardUpload> uploads;
+    /**
+     * The last frames taken from the queue to be written. Guarded by outbound.
+     */
+    private final ArrayDeque<Outgoing> history;
+    /**
+     * Number of frames taken from the queue to be written, including frames
+     * written by the seats this one has taken over. Guarded by outbound.
+     */
+    private long written;
+    /**
+     * Seat which has taken over this one, all frames are passed to it.
+     * Guarded by outbound.
+     */
+    private Seat successor;
+    /**
+     * Frame being written at the moment, accessed only by the reactor thread.
+     */
+    private volatile ByteBuffer current;
+    /**
+     * Codec tag of {@link #current} and when it has been queued, accessed only
+     * by the reactor thread. Chunks are not timed and have time 0.
+     */
+    private int currentTag;
+    private long currentQueued;
+    /**
+     * Upload whose chunk is being written, accessed only by the reactor
+     * thread. Data of the chunk follows {@link #current}.
+     */
+    private CardUpload uploading;
+    private ByteBuffer in;
+    SelectionKey key;
+
+    private volatile boolean connected;
+    private volatile boolean held;
+    private volatile boolean overflowed;
+
+    private volatile int peak;
+    private volatile long dropped;
+    /**
+     * Written only by the reactor thread.
+     */
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+
+    Seat(int id, SocketChannel channel, GameSession session, Reactor reactor) {
+        this(id, false, channel, session, reactor, CAPACITY);
+    }
+
+    /**
+     * Creates a seat of a spectator.
+     * @param channel spectator's channel
+     * @param session table watched
+     * @param reactor reactor for the channel
+     * @param capacity capacity of the outbound queue in frames
+     */
+    Seat(SocketChannel channel, GameSession session, Reactor reactor,
+            int capacity) {
+        this(-1, true, channel, session, reactor, capacity);
+    }
+
+    private Seat(int id, boolean spectator, SocketChannel channel,
+            GameSession session, Reactor reactor, int capacity) {
+        this.id = id;
+        this.spectator = spectator;
+        this.channel = channel;
+        this.session = session;
+        this.reactor = reactor;
+        this.capacity = capacity;
+        this.outbound = new ArrayDeque<>();
+        this.uploads = new ArrayDeque<>();
+        this.history = new ArrayDeque<>();
+        this.in = ByteBuffer.allocate(INITIAL_BUFFER);
+        this.connected = true;
+    }
+
+    /**
+     * Creates a seat for a player who has reconnected and takes over
+     * the frames of their held seat: frames written after the ones
+     * the player has received and frames still queued. Frames superseded by
+     * newer ones (see {@link #keyOf(Action)}) are skipped, so a player who has
+     * been away for a while receives only the latest positions and counters.
+     * All frames sent to the old seat later are passed to this one.
+     * <p>
+     * If the old seat does not have all the frames the player has missed
+     * (see {@link #canResume(long)}), the player receives the given state of
+     * the game instead of them. The state must have been taken when no
+     * action could be sent, so it includes all frames the old seat has been
+     * sent and none sent later.
+     * @param old held seat of the player
+     * @param received number of frames received by the player
+     * @param channel player's new channel
+     * @param reactor reactor for the new channel
+     * @param state state of the game sent if frames cannot be, may be null
+     * @throws IOException if frames cannot be sent again and there is no
+     * state or it cannot be encoded
+     */
+    Seat(Seat old, long received, SocketChannel channel, Reactor reactor,
+            GameState state) throws IOException {
+        this(old.id, channel, old.session, reactor);
+        synchronized (old.outbound) {
+            if (old.successor != null) {
+                throw new IOException("Seat already taken");
+            } else if (!old.canResume(received)) {
+                if (state == null) {
+                    throw new IOException("Too many frames missed");
+                }
+                outbound.add(new Outgoing(Frame.encode(state), null,
+                        System.nanoTime()));
+                take(old, received);
+                return;
+            }
+            long first = old.written - old.history.size();
+            ArrayList<Outgoing> missed = new ArrayList<>();
+            int i = 0;
+            for (Outgoing o : old.history) {
+                if (first + i++ < received) {
+                    history.add(o);
+                } else {
+                    missed.add(o);
+                }
+            }
+            missed.addAll(old.outbound);
+            HashSet<Object> newer = new HashSet<>();
+            for (int j = missed.size() - 1; j >= 0; j--) {
+                Object key = missed.get(j).key;
+                if (key != null && !newer.add(key)) {
+                    missed.set(j, null);
+                }
+            }
+            for (Outgoing o : missed) {
+                if (o != null) {
+                    outbound.add(new Outgoing(o.frame.duplicate(), o.key,
+                            o.queued));
+                }
+            }
+            take(old, received);
+        }
+    }
+
+    /**
+     * Returns true if this seat still has all frames a player who has
+     * received given number of them has missed, so they can be sent again.
+     * @param received number of frames received by the player
+     * @return true if no frame has been lost
+     */
+    boolean canResume(long received) {
+        synchronized (outbound) {
+            long first = written - history.size();
+            return !overflowed && received >= first && received <= written;
+        }
+    }
+
+    /**
+     * Takes over counters of an old seat and makes it pass all frames to this
+     * one. Called while holding the lock of the old seat's queue.
+     */
+    private void take(Seat old, long received) {
+        written = received;
+        bytesIn = old.bytesIn;
+        bytesOut = old.bytesOut;
+        old.outbound.clear();
+        old.successor = this;
+        old.held = false;
+    }
+
+    private static Policy policy(String name) {
+        if (name != null) {
+            try {
+                return Policy.valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                Debug.p("Server: Unknown queue policy " + name, Debug.W);
+            }
+        }
+        return Policy.COALESCE;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Returns true if the connection has been lost, but the seat is kept
+     * until the player reconnects.
+     * @return true if seat is held
+     */
+    boolean isHeld() {
+        return held;
+    }
+
+    /**
+     * Keeps this seat for the player, who has lost their connection, and
+     * closes the channel if it is still open. Frames are still queued, but
+     * card uploads are dropped.
+     */
+    void hold() {
+        held = true;
+        connected = false;
+        reactor.dropLater(this);
+    }
+
+    /**
+     * Stops holding this seat. Queued frames are dropped.
+     */
+    void release() {
+        synchronized (outbound) {
+            held = false;
+            outbound.clear();
+            history.clear();
+        }
+    }
+
+    /**
+     * Encodes and queues an action to be sent to this player.
+     * @param action action to be sent
+     */
+    void send(Action action) {
+        try {
+            send(Frame.encode(action), keyOf(action));
+        } catch (IOException ex) {
+            Debug.p("Server: Error while encoding " + action + " for player "
+                    + id + ": " + ex, Debug.E);
+        }
+    }
+
+    /**
+     * Queues an already encoded frame. The buffer is not modified, so the same
+     * frame may be queued for many players. If the queue is full,
+     * {@link #POLICY} is applied.
+     * @param frame encoded frame
+     * @param key key returned by {@link #keyOf(Action)} for the encoded action
+     */
+    void send(ByteBuffer frame, Object key) {
+        if (overflowed) {
+            return;
+        }
+        Seat next;
+        synchronized (outbound) {
+            next = successor;
+            if (next != null) {
+                //taken over by a reconnected player, passed on below
+            } else if (!connected && !held) {
+                return;
+            } else if (outbound.size() >= capacity && !makeRoom()) {
+                overflowed = true;
+                outbound.clear();
+                Debug.p("Server: Outbound queue of "
+                        + (spectator? "a spectator" : "player " + id)
+                        + " is full, " + (spectator? "spectator" : "player")
+                        + " will be disconnected", Debug.W);
+                reactor.dropLater(this);
+                return;
+            } else {
+                outbound.add(new Outgoing(frame.duplicate(), key,
+                        System.nanoTime()));
+                if (outbound.size() > peak) {
+                    peak = outbound.size();
+                }
+            }
+        }
+        if (next != null) {
+            next.send(frame, key);
+        } else if (connected) {
+            reactor.flushLater(this);
+        }
+    }
+
+    /**
+     * Queues card images to be sent to this player. They are sent after
+     * images queued earlier. Images are opened on a worker thread, as it may
+     * block on the disk, and the reactor takes chunks only after that.
+     * @param upload images to be sent
+     */
+    void upload(final CardUpload upload) {
+        if (!connected || overflowed) {
+            return;
+        }
+        synchronized (outbound) {
+            uploads.add(upload);
+        }
+        try {
+            session.execute(new Runnable() {
+                @Override
+                public void run() {
+                    upload.open();
+                    reactor.flushLater(Seat.this);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            synchronized (outbound) {
+                uploads.remove(upload); //server is shutting down
+            }
+            upload.close();
+        }
+    }
+
+    /**
+     * Returns a key identifying which queued frames an action supersedes.
+     * Frames of equal keys may be coalesced, null means that a frame must
+     * always be delivered.
+     * @param action action to be sent
+     * @return key of the action or null
+     */
+    static Object keyOf(Action action) {
+        if (action.getClass().equals(DragCard.class)) {
+            return ((DragCard) action).ID;
+        } else if (action.getClass().equals(Player.class)
+                && POLICY == Policy.COALESCE) {
+            Player p = (Player) action;
+            return p.target + (p.poisonOrHealth == Player.HEALTH? "H" : "P");
+        }
+        return null;
+    }
+
+    /**
+     * Removes queued frames superseded by newer frames of the same key.
+     * @return true if at least one frame has been removed
+     */
+    private boolean makeRoom() {
+        if (POLICY == Policy.DISCONNECT) {
+            return false;
+        }
+        HashSet<Object> newer = new HashSet<>();
+        int removed = 0;
+        Iterator<Outgoing> it = outbound.descendingIterator();
+        while (it.hasNext()) {
+            Object key = it.next().key;
+            if (key != null && !newer.add(key)) {
+                it.remove();
+                removed++;
+            }
+        }
+        dropped += removed;
+        return removed > 0;
+    }
+
+    /**
+     * Returns the number of frames waiting to be written to the player.
+     * @return current queue depth
+     */
+    int getQueueDepth() {
+        synchronized (outbound) {
+            return outbound.size() + (current == null? 0 : 1);
+        }
+    }
+
+    /**
+     * Returns the highest number of frames which have been waiting to be
+     * written to the player at once.
+     * @return peak queue depth
+     */
+    int getPeakQueueDepth() {
+        return peak;
+    }
+
+    /**
+     * Returns the number of frames removed from the queue because newer frames
+     * superseded them.
+     * @return number of coalesced frames
+     */
+    long getDroppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * Returns the number of bytes read from the player, including bytes read
+     * by the seats this one has taken over.
+     * @return number of bytes
+     */
+    long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Returns the number of bytes written to the player, including bytes
+     * written by the seats this one has taken over.
+     * @return number of bytes
+     */
+    long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Reads everything available from the channel and returns complete
+     * frames' payloads. Called only by the reactor thread.
+     * @return payloads of frames completed by this read, never null
+     * @throws IOException if channel has been closed by the other side or
+     * any other I/O error occurs
+     */
+    ByteBuffer[] read() throws IOException {
+        int read;
+        long total = 0;
+        do {
+            if (!in.hasRemaining()) {
+                grow(in.capacity() * 2);
+            }
+            read = channel.read(in);
+            if (read > 0) {
+                total += read;
+            }
+        } while (read > 0);
+        bytesIn += total;
+        Metrics.bytesIn(total);
+        if (read < 0) {
+            throw new IOException("Connection reset");
+        }
+
+        in.flip();
+        ArrayList<ByteBuffer> frames = new ArrayList<>(2);
+        while (in.remaining() >= Frame.HEADER) {
+            int length = in.getInt(in.position());
+            Frame.checkLength(length);
+            if (in.remaining() < Frame.HEADER + length) {
+                if (in.capacity() < Frame.HEADER + length) {
+                    in.compact();
+                    grow(Frame.HEADER + length);
+                    in.flip();
+                }
+                break;
+            }
+            in.position(in.position() + Frame.HEADER);
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            int limit = in.limit();
+            in.limit(in.position() + length);
+            payload.put(in);
+            in.limit(limit);
+            payload.flip();
+            frames.add(payload);
+        }
+        in.compact();
+        return frames.toArray(new ByteBuffer[frames.size()]);
+    }
+
+    /**
+     * Writes as much of queued frames as the channel accepts. Called only
+     * by the reactor thread.
+     * @return true if the queue has been drained, false if the channel
+     * cannot accept more data at the moment
+     * @throws IOException if an I/O error occurs
+     */
+    boolean flush() throws IOException {
+        while (true) {
+            if (current == null) {
+                synchronized (outbound) {
+                    Outgoing next = outbound.poll();
+                    if (next != null) {
+                        current = next.frame;
+                        currentTag = ActionCodec.tagOf(current,
+                                current.position() + Frame.HEADER);
+                        currentQueued = next.queued;
+                        if (!spectator) {
+                            history.add(new Outgoing(next.frame.duplicate(),
+                                    next.key, next.queued));
+                            if (history.size() > HISTORY) {
+                                history.poll();
+                            }
+                            written++;
+                        }
+                    } else if ((current = nextChunk()) == null) {
+                        return true;
+                    } else {
+                        currentQueued = 0;
+                    }
+                }
+            }
+            int n = channel.write(current);
+            bytesOut += n;
+            Metrics.bytesOut(n);
+            if (current.hasRemaining()) {
+                return false;
+            }
+            if (uploading != null) {
+                // chunk's data goes straight from the file to the socket
+                if (!uploading.transferTo(channel)) {
+                    return false;
+                }
+                uploading = null;
+                n = current.getInt(0) + Frame.HEADER - current.limit();
+                bytesOut += n;
+                Metrics.bytesOut(n);
+            }
+            if (currentQueued != 0) {
+                Metrics.written(currentTag, System.nanoTime() - currentQueued);
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * Returns an encoded header of the next chunk of the first upload or null
+     * if there is nothing to upload. Chunk's data is written after the header
+     * by {@link #flush()}. Called only by the reactor thread.
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        if (!connected) {
+            return null; //closing, uploads are dropped
+        }
+        CardUpload upload;
+        while ((upload = uploads.peek()) != null) {
+            if (!upload.isOpen()) {
+                return null; //a worker flushes the seat once it is opened
+            }
+            ByteBuffer header = upload.nextHeader();
+            if (header != null) {
+                uploading = upload;
+                return header;
+            }
+            uploads.poll();
+        }
+        return null;
+    }
+
+    /**
+     * Stops accepting new frames and closes the channel as soon as frames
+     * already queued are written. Card uploads are dropped. If seat is already
+     * closed, it does nothing.
+     */
+    void close() {
+        if (connected) {
+            connected = false;
+            reactor.flushLater(this);
+        }
+    }
+
+    /**
+     * Closes the channel immediately and drops card uploads. Queued frames
+     * are kept for a held seat. Called only by the reactor thread.
+     */
+    void closeNow() {
+        connected = false;
+        synchronized (outbound) {
+            if (!held) {
+                outbound.clear();
+            }
+            for (CardUpload upload : uploads) {
+                upload.close();
+            }
+            uploads.clear();
+            current = null;
+            uploading = null;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {}
+    }
+
+    private static class Outgoing {
+        final ByteBuffer frame;
+        final Object key;
+        /**
+         * When the frame has been queued, by {@link System#nanoTime()}.
+         */
+        final long queued;
+
+        Outgoing(ByteBuffer frame, Object key, long queued) {
+            this.frame = frame;
+            this.key = key;
+            this.queued = queued;
+        }
+    }
+
+    private void grow(int capacity) {
+        ByteBuffer t = ByteBuffer.allocate(capacity);
+        in.flip();
+        t.put(in);
+        in = t;
+    }
+}
@@ -1,23 +1,44 @@
 package server;
 
+import com.sun.net.httpserver.HttpServer;
 import server.flags.*;
-import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import mtg.Debug;
-import mtg.Deck;
-import mtg.InvalidDeckException;
-import mtg.Main;
-import mtg.Utilities;
-import mtg.Zone;
+import mtg.Threads;
+import server.net.Frame;
 
 /**
  * @author Jaroslaw Pawlak
+ *
+ * Front listener of the server. It accepts all incoming connections on one
+ * port and seats each player at the table named in their
+ * <code>CheckDeck</code>. Every table is a separate {@link GameSession},
+ * while all of them share a small pool of {@link Reactor}s and worker threads
+ * admitting new players. Workers are virtual threads if enabled (see
+ * {@link Threads}), reactors are always platform threads.
+ * <p>
+ * {@link #start(int, int)} hosts a single table and closes the server when
+ * that game ends. {@link #host(int, int)} keeps the server running until it
+ * is closed explicitly and may create tables on demand.
+ * <p>
+ * Server's metrics are registered as MXBeans (see {@link Metrics}) and may
+ * also be served as text, if <code>mtg.server.metrics.port</code> system
+ * property is set.
  */
 public class Server extends Thread {
     /**
@@ -26,395 +47,371 @@ public class Server extends Thread {
     public static final int RUNNING = 0;
     /**
      * Players have connected, game has been initialised, main server thread
-     * id dead. Some of SLTs are alive. 
+     * id dead. Some of players are still connected.
      */
     public static final int PLAYERS_CONNECTED = 1;
     /**
      * Game has been initialised, but all players have already left it. Main
-     * server thread and all SLTs are dead.
+     * server thread and reactor are dead.
      */
     public static final int DEAD = 2;
-    
-    private static int port;
 
-    private static ServerSocket ss;
-
-    private static ServerListeningThread[] serverListeningThreads;
-    private static Socket[] socket;
-    private static ServerSocket[] fileSocket;
-    private static ObjectOutputStream[] oos;
-    private static ObjectInputStream[] ois;
-
-    private static Deck[] decks;
-    private static String[] names;
-
-    static boolean[] ready;
-
-    static Game game;
+    /**
+     * Name of the table joined by clients which do not specify any.
+     */
+    public static final String DEFAULT_TABLE = "";
+    /**
+     * Time for which a connection being admitted may send nothing, in
+     * milliseconds, before it is closed.
+     */
+    static final int ADMISSION_TIMEOUT = Integer.getInteger(
+            "mtg.server.admission.timeout", 30000);
 
-    private static Server serverMainThread;
+    private static Server server;
 
-    private Server() {
+    private final int port;
+    /**
+     * Number of seats of tables created when a client asks for a table which
+     * does not exist. If 0, such clients are rejected.
+     */
+    private final int autoPlayers;
+    /**
+     * If true, server is closed when its last table is closed.
+     */
+    private final boolean closeWhenEmpty;
+
+    private final ServerSocketChannel ss;
+    private final Reactor[] reactors;
+    private final AtomicInteger nextReactor;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentHashMap<String, GameSession> tables;
+    private final HttpServer metrics;
+
+    private Server(int port, int autoPlayers, boolean closeWhenEmpty)
+            throws IOException {
         super("Server Main Thread");
+        this.port = port;
+        this.autoPlayers = autoPlayers;
+        this.closeWhenEmpty = closeWhenEmpty;
+
+        this.ss = ServerSocketChannel.open();
+        this.ss.bind(new InetSocketAddress(port));
+
+        this.reactors = new Reactor[Math.max(1,
+                Runtime.getRuntime().availableProcessors() / 2)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor(i);
+            reactors[i].start();
+        }
+        this.nextReactor = new AtomicInteger();
+        this.workers = Threads.newExecutor("Server Worker");
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+        this.tables = new ConcurrentHashMap<>();
+        Metrics.register();
+        this.metrics = Metrics.listen();
     }
 
     /**
-     * Waits for connection of <code>players</code> number of players. Downloads
-     * their decks and exchange with other players missing cards.
-     * @param port port to be used for communication. For exchanging cards
-     * there will be used ports between <code>port + 1</code> and
-     * <code>port + players</code>, both inclusive.
+     * Hosts a single table waiting for connection of <code>players</code>
+     * number of players. Downloads their decks and exchange with other players
+     * missing cards. Server is closed when the game ends.
+     * @param port port to be used for communication, cards are exchanged
+     * on the same connections
      * @param players number of players
-     * @throws IOException if an I/O error occurs when opening the socket.
+     * @throws IOException if server is already running or an I/O error
+     * occurs when opening the socket.
      * See {@link java.net.ServerSocket#ServerSocket(int)}
      */
-    public static void start(int port, int players) throws IOException {
-        Server.port = port;
+    public synchronized static void start(int port, int players)
+            throws IOException {
+        if (server != null) {
+            throw new IOException("Server is already running");
+        }
+        server = new Server(port, 0, true);
+        server.open(DEFAULT_TABLE, players);
+        server.start();
+    }
 
-        serverListeningThreads = new ServerListeningThread[players];
-        socket = new Socket[players];
-        fileSocket = new ServerSocket[players];
-        oos = new ObjectOutputStream[players];
-        ois = new ObjectInputStream[players];
-        
-        decks = new Deck[players];
-        names = new String[players];
+    /**
+     * Starts a server which hosts many tables at once and keeps running until
+     * {@link #closeServer()} is called. Tables are opened with
+     * {@link #openTable(String, int)} or, if <code>players</code> is positive,
+     * whenever a client asks for a table which does not exist yet.
+     * @param port port to be used for communication
+     * @param players number of seats of tables created on demand, 0 disables
+     * creating tables on demand
+     * @throws IOException if server is already running or an I/O error
+     * occurs when opening the socket
+     */
+    public synchronized static void host(int port, int players)
+            throws IOException {
+        if (server != null) {
+            throw new IOException("Server is already running");
+        }
+        server = new Server(port, players, false);
+        server.start();
+    }
 
-        ready = new boolean[players]; //TODO shouldn't it be synchronized?
+    /**
+     * Opens a new table on a running server.
+     * @param table name of the table
+     * @param players number of seats
+     * @return false if server is not running or table already exists,
+     * true otherwise
+     */
+    public synchronized static boolean openTable(String table, int players) {
+        return server != null && server.open(table, players) != null;
+    }
 
-        ss = new ServerSocket(port);
+    /**
+     * Runs a server hosting many tables without GUI.
+     * Usage: <code>server.Server port [players]</code>, where
+     * <code>players</code> is the number of seats of tables created on demand.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: server.Server port [players]");
+            return;
+        }
+        host(Integer.parseInt(args[0]),
+                args.length > 1? Integer.parseInt(args[1]) : 0);
+    }
 
-        serverMainThread = new Server();
-        serverMainThread.start();
+    /**
+     * Creates and starts a table if there is no table of given name.
+     * @return table created or null if such table already exists
+     */
+    private GameSession open(String table, int players) {
+        GameSession session = new GameSession(this, table, players);
+        if (tables.putIfAbsent(table, session) != null) {
+            return null;
+        }
+        Metrics.register(session);
+        session.start();
+        Debug.p("Server: " + session.getName() + " opened for " + players
+                + " players");
+        return session;
     }
 
     @Override
     public void run() {
-        for (int i = 0; i < ready.length; i++) {
-            Debug.p("Server: waiting for player " + i + "/" + ready.length);
-            ready[i] = false;
-            CheckDeck newdeck = null;
-            
+        Debug.p("Server: waiting for players on port " + port);
+        while (!isInterrupted()) {
+            final SocketChannel channel;
             try {
-                fileSocket[i] = new ServerSocket(port + i + 1);
-                socket[i] = ss.accept();
-                ois[i] = new ObjectInputStream(socket[i].getInputStream());
-                oos[i] = new ObjectOutputStream(socket[i].getOutputStream());
-                oos[i].flush();
-
-                // exchange basic info
-                newdeck = (CheckDeck) ois[i].readObject();
-                try {
-                    Deck.check(newdeck.deck);
-                } catch (InvalidDeckException ex) {
-                    oos[i].writeObject(ex);
-                    oos[i].flush();
-                    throw ex;
-                }
-                newdeck.owner = checkName(Utilities.checkName(newdeck.owner));
-                names[i] = newdeck.owner;
-                decks[i] = newdeck.deck;
-                oos[i].writeObject(names[i]);
-                oos[i].flush();
-                oos[i].writeInt(port + i + 1);
-                oos[i].flush();
-                oos[i].writeInt(ready.length);
-                oos[i].flush();
-
-                // check new deck and download missing cards
-                for (int j = 0; j < decks[i].getArraySize(); j++) {
-                    if (Utilities.findPath(decks[i].getArrayNames(j)) == null) {
-                        // send card request
-                        send(i, new RequestCard(decks[i].getArrayNames(j)));
-
-                        // receive file
-                        try (Socket t = fileSocket[i].accept()) {
-                            Utilities.receiveFile(new File(Main.CARDS_DL, 
-                                    decks[i].getArrayNames(j) + ".jpg"), t);
-                        }
-                    }
-                }
-                Debug.p("Server: Missing cards downloaded");
-
-                // start listening to the new client
-                serverListeningThreads[i]
-                        = new ServerListeningThread(i, ois[i], fileSocket[i]);
-                serverListeningThreads[i].start();
-            } catch (Exception ex) {
-                if (getStatus() != RUNNING) {
-                    return;
-                }
-//                Logger.getLogger(Server.this.getName()).log(Level.SEVERE, null, ex);
-                String ip = socket[i] == null? null : socket[i].getLocalAddress() == null?
-                    "not received" : "" + socket[i].getLocalAddress();
-                String msg = "Server: Error while dealing with player " + i + ": "
-                        + "IP = " + ip + ", name = " + names[i]
-                        + ", exception = " + ex;
-                Debug.p(msg, Debug.W);
-                try {
-                    fileSocket[i].close();
-                } catch (Exception ex2) {}
-                i--;
-                continue;
-            }
-
-
-            // all clients check all decks
-            for (int prev = 0; prev < i; prev++) {
-                ready[prev] = false;
-                // send new deck to already connected clients
-                send(prev, newdeck);
-                // send already connected clients' decks to the new client
-                send(i, new CheckDeck(names[prev], decks[prev]));
-                if (!serverListeningThreads[prev].isAlive()) { //INIT KILL
-                    send(i, new Disconnect(prev, true));
-                }
-            }
-
-            send(i, newdeck);
-        }
-        Debug.p("Server: Game initialisation finished", Debug.I);
-
-        boolean allReady = false;
-        while (!allReady) {
-            for (int i = 0; i < ready.length; i++) {
-                if (!ready[i]) {
-                    break;
+                channel = ss.accept();
+            } catch (IOException ex) {
+                if (!isInterrupted() && ss.isOpen()) {
+                    Debug.p("Server: Error while accepting: " + ex, Debug.E);
                 }
+                break;
             }
-            allReady = true;
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {}
-        }
-
-        game = new Game(decks);
-        CardsList x = new CardsList(game.getAllCardsList());
-        for (int i = 0; i < ready.length; i++) {
-            send(i, x);
-        }
-
-        for (int p = 0; p < ready.length; p++) {
-            if (serverListeningThreads[p].isAlive()) {
-                game.libraryShuffle(p);
-                sendToAll(new Shuffle(p));
-                for (int c = 0; c < 7; c++) {
-                    Card card = game.libraryDraw(p);
-                    if (card != null) {
-                        sendToAllInvisible(new MoveCard(Zone.TOP_LIBRARY,
-                                Zone.HAND, p, card.ID));
-                    }
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    admit(channel);
                 }
-            } else { //INIT KILL - player disconnected before game started
-                game.kill(p);
-            }
+            });
         }
-
         Debug.p("Server: Server main thread terminates");
     }
 
-    public synchronized static int getStatus() {
-        if (serverMainThread == null) {
-            return DEAD;
-        } else if (serverMainThread.isAlive()
-                && !serverMainThread.isInterrupted()) {
-            return RUNNING;
-        } else if (serverListeningThreads == null) {
-            return DEAD; //when server has been closed
-        } else {
-            for (ServerListeningThread slt : serverListeningThreads) {
-                if (slt != null && slt.isAlive() && !slt.isInterrupted()) {
-                    return PLAYERS_CONNECTED;
-                }
-            }
-            return DEAD;
-        }
-    }
-
     /**
-     * Sends an action to specified player.
-     * @param player player to be sent to
-     * @param object action to be sent
+     * Reads a player's <code>CheckDeck</code> and seats them at the table
+     * they ask for, reads <code>Reconnect</code> of a player who takes
+     * their seat again or <code>Spectate</code> of a spectator.
      */
-    static void send(int player, Action object) {
-        if (oos[player] != null) {
-            try {
-                oos[player].writeObject(object);
-                oos[player].flush();
-            } catch (IOException ex) {
-                Debug.p("Server: Error while sending " + object + " to player "
-                        + player + ": " + ex, Debug.E);
+    private void admit(SocketChannel channel) {
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setSoTimeout(ADMISSION_TIMEOUT);
+            // channel is still blocking, handshake is done synchronously
+            // before it is handed over to a reactor
+            // (input must not be buffered so no frame is read ahead, and is
+            // read from the socket as a channel's stream ignores a timeout)
+            DataInputStream in = new DataInputStream(
+                    channel.socket().getInputStream());
+            DataOutputStream out = new DataOutputStream(
+                    Channels.newOutputStream(channel));
+
+            Object first = Frame.read(in);
+            if (first.getClass().equals(Reconnect.class)) {
+                Reconnect rn = (Reconnect) first;
+                GameSession session = tables.get(rn.table == null?
+                        DEFAULT_TABLE : rn.table);
+                if (session == null) {
+                    IOException ex = new IOException("Invalid session");
+                    Frame.write(out, ex);
+                    throw ex;
+                }
+                session.resume(channel, out, rn);
+                return;
+            } else if (first.getClass().equals(Spectate.class)) {
+                Spectate sp = (Spectate) first;
+                String table = sp.table == null? DEFAULT_TABLE : sp.table;
+                GameSession session = tables.get(table);
+                if (session == null) {
+                    IOException ex = new IOException("No such table: " + table);
+                    Frame.write(out, ex);
+                    throw ex;
+                }
+                session.spectators.join(channel, out);
+                return;
+            }
+            CheckDeck newdeck = (CheckDeck) first;
+            String table = newdeck.table == null? DEFAULT_TABLE : newdeck.table;
+            GameSession session = tables.get(table);
+            if (session == null && autoPlayers > 0) {
+                open(table, autoPlayers);
+                session = tables.get(table);
             }
+            if (session == null) {
+                IOException ex = new IOException("No such table: " + table);
+                Frame.write(out, ex);
+                throw ex;
+            }
+            session.admit(channel, in, out, newdeck);
+        } catch (Exception ex) {
+            if (ss.isOpen()) {
+                Debug.p("Server: Player from " + channel.socket().getInetAddress()
+                        + " could not join: " + ex, Debug.W);
+            }
+            try {
+                channel.close();
+            } catch (IOException ex2) {}
         }
     }
 
     /**
-     * Sends an action to all players.
-     * @param object action to be sent
+     * Returns a reactor for a new seat. Seats are spread evenly among
+     * all reactors.
      */
-    static void sendToAll(Action object) {
-        for (int i = 0; i < ready.length; i++) {
-            send(i, object);
-        }
+    Reactor nextReactor() {
+        return reactors[(nextReactor.getAndIncrement() & Integer.MAX_VALUE)
+                % reactors.length];
     }
-    
+
     /**
-     * Sends an action to all players except specified player.
-     * @param player player to be ignored
-     * @param object action to be sent
+     * Runs a short task periodically on the server's timer thread.
+     * @param task task to be run
+     * @param period period in milliseconds
+     * @return future which cancels the task
      */
-    static void sendToAllExcept(int player, Action object) {
-        for (int i = 0; i < ready.length; i++) {
-            if (i != player) {
-                send(i, object);
-            }
-        }
+    ScheduledFuture<?> schedule(Runnable task, long period) {
+        return timer.scheduleAtFixedRate(task, period, period,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Sends a MoveCard action to all players but only to a requestor player
-     * is sent a card's ID. For example, if there are four players and player 2
-     * draws a card, players 0, 1 and 3 receives MoveCard object but with
-     * no card ID, while player 2 receives a full object with a proper ID.
-     * @param mc object to be sent
+     * Runs a task once after a delay on a worker thread.
+     * @param task task to be run
+     * @param delay delay in milliseconds
+     * @return future which cancels the task
      */
-    static void sendToAllInvisible(MoveCard mc) {
-        String id = mc.cardID;
-        mc.cardID = null;
-        for (int i = 0; i < ready.length; i++) {
-            if (i == mc.requestor) {
-                mc.cardID = id;
-                Server.send(i, mc);
-                mc.cardID = null;
-            } else {
-                Server.send(i, mc);
+    ScheduledFuture<?> later(final Runnable task, long delay) {
+        return timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task);
             }
-        }
+        }, delay, TimeUnit.MILLISECONDS);
     }
-    
+
     /**
-     * Sends a Restart action to all players but only to a requestor player
-     * is sent cards' IDs.
-     * @param r object to be sent
+     * Runs a task which may block, e.g. on disk, on a worker thread.
+     * @param task task to be run
      */
-    static void sendToAllInvisible(Restart r) {
-        String[] ids = r.IDs;
-        r.IDs = null;
-        for (int i = 0; i < ready.length; i++) {
-            if (i == r.requestor) {
-                r.IDs = ids;
-                Server.send(i, r);
-                r.IDs = null;
-            } else {
-                Server.send(i, r);
-            }
-        }
+    void execute(Runnable task) {
+        workers.execute(task);
     }
 
     /**
-     * Sends a search Action to all the players, but only requestor player
-     * receives list of cards. For other players it is only an information
-     * that a player is searching a zone.
-     * @param s Search action
+     * Called by a table after it has been closed.
      */
-    static void sendToAllInvisible(Search s) {
-        String[] cards = s.cardsIDs;
-        s.cardsIDs = null;
-        for (int i = 0; i < ready.length; i++) {
-            if (i == s.requestor) {
-                s.cardsIDs = cards;
-                Server.send(i, s);
-                s.cardsIDs = null;
-            } else {
-                Server.send(i, s);
-            }
+    void tableClosed(GameSession session) {
+        tables.remove(session.getTable(), session);
+        Metrics.unregister(session);
+        if (closeWhenEmpty && tables.isEmpty()) {
+            close();
         }
     }
 
     /**
-     * Closes all streams and sockets of given player. It should be used when
-     * clients sends information about its disconnection. Game is modified
-     * (player's cards are exiled) and if no one is connected
-     * a server is closed.
-     * @param player player
+     * Returns status of the server. If it hosts many tables, it returns
+     * {@link #RUNNING} if any table is waiting for players,
+     * {@link #PLAYERS_CONNECTED} if any game is in progress and
+     * {@link #DEAD} only if there is no server.
+     * @return status of the server
      */
-    static void disconnect(int player) {
-        disconnectOnly(player);
-        if (game != null) {
-            game.kill(player);
+    public synchronized static int getStatus() {
+        if (server == null) {
+            return DEAD;
+        }
+        int status = DEAD;
+        for (GameSession session : server.tables.values()) {
+            status = Math.min(status, session.getStatus());
         }
-        if (getStatus() == DEAD) { //last client disconnects
-            closeServerNoOneConnected();
+        if (status == DEAD && !server.closeWhenEmpty) {
+            return RUNNING; //waiting for new tables
         }
+        return status;
     }
-    
+
     /**
-     * Just disconnects requested player by closing all their streams
-     * and sockets and assigning null to their references. If player is already
-     * disconnected, it does nothing.
-     * @param player player
+     * Returns the number of frames waiting to be sent to each player of each
+     * table. Frames are queued per player, so a high depth shows a player
+     * who cannot keep up with the game.
+     * @return map from table name to queue depths of its seats, empty if
+     * there is no server
      */
-    private static void disconnectOnly(int player) {
-        if (socket[player] != null) {
-            Debug.p("Server: Player " + player + " (" + names[player] + ") disconneced");
-            if (serverListeningThreads[player] != null) {
-                serverListeningThreads[player].interrupt();
+    public synchronized static Map<String, int[]> getQueueDepths() {
+        HashMap<String, int[]> depths = new HashMap<>();
+        if (server != null) {
+            for (GameSession session : server.tables.values()) {
+                depths.put(session.getTable(), session.getQueueDepths());
             }
-            try {
-                socket[player].close();
-            } catch (IOException ex) {}
-            socket[player] = null;
-            ois[player] = null;
-            oos[player] = null;
         }
-        try {
-            fileSocket[player].close();
-            fileSocket[player] = null;
-        } catch (IOException | NullPointerException ex) {}
+        return depths;
     }
-    
+
     /**
-     * Informs all players about server closure, disconnects all clients
-     * and closes a server with no client connected to it.
+     * Informs all players of all tables about server closure, disconnects
+     * all clients and closes a server.
      */
-    public static void closeServer() {
-        sendToAll(new Disconnect(true));
-        for (int i = 0; i < ready.length; i++) {
-            disconnectOnly(i);
+    public synchronized static void closeServer() {
+        if (server != null) {
+            server.close();
         }
-        closeServerNoOneConnected();
     }
-    
+
     /**
-     * Closes all sockets and streams and assigns nulls to their references.
+     * Closes all tables, sockets and threads.
      */
-    private static void closeServerNoOneConnected() {
-        serverMainThread.interrupt();
+    private void close() {
+        synchronized (Server.class) {
+            if (server == this) {
+                server = null;
+            }
+        }
+        if (!ss.isOpen()) {
+            return; //already closed
+        }
+        interrupt();
         try {
             ss.close();
         } catch (IOException ex) {}
-        //let gc do the rest
-        ss = null;
-        serverListeningThreads = null;
-        socket = null;
-        fileSocket = null;
-        oos = null;
-        ois = null;
-        decks = null;
-        names = null;
-        Debug.p("Server: Server closed");
-    }
-
-    private static String checkName(String name) {
-        for (int i = 0; i < names.length; i++) {
-            if (name.equals(names[i])) {
-                return checkName(name + "-");
-            }
+        for (GameSession session : tables.values()) {
+            session.close();
         }
-        return name;
-    }
-    
-    static int getDeckSize(int player) {
-        return decks[player].getDeckSize();
+        for (Reactor reactor : reactors) {
+            reactor.shutdown();
+        }
+        workers.shutdownNow();
+        timer.shutdownNow();
+        if (metrics != null) {
+            metrics.stop(0);
+        }
+        Debug.p("Server: Server closed");
     }
 }
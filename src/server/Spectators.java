@@ -0,0 +1,377 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import mtg.Debug;
+import server.flags.Action;
+import server.flags.Disconnect;
+import server.flags.GameState;
+import server.flags.RequestCard;
+import server.net.CardUpload;
+import server.net.Frame;
+
+/**
+ * Spectators watching a single table. They receive only public actions -
+ * the ones which players receive about cards of the others, so hidden cards'
+ * IDs and hands are never revealed - and anything they send is ignored,
+ * apart from leaving and requesting card images.
+ * <p>
+ * Every public frame is encoded once, by {@link GameSession}, and the same
+ * buffer is queued for all spectators. Frames are only handed over by
+ * the thread relaying an action, while queueing them for spectators is done
+ * by a worker thread, so any number of spectators never slows down
+ * the players. A spectator who cannot keep up is disconnected.
+ * <p>
+ * Public frames are kept in a log, without frames superseded by newer
+ * ones (see {@link Seat#keyOf(Action)}), so a spectator joining during
+ * a game receives the game so far. Frames which set the game up - decks,
+ * cards and opening hands, published before {@link #pin()} - are always
+ * kept, while frames of the game itself are kept only up to {@link #LOG}
+ * frames and {@link #LOG_BYTES} bytes, the oldest being dropped first. So
+ * memory of a table does not grow with the length of its game. Once any
+ * frame has been dropped, the log can no longer be replayed, so a late
+ * spectator receives the set up and then the public state of the game
+ * instead (see {@link GameState}), taken while no action is being sent.
+ */
+class Spectators implements Runnable {
+    /**
+     * The maximum number of spectators of a single table.
+     */
+    static final int MAX = Integer.getInteger(
+            "mtg.server.spectators.max", 64);
+    /**
+     * Number of frames which may wait for a spectator, apart from the log
+     * sent when they join.
+     */
+    static final int CAPACITY = Integer.getInteger(
+            "mtg.server.spectators.capacity", 256);
+    /**
+     * The maximum number of frames of the game kept for spectators who join
+     * later, apart from frames setting the game up.
+     */
+    static final int LOG = Integer.getInteger(
+            "mtg.server.spectators.log", 4096);
+    /**
+     * The maximum size of frames of the game kept for spectators who join
+     * later, in bytes.
+     */
+    static final long LOG_BYTES = Integer.getInteger(
+            "mtg.server.spectators.log.kb", 1024) * 1024L;
+    /**
+     * Published after frames setting the game up, never sent.
+     */
+    private static final Entry PIN = new Entry(null, null);
+
+    private final Server server;
+    private final GameSession session;
+
+    /**
+     * Frames published but not yet queued for spectators.
+     */
+    private final ConcurrentLinkedQueue<Entry> published;
+    private final AtomicBoolean scheduled;
+
+    /**
+     * Spectators' seats. Guarded by this.
+     */
+    private final ArrayList<Seat> seats;
+    /**
+     * All public frames, superseded ones are replaced with nulls. Guarded
+     * by this.
+     */
+    private final ArrayList<Entry> log;
+    /**
+     * frame's key -> position of the latest frame of that key in the log.
+     * Guarded by this.
+     */
+    private final HashMap<Object, Integer> latest;
+    /**
+     * Number of frames in the log, apart from empty slots.
+     */
+    private int logged;
+    /**
+     * Slots of the log which are never dropped, set by {@link #PIN}. Before
+     * it is published, all of them.
+     */
+    private int pinned = Integer.MAX_VALUE;
+    /**
+     * Number and size of frames in the log after the pinned ones, and
+     * the first slot which may hold the oldest of them.
+     */
+    private int tail;
+    private long tailBytes;
+    private int oldest;
+    /**
+     * Number of frames dropped from the log.
+     */
+    private long dropped;
+    private boolean closed;
+    private volatile int count;
+
+    Spectators(Server server, GameSession session) {
+        this.server = server;
+        this.session = session;
+        this.published = new ConcurrentLinkedQueue<>();
+        this.scheduled = new AtomicBoolean();
+        this.seats = new ArrayList<>();
+        this.log = new ArrayList<>();
+        this.latest = new HashMap<>();
+    }
+
+    /**
+     * Marks all frames published so far as setting the game up, so they are
+     * kept in the log for the whole game.
+     */
+    void pin() {
+        publish((ByteBuffer) null, null);
+    }
+
+    /**
+     * Encodes and publishes an action which has been sent to players one
+     * by one.
+     * @param action public action
+     */
+    void publish(Action action) {
+        try {
+            publish(Frame.encode(action), Seat.keyOf(action));
+        } catch (IOException ex) {
+            Debug.p("Server: Error while encoding " + action + ": " + ex,
+                    Debug.E);
+        }
+    }
+
+    /**
+     * Publishes an encoded frame, which is queued for all spectators later.
+     * The buffer is not modified. It does not block.
+     * @param frame encoded frame
+     * @param key key returned by {@link Seat#keyOf(Action)} for the frame
+     */
+    void publish(ByteBuffer frame, Object key) {
+        published.add(frame == null? PIN : new Entry(frame, key));
+        if (scheduled.compareAndSet(false, true)) {
+            server.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        do {
+            synchronized (this) {
+                drain();
+            }
+            scheduled.set(false);
+        } while (!published.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    /**
+     * Adds a spectator. They receive the number of players and all public
+     * frames logged so far or, if some have been dropped, frames setting
+     * the game up and its state. Channel must still be in blocking mode, it
+     * is handed over to a reactor once the spectator is added.
+     * @param channel spectator's channel
+     * @param out stream writing to the channel
+     * @throws Exception if spectator cannot be added - caller is responsible
+     * for closing the channel then
+     */
+    void join(SocketChannel channel, DataOutputStream out) throws Exception {
+        if (count >= MAX) {
+            IOException ex = new IOException("Too many spectators");
+            Frame.write(out, ex);
+            throw ex;
+        }
+        Frame.write(out, session.getPlayers());
+        Seat seat;
+        boolean truncated;
+        // no action is sent meanwhile, so a state taken includes all frames
+        // published so far and none published later
+        session.relay.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Table closed");
+                }
+                drain();
+                seat = new Seat(channel, session, server.nextReactor(),
+                        logged + CAPACITY);
+                truncated = dropped > 0;
+                for (int i = 0; i < log.size()
+                        && (!truncated || i < pinned); i++) {
+                    Entry e = log.get(i);
+                    if (e != null) {
+                        seat.send(e.frame, e.key);
+                    }
+                }
+                if (truncated) {
+                    seat.send(session.state(-1));
+                }
+                seats.add(seat);
+                count = seats.size();
+            }
+        } finally {
+            session.relay.writeLock().unlock();
+        }
+        seat.reactor.register(seat);
+        Debug.p("Server: Spectator from " + channel.socket().getInetAddress()
+                + " watches " + session.getName() + ", " + logged
+                + " frames logged, " + dropped + " dropped"
+                + (truncated? ", state of the game sent instead" : ""));
+    }
+
+    /**
+     * Returns the number of spectators watching the table.
+     * @return number of spectators
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Handles an action received from a spectator.
+     * @param seat spectator's seat
+     * @param object action received
+     */
+    void handle(Seat seat, Action object) {
+        if (object.getClass().equals(Disconnect.class)) {
+            leave(seat);
+            seat.close();
+        } else if (object.getClass().equals(RequestCard.class)) {
+            RequestCard t = (RequestCard) object;
+            seat.upload(new CardUpload(t.names, t.hashes, t.offsets));
+        }
+    }
+
+    /**
+     * Removes a spectator who has left or whose connection has been lost.
+     * @param seat spectator's seat
+     */
+    synchronized void leave(Seat seat) {
+        if (seats.remove(seat)) {
+            count = seats.size();
+            Debug.p("Server: Spectator left " + session.getName());
+        }
+    }
+
+    /**
+     * Queues frames published so far and disconnects all spectators once
+     * the frames are written. Frames published later are ignored.
+     */
+    synchronized void close() {
+        drain();
+        closed = true;
+        for (Seat seat : seats) {
+            seat.close();
+        }
+        seats.clear();
+        log.clear();
+        latest.clear();
+        count = 0;
+    }
+
+    /**
+     * Appends published frames to the log and queues them for all
+     * spectators. Must be called while holding this lock.
+     */
+    private void drain() {
+        Entry e;
+        while ((e = published.poll()) != null) {
+            if (closed) {
+                continue;
+            } else if (e == PIN) {
+                pinned = log.size();
+                oldest = pinned;
+                continue;
+            }
+            append(e);
+            for (Seat seat : seats) {
+                seat.send(e.frame, e.key);
+            }
+        }
+    }
+
+    /**
+     * Appends a frame to the log, removing the frame it supersedes and
+     * the oldest frames of the game over the limits.
+     */
+    private void append(Entry e) {
+        if (e.key != null) {
+            Integer previous = latest.put(e.key, log.size());
+            if (previous != null) {
+                remove(previous);
+            }
+        }
+        log.add(e);
+        logged++;
+        if (log.size() - 1 >= pinned) {
+            tail++;
+            tailBytes += e.frame.remaining();
+        }
+        while (tail > 0 && (tail > LOG || tailBytes > LOG_BYTES)) {
+            while (log.get(oldest) == null) {
+                oldest++;
+            }
+            Entry old = log.get(oldest);
+            if (old.key != null) {
+                latest.remove(old.key); //only the latest of a key is kept
+            }
+            remove(oldest);
+            dropped++;
+        }
+        if (log.size() > 2 * logged + 64) {
+            compact();
+        }
+    }
+
+    /**
+     * Empties a slot of the log.
+     */
+    private void remove(int i) {
+        Entry e = log.set(i, null);
+        logged--;
+        if (i >= pinned) {
+            tail--;
+            tailBytes -= e.frame.remaining();
+        }
+    }
+
+    /**
+     * Removes all empty slots of the log keeping frames' order.
+     */
+    private void compact() {
+        int j = 0;
+        int p = pinned;
+        for (int i = 0; i < log.size(); i++) {
+            if (i == pinned) {
+                p = j;
+            }
+            Entry e = log.get(i);
+            if (e != null) {
+                log.set(j, e);
+                if (e.key != null) {
+                    latest.put(e.key, j);
+                }
+                j++;
+            }
+        }
+        if (pinned != Integer.MAX_VALUE) {
+            pinned = Math.min(p, j);
+            oldest = pinned;
+        }
+        log.subList(j, log.size()).clear();
+    }
+
+    private static class Entry {
+        final ByteBuffer frame;
+        final Object key;
+
+        Entry(ByteBuffer frame, Object key) {
+            this.frame = frame;
+            this.key = key;
+        }
+    }
+}
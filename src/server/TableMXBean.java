@@ -0,0 +1,44 @@
+package server;
+
+/**
+ * Management interface of a single table, registered as
+ * <code>mtg.server:type=Table,name=&lt;table&gt;</code> while the table is
+ * open. Arrays are indexed by player, seats not taken yet have zeros.
+ */
+public interface TableMXBean {
+    /**
+     * Returns status of the table, see {@link Server#getStatus()}.
+     * @return status of the table
+     */
+    int getStatus();
+
+    /**
+     * Returns the number of seats at the table.
+     * @return number of players
+     */
+    int getPlayers();
+
+    /**
+     * Returns the number of spectators watching the table.
+     * @return number of spectators
+     */
+    int getSpectators();
+
+    /**
+     * Returns the number of frames waiting to be sent to each player.
+     * @return queue depth of each seat
+     */
+    int[] getQueueDepths();
+
+    /**
+     * Returns the number of bytes read from each player.
+     * @return bytes read from each seat
+     */
+    long[] getBytesIn();
+
+    /**
+     * Returns the number of bytes written to each player.
+     * @return bytes written to each seat
+     */
+    long[] getBytesOut();
+}
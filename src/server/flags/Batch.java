@@ -0,0 +1,34 @@
+package server.flags;
+
+/**
+ * Denotes a sequence of actions which are applied together - the server
+ * applies all of them before any other player's action and clients apply
+ * them at once, repainting the table only once. For example, a shuffle and
+ * seven draws at the beginning of a game are sent as one batch.
+ * <p>
+ * Only actions which change a game may be batched.
+ */
+public class Batch extends Action {
+    private static final long serialVersionUID = 1L;
+
+    public Action[] actions;
+    
+    public Batch(int requestor, Action[] actions) {
+        super(requestor);
+        this.actions = actions;
+    }
+    
+    @Override
+    public String toString() {
+        String x = "{";
+        if (actions != null) {
+            for (Action e : actions) {
+                x += e + ", ";
+            }
+        }
+        x += "}";
+        x = x.replace(", }", "}");
+        return super.toString() + ", actions = " + x + ")";
+    }
+    
+}
@@ -0,0 +1,46 @@
+package server.flags;
+
+/**
+ * A piece of a card image sent in response to {@link RequestCard}. Images
+ * are sent in the order of the request, each split into chunks small enough
+ * not to delay game actions sent on the same connection.
+ */
+public class CardChunk extends Action {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Index of the card in the request.
+     */
+    public int card;
+    /**
+     * Size of the whole image in bytes or -1 if it could not be found.
+     */
+    public long size;
+    /**
+     * Position of this chunk's data in the image.
+     */
+    public long offset;
+    /**
+     * Hash of the whole image, verified when the image is complete.
+     */
+    public String hash;
+    public byte[] data;
+
+    public CardChunk(int card, long size, long offset, String hash,
+            byte[] data) {
+        super(-1);
+        this.card = card;
+        this.size = size;
+        this.offset = offset;
+        this.hash = hash;
+        this.data = data;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + ", card = " + card + ", size = " + size
+                + ", offset = " + offset + ", length = "
+                + (data == null? 0 : data.length) + ")";
+    }
+
+}
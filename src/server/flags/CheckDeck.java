@@ -11,16 +11,33 @@ import mtg.Deck;
 public class CheckDeck extends Action {
     public String owner;
     public Deck deck;
+    /**
+     * Name of the table a client wants to join. It is only used by the first
+     * CheckDeck sent by a client, null means the default table.
+     */
+    public String table;
+    /**
+     * Manifest of deck's card images - hash and size of an image of every
+     * card, in the order of {@link Deck#getArrayNames(int)}. May be null.
+     */
+    public String[] hashes;
+    public long[] sizes;
 
     public CheckDeck(String owner, Deck deck) {
+        this(owner, deck, null);
+    }
+
+    public CheckDeck(String owner, Deck deck, String table) {
         super(-1);
         this.owner = owner;
         this.deck = deck;
+        this.table = table;
     }
 
     @Override
     public String toString() {
-        return super.toString() + ", owner = " + owner + ")";
+        return super.toString() + ", owner = " + owner
+                + (table == null? "" : ", table = " + table) + ")";
     }
 
 }
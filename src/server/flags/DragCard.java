@@ -10,18 +10,29 @@ public class DragCard extends Action {
     public String ID;
     public int newxpos;
     public int newypos;
+    /**
+     * True if a card is still being dragged. Such drags are coalesced by
+     * the server and are not sent back to their requestor.
+     */
+    public boolean inProgress;
 
     public DragCard(String ID, int newxpos, int newypos) {
+        this(ID, newxpos, newypos, false);
+    }
+
+    public DragCard(String ID, int newxpos, int newypos, boolean inProgress) {
         super(-1);
         this.ID = ID;
         this.newxpos = newxpos;
         this.newypos = newypos;
+        this.inProgress = inProgress;
     }
 
     @Override
     public String toString() {
         return super.toString() + ", ID = " + ID + ", newxpos = " + newxpos
-                + ", newypos = " + newypos + ")";
+                + ", newypos = " + newypos
+                + (inProgress? ", in progress" : "") + ")";
     }
 
 }
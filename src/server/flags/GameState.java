@@ -0,0 +1,67 @@
+package server.flags;
+
+import java.util.Arrays;
+
+/**
+ * The whole game as a player or a spectator sees it - sizes of zones,
+ * health and poison counters of all players, cards on the table with their
+ * positions and tap state, and cards in the receiver's own hand. It replaces
+ * everything the receiver knew about the game, so it is sent instead of
+ * actions which have been missed when they cannot be sent again.
+ */
+public class GameState extends Action {
+    private static final long serialVersionUID = 1L;
+
+    public int[] librarySizes;
+    public int[] handSizes;
+    public int[] health;
+    public int[] poison;
+    /**
+     * Players who have left the game.
+     */
+    public boolean[] left;
+    /**
+     * IDs of cards in the receiver's hand, null for a spectator.
+     */
+    public String[] hand;
+    /**
+     * IDs of cards and tokens on the table, in the order they have been
+     * played, and their positions and tap state. Position of a card which
+     * has not been moved since it was played is -1.
+     */
+    public String[] table;
+    public int[] x;
+    public int[] y;
+    public boolean[] tapped;
+    /**
+     * Tokens on the table at the same positions as in {@link #table}, null
+     * for cards.
+     */
+    public CreateToken[] tokens;
+
+    public GameState(int players, int cards) {
+        super(-1);
+        librarySizes = new int[players];
+        handSizes = new int[players];
+        health = new int[players];
+        poison = new int[players];
+        left = new boolean[players];
+        table = new String[cards];
+        x = new int[cards];
+        y = new int[cards];
+        tapped = new boolean[cards];
+        tokens = new CreateToken[cards];
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + ", librarySizes = "
+                + Arrays.toString(librarySizes) + ", handSizes = "
+                + Arrays.toString(handSizes) + ", health = "
+                + Arrays.toString(health) + ", poison = "
+                + Arrays.toString(poison) + ", left = " + Arrays.toString(left)
+                + ", hand = " + Arrays.toString(hand) + ", table = "
+                + Arrays.toString(table) + ")";
+    }
+
+}
@@ -4,17 +4,24 @@ package server.flags;
  * @author Jaroslaw Pawlak
  *
  * Objects sent by clients to the server to confirm that they finished
- * downloading missing cards.
+ * downloading missing cards of all decks they have checked so far.
  */
 public class Ready extends Action {
+    /**
+     * Number of decks (<code>CheckDeck</code>s) the client has received and
+     * checked. The server ignores confirmations sent before the client has
+     * checked the latest deck.
+     */
+    public int decks;
 
-    public Ready() {
+    public Ready(int decks) {
         super(-1);
+        this.decks = decks;
     }
 
     @Override
     public String toString() {
-        return super.toString() + ")";
+        return super.toString() + ", decks = " + decks + ")";
     }
     
 }
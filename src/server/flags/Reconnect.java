@@ -0,0 +1,33 @@
+package server.flags;
+
+/**
+ * Sent by the server to a seated player with a token allowing them to take
+ * their seat again if their connection is lost. A client which has lost its
+ * connection sends it back as the first frame of a new connection, together
+ * with the number of frames it has received, so the server sends only
+ * the frames it has missed.
+ */
+public class Reconnect extends Action {
+    private static final long serialVersionUID = 1L;
+
+    public String table;
+    public String token;
+    /**
+     * Number of frames received by the client, apart from card chunks.
+     */
+    public long received;
+
+    public Reconnect(int player, String table, String token, long received) {
+        super(player);
+        this.table = table;
+        this.token = token;
+        this.received = received;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + ", table = " + table
+                + ", received = " + received + ")";
+    }
+
+}
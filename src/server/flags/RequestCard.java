@@ -1,22 +1,50 @@
 package server.flags;
 
+import mtg.Deck;
+
 /**
  * @author Jaroslaw Pawlak
  *
  * This object may be sent by both client or server and requests the other
- * side to send a requested card.
+ * side to send all missing cards at once. Cards are identified by hashes
+ * of their images taken from a deck's manifest and, if the other side does
+ * not know a hash, by names.
  */
 public class RequestCard extends Action {
-    public String name;
+    public String[] names;
+    public String[] hashes;
+    /**
+     * Number of bytes of each image already received, e.g. before
+     * a connection was lost. Images are sent from these offsets. May be null.
+     */
+    public long[] offsets;
 
-    public RequestCard(String name) {
+    public RequestCard(String[] names, String[] hashes) {
         super(-1);
-        this.name = name;
+        this.names = names;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Requests chosen cards of a deck.
+     * @param deck deck received
+     * @param hashes deck's manifest, may be null
+     * @param indices indices of requested cards in the deck
+     */
+    public RequestCard(Deck deck, String[] hashes, int[] indices) {
+        this(new String[indices.length],
+                hashes == null? null : new String[indices.length]);
+        for (int i = 0; i < indices.length; i++) {
+            this.names[i] = deck.getArrayNames(indices[i]);
+            if (hashes != null) {
+                this.hashes[i] = hashes[indices[i]];
+            }
+        }
     }
 
     @Override
     public String toString() {
-        return super.toString() + ", name = " + name + ")";
+        return super.toString() + ", cards = " + names.length + ")";
     }
 
 }
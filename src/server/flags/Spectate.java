@@ -0,0 +1,24 @@
+package server.flags;
+
+/**
+ * Sent by a client as the first frame of a connection to watch a table
+ * instead of taking a seat. The server answers with the number of players
+ * and then sends the public actions of the game, the same ones players
+ * receive about cards of the others.
+ */
+public class Spectate extends Action {
+    private static final long serialVersionUID = 1L;
+
+    public String table;
+
+    public Spectate(String table) {
+        super(-1);
+        this.table = table;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + ", table = " + table + ")";
+    }
+
+}
@@ -0,0 +1,611 @@
+package server.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import mtg.Deck;
+import mtg.Zone;
+import server.flags.*;
+
+/**
+ * Hand-written binary encoding of frames' payloads. Every payload starts with
+ * a one-byte tag. Each {@link Action} class has its own tag followed by
+ * requestor and the fields of that class in a fixed order; nullable fields
+ * are preceded by a presence flag.
+ * <p>
+ * Objects which are not actions (only exchanged while joining a game, e.g.
+ * player's name or <code>InvalidDeckException</code>) are written with
+ * {@link #SERIALIZED} tag and standard Java serialization.
+ * <p>
+ * Both sides must agree on tags and layouts, so any change here changes
+ * the protocol.
+ */
+public final class ActionCodec {
+    public static final byte SERIALIZED = 0;
+    private static final byte MESSAGE = 1;
+    private static final byte DISCONNECT = 2;
+    private static final byte DRAG_CARD = 3;
+    private static final byte TAP_CARD = 4;
+    private static final byte MOVE_CARD = 5;
+    private static final byte PLAYER = 6;
+    private static final byte UNTAP_ALL = 7;
+    private static final byte SEARCH = 8;
+    private static final byte SHUFFLE = 9;
+    private static final byte REVEAL = 10;
+    private static final byte CREATE_TOKEN = 11;
+    private static final byte RANDOM_VALUE = 12;
+    private static final byte RESTART = 13;
+    private static final byte RANDOM_CARD = 14;
+    private static final byte REQUEST_CARD = 15;
+    private static final byte READY = 16;
+    private static final byte CHECK_DECK = 17;
+    private static final byte CARDS_LIST = 18;
+    private static final byte CARD_CHUNK = 19;
+    private static final byte RECONNECT = 20;
+    private static final byte SPECTATE = 21;
+    private static final byte BATCH = 22;
+    private static final byte GAME_STATE = 23;
+    /**
+     * All tags are lower than this.
+     */
+    public static final int TAG_COUNT = GAME_STATE + 1;
+
+    private static final Zone[] ZONES = Zone.values();
+
+    private static final Map<Class<?>, Byte> TAGS = new HashMap<>();
+    static {
+        TAGS.put(Message.class, MESSAGE);
+        TAGS.put(Disconnect.class, DISCONNECT);
+        TAGS.put(DragCard.class, DRAG_CARD);
+        TAGS.put(TapCard.class, TAP_CARD);
+        TAGS.put(MoveCard.class, MOVE_CARD);
+        TAGS.put(Player.class, PLAYER);
+        TAGS.put(UntapAll.class, UNTAP_ALL);
+        TAGS.put(Search.class, SEARCH);
+        TAGS.put(Shuffle.class, SHUFFLE);
+        TAGS.put(Reveal.class, REVEAL);
+        TAGS.put(CreateToken.class, CREATE_TOKEN);
+        TAGS.put(RandomValue.class, RANDOM_VALUE);
+        TAGS.put(Restart.class, RESTART);
+        TAGS.put(RandomCard.class, RANDOM_CARD);
+        TAGS.put(RequestCard.class, REQUEST_CARD);
+        TAGS.put(Ready.class, READY);
+        TAGS.put(CheckDeck.class, CHECK_DECK);
+        TAGS.put(CardsList.class, CARDS_LIST);
+        TAGS.put(CardChunk.class, CARD_CHUNK);
+        TAGS.put(Reconnect.class, RECONNECT);
+        TAGS.put(Spectate.class, SPECTATE);
+        TAGS.put(Batch.class, BATCH);
+        TAGS.put(GameState.class, GAME_STATE);
+    }
+
+    private ActionCodec() {}
+
+    /**
+     * Returns the tag of an encoded payload, which identifies its class.
+     * @param buffer buffer containing the payload, not modified
+     * @param index index of the first byte of the payload
+     * @return tag between 0 and {@link #TAG_COUNT} (exclusive)
+     */
+    public static int tagOf(ByteBuffer buffer, int index) {
+        int tag = buffer.get(index);
+        return tag >= 0 && tag < TAG_COUNT? tag : SERIALIZED;
+    }
+
+    /**
+     * Returns the simple name of the class of given tag.
+     * @param tag tag
+     * @return name of the class
+     */
+    public static String nameOf(int tag) {
+        for (Map.Entry<Class<?>, Byte> e : TAGS.entrySet()) {
+            if (e.getValue() == tag) {
+                return e.getKey().getSimpleName();
+            }
+        }
+        return "Serialized";
+    }
+
+    /**
+     * Encodes an object into a payload of a single frame.
+     * @param object object to be encoded
+     * @return encoded payload
+     * @throws IOException if object cannot be encoded
+     */
+    public static byte[] encode(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(out, object);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a payload of a single frame.
+     * @param payload payload to be decoded
+     * @return decoded object
+     * @throws IOException if payload is corrupted
+     */
+    public static Object decode(byte[] payload) throws IOException {
+        return read(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    /**
+     * Writes a tag and fields of an object.
+     * @param out output to write to
+     * @param object object to be written
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(DataOutput out, Object object) throws IOException {
+        Byte tag = object == null? null : TAGS.get(object.getClass());
+        if (tag == null) {
+            out.writeByte(SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(object);
+            }
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+            return;
+        }
+
+        Action a = (Action) object;
+        out.writeByte(tag);
+        out.writeShort(a.requestor);
+        switch (tag) {
+            case MESSAGE:
+                writeString(out, ((Message) a).msg);
+                break;
+            case DISCONNECT:
+                out.writeBoolean(((Disconnect) a).intentional);
+                break;
+            case DRAG_CARD:
+                DragCard dc = (DragCard) a;
+                writeString(out, dc.ID);
+                out.writeInt(dc.newxpos);
+                out.writeInt(dc.newypos);
+                out.writeBoolean(dc.inProgress);
+                break;
+            case TAP_CARD:
+                TapCard tc = (TapCard) a;
+                writeString(out, tc.ID);
+                out.writeBoolean(tc.tapped);
+                break;
+            case MOVE_CARD:
+                MoveCard mc = (MoveCard) a;
+                writeZone(out, mc.source);
+                writeZone(out, mc.destination);
+                writeString(out, mc.cardID);
+                out.writeBoolean(mc.reveal);
+                break;
+            case PLAYER:
+                Player p = (Player) a;
+                out.writeShort(p.target);
+                out.writeInt(p.newValue);
+                out.writeByte(p.poisonOrHealth);
+                break;
+            case SEARCH:
+                Search s = (Search) a;
+                out.writeInt(s.amount);
+                writeStrings(out, s.cardsIDs);
+                writeZone(out, s.zone);
+                out.writeShort(s.zoneOwner);
+                break;
+            case REVEAL:
+                Reveal r = (Reveal) a;
+                writeZone(out, r.source);
+                writeString(out, r.cardID);
+                break;
+            case CREATE_TOKEN:
+                CreateToken ct = (CreateToken) a;
+                out.writeByte((ct.red? 1 : 0) | (ct.blue? 2 : 0)
+                        | (ct.white? 4 : 0) | (ct.black? 8 : 0)
+                        | (ct.green? 16 : 0) | (ct.creature? 32 : 0));
+                writeString(out, ct.name);
+                writeString(out, ct.type);
+                writeString(out, ct.desc);
+                out.writeInt(ct.atk);
+                out.writeInt(ct.def);
+                writeString(out, ct.cardID);
+                break;
+            case RANDOM_VALUE:
+                RandomValue rv = (RandomValue) a;
+                out.writeInt(rv.value);
+                out.writeInt(rv.max);
+                break;
+            case RESTART:
+                Restart rs = (Restart) a;
+                writeStrings(out, rs.IDs);
+                out.writeInt(rs.deckSize);
+                break;
+            case RANDOM_CARD:
+                writeString(out, ((RandomCard) a).cardID);
+                break;
+            case REQUEST_CARD:
+                writeStrings(out, ((RequestCard) a).names);
+                writeStrings(out, ((RequestCard) a).hashes);
+                writeLongs(out, ((RequestCard) a).offsets);
+                break;
+            case CHECK_DECK:
+                CheckDeck cd = (CheckDeck) a;
+                writeString(out, cd.owner);
+                out.writeBoolean(cd.deck != null);
+                if (cd.deck != null) {
+                    cd.deck.writeTo(out);
+                }
+                writeString(out, cd.table);
+                writeStrings(out, cd.hashes);
+                writeLongs(out, cd.sizes);
+                break;
+            case CARD_CHUNK:
+                CardChunk cc = (CardChunk) a;
+                writeChunkFields(out, cc, cc.data.length);
+                out.write(cc.data);
+                break;
+            case RECONNECT:
+                Reconnect rn = (Reconnect) a;
+                writeString(out, rn.table);
+                writeString(out, rn.token);
+                out.writeLong(rn.received);
+                break;
+            case SPECTATE:
+                writeString(out, ((Spectate) a).table);
+                break;
+            case CARDS_LIST:
+                TreeMap<String, String> list = ((CardsList) a).list;
+                out.writeInt(list == null? -1 : list.size());
+                if (list != null) {
+                    for (Map.Entry<String, String> e : list.entrySet()) {
+                        out.writeUTF(e.getKey());
+                        writeString(out, e.getValue());
+                    }
+                }
+                break;
+            case READY:
+                out.writeInt(((Ready) a).decks);
+                break;
+            case BATCH:
+                Action[] actions = ((Batch) a).actions;
+                out.writeInt(actions.length);
+                for (Action e : actions) {
+                    write(out, e);
+                }
+                break;
+            case GAME_STATE:
+                GameState st = (GameState) a;
+                out.writeShort(st.health.length);
+                for (int i = 0; i < st.health.length; i++) {
+                    out.writeInt(st.librarySizes[i]);
+                    out.writeInt(st.handSizes[i]);
+                    out.writeInt(st.health[i]);
+                    out.writeInt(st.poison[i]);
+                    out.writeBoolean(st.left[i]);
+                }
+                writeStrings(out, st.hand);
+                out.writeInt(st.table.length);
+                for (int i = 0; i < st.table.length; i++) {
+                    writeString(out, st.table[i]);
+                    out.writeInt(st.x[i]);
+                    out.writeInt(st.y[i]);
+                    out.writeBoolean(st.tapped[i]);
+                    out.writeBoolean(st.tokens[i] != null);
+                    if (st.tokens[i] != null) {
+                        write(out, st.tokens[i]);
+                    }
+                }
+                break;
+            case UNTAP_ALL:
+            case SHUFFLE:
+                break; //no fields apart from requestor
+        }
+    }
+
+    /**
+     * Reads an object written by {@link #write(DataOutput, Object)}.
+     * @param in input to read from
+     * @return object read
+     * @throws IOException if an I/O error occurs or input is corrupted
+     */
+    public static Object read(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        if (tag == SERIALIZED) {
+            int length = in.readInt();
+            Frame.checkLength(length);
+            byte[] b = new byte[length];
+            in.readFully(b);
+            try (ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(b))) {
+                return ois.readObject();
+            } catch (ClassNotFoundException ex) {
+                throw new StreamCorruptedException("Unknown class: " + ex.getMessage());
+            }
+        }
+
+        int requestor = in.readShort();
+        Action a;
+        switch (tag) {
+            case MESSAGE:
+                a = new Message(readString(in));
+                break;
+            case DISCONNECT:
+                a = new Disconnect(requestor, in.readBoolean());
+                break;
+            case DRAG_CARD:
+                a = new DragCard(readString(in), in.readInt(), in.readInt(),
+                        in.readBoolean());
+                break;
+            case TAP_CARD:
+                a = new TapCard(readString(in), in.readBoolean());
+                break;
+            case MOVE_CARD:
+                a = new MoveCard(readZone(in), readZone(in), requestor,
+                        readString(in), in.readBoolean());
+                break;
+            case PLAYER:
+                a = new Player(in.readShort(), in.readInt(), in.readByte());
+                break;
+            case UNTAP_ALL:
+                a = new UntapAll();
+                break;
+            case SEARCH:
+                int amount = in.readInt();
+                a = new Search(amount, readStrings(in), readZone(in),
+                        requestor, in.readShort());
+                break;
+            case SHUFFLE:
+                a = new Shuffle(requestor);
+                break;
+            case REVEAL:
+                a = new Reveal(readZone(in), readString(in));
+                break;
+            case CREATE_TOKEN:
+                int colors = in.readByte();
+                CreateToken ct = new CreateToken((colors & 1) != 0,
+                        (colors & 2) != 0, (colors & 4) != 0,
+                        (colors & 8) != 0, (colors & 16) != 0,
+                        readString(in), readString(in), readString(in),
+                        (colors & 32) != 0, in.readInt(), in.readInt());
+                ct.cardID = readString(in);
+                a = ct;
+                break;
+            case RANDOM_VALUE:
+                int value = in.readInt();
+                RandomValue rv = new RandomValue(in.readInt());
+                rv.value = value;
+                a = rv;
+                break;
+            case RESTART:
+                Restart rs = new Restart();
+                rs.IDs = readStrings(in);
+                rs.deckSize = in.readInt();
+                a = rs;
+                break;
+            case RANDOM_CARD:
+                RandomCard rc = new RandomCard();
+                rc.cardID = readString(in);
+                a = rc;
+                break;
+            case REQUEST_CARD:
+                RequestCard rq = new RequestCard(readStrings(in), readStrings(in));
+                rq.offsets = readLongs(in);
+                a = rq;
+                break;
+            case READY:
+                a = new Ready(in.readInt());
+                break;
+            case CHECK_DECK:
+                String owner = readString(in);
+                Deck deck = in.readBoolean()? Deck.readFrom(in) : null;
+                CheckDeck cd = new CheckDeck(owner, deck, readString(in));
+                cd.hashes = readStrings(in);
+                cd.sizes = readLongs(in);
+                a = cd;
+                break;
+            case CARDS_LIST:
+                int size = in.readInt();
+                TreeMap<String, String> list = null;
+                if (size >= 0) {
+                    list = new TreeMap<>();
+                    for (int i = 0; i < size; i++) {
+                        list.put(in.readUTF(), readString(in));
+                    }
+                }
+                a = new CardsList(list);
+                break;
+            case CARD_CHUNK:
+                int card = in.readShort();
+                long total = in.readLong();
+                long offset = in.readLong();
+                String hash = readString(in);
+                int length = in.readInt();
+                Frame.checkLength(length);
+                byte[] data = new byte[length];
+                in.readFully(data);
+                a = new CardChunk(card, total, offset, hash, data);
+                break;
+            case RECONNECT:
+                a = new Reconnect(requestor, readString(in), readString(in),
+                        in.readLong());
+                break;
+            case SPECTATE:
+                a = new Spectate(readString(in));
+                break;
+            case BATCH:
+                int count = in.readInt();
+                Frame.checkLength(count);
+                Action[] actions = new Action[count];
+                for (int i = 0; i < count; i++) {
+                    Object e = read(in);
+                    if (!(e instanceof Action) || e instanceof Batch) {
+                        throw new StreamCorruptedException(
+                                "Invalid batched object: " + e);
+                    }
+                    actions[i] = (Action) e;
+                }
+                a = new Batch(requestor, actions);
+                break;
+            case GAME_STATE:
+                int players = in.readShort();
+                Frame.checkLength(players);
+                int[][] counters = new int[4][players];
+                boolean[] left = new boolean[players];
+                for (int i = 0; i < players; i++) {
+                    for (int[] e : counters) {
+                        e[i] = in.readInt();
+                    }
+                    left[i] = in.readBoolean();
+                }
+                String[] hand = readStrings(in);
+                int cards = in.readInt();
+                Frame.checkLength(cards);
+                GameState st = new GameState(players, cards);
+                st.librarySizes = counters[0];
+                st.handSizes = counters[1];
+                st.health = counters[2];
+                st.poison = counters[3];
+                st.left = left;
+                st.hand = hand;
+                for (int i = 0; i < cards; i++) {
+                    st.table[i] = readString(in);
+                    st.x[i] = in.readInt();
+                    st.y[i] = in.readInt();
+                    st.tapped[i] = in.readBoolean();
+                    if (in.readBoolean()) {
+                        Object e = read(in);
+                        if (!(e instanceof CreateToken)) {
+                            throw new StreamCorruptedException(
+                                    "Invalid token: " + e);
+                        }
+                        st.tokens[i] = (CreateToken) e;
+                    }
+                }
+                a = st;
+                break;
+            default:
+                throw new StreamCorruptedException("Unknown action tag: " + tag);
+        }
+        a.requestor = requestor;
+        return a;
+    }
+
+    /**
+     * Writes a tag and all fields of a chunk except its data, which
+     * the caller has to write right after the header. This lets a chunk's
+     * data be written straight from a file.
+     * @param out output to write to
+     * @param chunk chunk, its data is ignored
+     * @param length length of chunk's data
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeChunkHeader(DataOutput out, CardChunk chunk,
+            int length) throws IOException {
+        out.writeByte(CARD_CHUNK);
+        out.writeShort(chunk.requestor);
+        writeChunkFields(out, chunk, length);
+    }
+
+    /**
+     * Writes a tag and all fields of a batch except its actions, which
+     * the caller has to write right after the header. This lets a batch be
+     * assembled from actions which have already been encoded.
+     * @param out output to write to
+     * @param requestor requestor of the batch
+     * @param count number of actions in the batch
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeBatchHeader(DataOutput out, int requestor,
+            int count) throws IOException {
+        out.writeByte(BATCH);
+        out.writeShort(requestor);
+        out.writeInt(count);
+    }
+
+    private static void writeChunkFields(DataOutput out, CardChunk chunk,
+            int length) throws IOException {
+        out.writeShort(chunk.card);
+        out.writeLong(chunk.size);
+        out.writeLong(chunk.offset);
+        writeString(out, chunk.hash);
+        out.writeInt(length);
+    }
+
+    private static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean()? in.readUTF() : null;
+    }
+
+    private static void writeStrings(DataOutput out, String[] s) throws IOException {
+        out.writeInt(s == null? -1 : s.length);
+        if (s != null) {
+            for (String e : s) {
+                writeString(out, e);
+            }
+        }
+    }
+
+    private static String[] readStrings(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        Frame.checkLength(length);
+        String[] s = new String[length];
+        for (int i = 0; i < length; i++) {
+            s[i] = readString(in);
+        }
+        return s;
+    }
+
+    private static void writeLongs(DataOutput out, long[] l) throws IOException {
+        out.writeInt(l == null? -1 : l.length);
+        if (l != null) {
+            for (long e : l) {
+                out.writeLong(e);
+            }
+        }
+    }
+
+    private static long[] readLongs(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        Frame.checkLength(length);
+        long[] l = new long[length];
+        for (int i = 0; i < length; i++) {
+            l[i] = in.readLong();
+        }
+        return l;
+    }
+
+    private static void writeZone(DataOutput out, Zone zone) throws IOException {
+        out.writeByte(zone == null? -1 : zone.ordinal());
+    }
+
+    private static Zone readZone(DataInput in) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal == -1) {
+            return null;
+        } else if (ordinal < 0 || ordinal >= ZONES.length) {
+            throw new StreamCorruptedException("Unknown zone: " + ordinal);
+        }
+        return ZONES[ordinal];
+    }
+}
@@ -0,0 +1,206 @@
+package server.net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import mtg.CardStore;
+import mtg.Debug;
+import server.flags.CardChunk;
+import server.flags.RequestCard;
+
+/**
+ * Receives images sent by a {@link CardUpload}. Each image is written to
+ * a partial file named after its hash and is put into the {@link CardStore}
+ * only when it is complete and its hash has been verified, so a lost
+ * connection never leaves a truncated image among the cards. A partial file
+ * is kept, so the next request for the same image continues from where
+ * the previous one has stopped. A download which is not resumable writes
+ * each image to its own temporary file instead, deleted if the download
+ * stops, so downloads of the same image running at once never share
+ * a file.
+ * <p>
+ * Chunks are checked before anything is written: an image larger than
+ * {@link CardStore#MAX_SIZE}, a chunk larger than {@link CardUpload#CHUNK},
+ * an invalid hash or a card name which cannot be stored ends the download
+ * with an exception.
+ */
+public class CardDownload {
+    private final String[] names;
+    private final String[] hashes;
+    private final long[] offsets;
+    private final boolean resumable;
+    private int card;
+
+    private File part;
+    private FileChannel out;
+
+    /**
+     * @param names names of requested cards, in the order of request
+     * @param hashes hashes of requested images, may be null
+     * @throws StreamCorruptedException if any hash is not
+     * {@link CardStore#isHash(String) valid}, before any file is touched
+     */
+    public CardDownload(String[] names, String[] hashes)
+            throws StreamCorruptedException {
+        this(names, hashes, true);
+    }
+
+    /**
+     * @param names names of requested cards, in the order of request
+     * @param hashes hashes of requested images, may be null
+     * @param resumable true if partial files are named after hashes and kept
+     * when the download stops, false if each image is written to its own
+     * temporary file and all offsets are 0
+     * @throws StreamCorruptedException if any hash is not
+     * {@link CardStore#isHash(String) valid}, before any file is touched
+     */
+    public CardDownload(String[] names, String[] hashes, boolean resumable)
+            throws StreamCorruptedException {
+        this.names = names;
+        this.hashes = hashes;
+        this.offsets = new long[names.length];
+        this.resumable = resumable;
+        this.card = 0;
+        for (int i = 0; hashes != null && i < hashes.length; i++) {
+            if (hashes[i] != null && !CardStore.isHash(hashes[i])) {
+                throw new StreamCorruptedException("Invalid hash of "
+                        + names[i] + ": " + hashes[i]);
+            }
+        }
+        for (int i = 0; resumable && hashes != null && i < hashes.length; i++) {
+            if (hashes[i] != null) {
+                offsets[i] = CardStore.partFile(hashes[i]).length();
+            }
+        }
+    }
+
+    /**
+     * Returns number of bytes of each image already received, which should
+     * be sent with the request.
+     * @return offsets of requested images
+     */
+    public long[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * Returns a request for images of this download. Offsets are set, so
+     * partially received images are continued.
+     * @return request to be sent
+     */
+    public RequestCard request() {
+        RequestCard rc = new RequestCard(names, hashes);
+        rc.offsets = offsets;
+        return rc;
+    }
+
+    /**
+     * Stops this download and returns a new one for the images which have not
+     * been received yet, e.g. after the connection has been restored. Its
+     * {@link #request()} has to be sent again.
+     * @return download of the remaining images
+     * @throws StreamCorruptedException never, hashes have been validated
+     * when this download was created
+     */
+    public CardDownload remaining() throws StreamCorruptedException {
+        abort();
+        String[] n = new String[names.length - card];
+        String[] h = hashes == null? null : new String[n.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = names[card + i];
+            if (h != null) {
+                h[i] = hashes[card + i];
+            }
+        }
+        return new CardDownload(n, h, resumable);
+    }
+
+    /**
+     * Returns true if all requested images have been received.
+     * @return true if download is complete
+     */
+    public boolean isComplete() {
+        return card == names.length;
+    }
+
+    /**
+     * Saves a received chunk.
+     * @param chunk chunk received
+     * @return true if it was the last chunk of the last image
+     * @throws IOException if chunk is not the expected one or cannot be saved
+     */
+    public boolean accept(CardChunk chunk) throws IOException {
+        if (isComplete() || chunk.card != card) {
+            abort();
+            throw new StreamCorruptedException("Unexpected " + chunk);
+        }
+        if (chunk.size < 0) {
+            Debug.p("Card " + names[card] + " could not be downloaded", Debug.W);
+            card++;
+            return isComplete();
+        }
+        if (chunk.size > CardStore.MAX_SIZE || chunk.data == null
+                || chunk.data.length > CardUpload.CHUNK
+                || chunk.hash != null && !CardStore.isHash(chunk.hash)
+                || !CardStore.isName(names[card])) {
+            abort();
+            throw new StreamCorruptedException("Rejected " + chunk);
+        }
+        try {
+            if (out == null) {
+                part = chunk.hash == null || !resumable
+                        ? CardStore.createTempFile()
+                        : CardStore.partFile(chunk.hash);
+                out = FileChannel.open(part.toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            if (chunk.offset == 0) {
+                out.truncate(0);
+            } else if (chunk.offset != out.size()) {
+                throw new StreamCorruptedException("Unexpected " + chunk);
+            }
+            if (chunk.offset + chunk.data.length > chunk.size) {
+                throw new StreamCorruptedException("Unexpected " + chunk);
+            }
+            ByteBuffer data = ByteBuffer.wrap(chunk.data);
+            while (data.hasRemaining()) {
+                out.write(data, chunk.offset + data.position());
+            }
+            if (chunk.offset + chunk.data.length == chunk.size) {
+                out.close();
+                out = null;
+                if (!CardStore.store(names[card], chunk.hash, part)) {
+                    Debug.p("Card " + names[card] + " has been corrupted"
+                            + " while downloading", Debug.W);
+                }
+                part = null;
+                card++;
+            }
+        } catch (IOException ex) {
+            abort();
+            throw ex;
+        }
+        return isComplete();
+    }
+
+    /**
+     * Stops receiving an image. If the download is resumable, its partial
+     * file is kept, so the image may be requested again from the same
+     * offset, otherwise it is deleted.
+     */
+    public void abort() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ex) {}
+            out = null;
+        }
+        if (part != null && !resumable) {
+            part.delete();
+        }
+        part = null;
+    }
+}
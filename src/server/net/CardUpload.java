@@ -0,0 +1,248 @@
+package server.net;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import mtg.CardStore;
+import mtg.Debug;
+import server.flags.CardChunk;
+
+/**
+ * Sends images requested by a {@link server.flags.RequestCard} as a sequence
+ * of {@link CardChunk}s. Chunks are produced one at a time, only when
+ * the connection is ready to take another one, so a transfer never fills
+ * an outbound queue and game actions may be sent between any two chunks.
+ * <p>
+ * Every chunk carries size and hash of the whole image and its offset in it.
+ * Images are sent from offsets given in the request, so a transfer
+ * interrupted by a lost connection does not start from scratch. A non-blocking
+ * channel may take chunks' data straight from the file with
+ * {@link #nextHeader()} and {@link #transferTo(WritableByteChannel)}, while
+ * a blocking stream takes whole chunks from {@link #next()}.
+ * <p>
+ * Finding, hashing and opening the images is done by {@link #open()}, which
+ * may block on the disk, so a reactor calls it on a worker thread and takes
+ * chunks only after it has returned. {@link #next()} opens the images
+ * itself if needed.
+ */
+public class CardUpload {
+    /**
+     * The largest amount of image data in a single chunk.
+     */
+    public static final int CHUNK = 16 * 1024;
+
+    private final String[] names;
+    private final String[] hashes;
+    private final long[] offsets;
+    private int card;
+
+    /**
+     * Opened images, null for images not found. Set by {@link #open()}.
+     */
+    private volatile FileChannel[] files;
+    private String[] imageHashes;
+    private long[] sizes;
+    private volatile boolean closed;
+
+    private FileChannel file;
+    private String hash;
+    private long size;
+    private long position;
+    /**
+     * Bytes of the current chunk's data not yet sent.
+     */
+    private int left;
+
+    /**
+     * @param names names of requested cards
+     * @param hashes hashes of requested images, may be null
+     * @param offsets offsets to send images from, may be null
+     */
+    public CardUpload(String[] names, String[] hashes, long[] offsets) {
+        this.names = names;
+        this.hashes = hashes;
+        this.offsets = offsets;
+        this.card = 0;
+    }
+
+    /**
+     * Returns the next chunk of the transfer, together with its data.
+     * @return next chunk or null if all images have been sent
+     * @throws IOException if an image cannot be read
+     */
+    public CardChunk next() throws IOException {
+        if (files == null) {
+            open();
+        }
+        CardChunk chunk = prepare();
+        if (chunk == null) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(left);
+        while (data.hasRemaining()) {
+            if (file.read(data, position + data.position()) < 0) {
+                close();
+                throw new EOFException(names[card] + " has been truncated");
+            }
+        }
+        chunk.data = data.array();
+        sent(left);
+        return chunk;
+    }
+
+    /**
+     * Returns an encoded frame of the next chunk without its data. The data
+     * has to be written with {@link #transferTo(WritableByteChannel)} right
+     * after the header. Images must have been opened.
+     * @return header of next chunk or null if all images have been sent
+     * @throws IOException if an image cannot be read
+     * @throws IllegalStateException if images have not been opened
+     */
+    public ByteBuffer nextHeader() throws IOException {
+        CardChunk chunk = prepare();
+        return chunk == null? null : Frame.encodeChunkHeader(chunk, left);
+    }
+
+    /**
+     * Writes data of a chunk returned by {@link #nextHeader()} directly from
+     * the file to the channel.
+     * @param channel channel to write to
+     * @return true if all data of the chunk has been written, false if
+     * the channel cannot accept more at the moment
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean transferTo(WritableByteChannel channel) throws IOException {
+        while (left > 0) {
+            long n = file.transferTo(position, left, channel);
+            if (n <= 0) {
+                return false;
+            }
+            position += n;
+            left -= n;
+        }
+        if (file != null) {
+            sent(0);
+        }
+        return true;
+    }
+
+    /**
+     * Finds, hashes and opens all requested images. It may block on the disk
+     * and must be called before {@link #nextHeader()}. Images which cannot
+     * be found or opened are reported to the other side as missing. If
+     * the upload is closed meanwhile, the images are closed right away.
+     */
+    public void open() {
+        FileChannel[] opened = new FileChannel[names.length];
+        String[] openedHashes = new String[names.length];
+        long[] openedSizes = new long[names.length];
+        for (int i = 0; i < names.length && !closed; i++) {
+            File f = CardStore.find(names[i], hashes == null? null : hashes[i]);
+            if (f == null) {
+                Debug.p("Requested card " + names[i] + " not found", Debug.W);
+                continue;
+            }
+            try {
+                opened[i] = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+                openedSizes[i] = opened[i].size();
+                openedHashes[i] = CardStore.hash(f);
+            } catch (IOException ex) {
+                Debug.p("Requested card " + names[i] + " cannot be read: "
+                        + ex, Debug.W);
+                close(opened[i]);
+                opened[i] = null;
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                for (FileChannel e : opened) {
+                    close(e);
+                }
+                return;
+            }
+            imageHashes = openedHashes;
+            sizes = openedSizes;
+            files = opened;
+        }
+    }
+
+    /**
+     * Returns true if {@link #open()} has returned and chunks may be taken.
+     * @return true if images have been opened
+     */
+    public boolean isOpen() {
+        return files != null;
+    }
+
+    /**
+     * Moves to the next image if needed and describes the next chunk.
+     * @return chunk without data or null if all images have been sent
+     */
+    private CardChunk prepare() throws IOException {
+        if (files == null) {
+            throw new IllegalStateException("Images have not been opened");
+        }
+        if (file == null) {
+            if (card == names.length) {
+                return null;
+            }
+            file = files[card];
+            if (file == null) {
+                left = 0;
+                return new CardChunk(card++, -1, 0, null, new byte[0]);
+            }
+            files[card] = null;
+            size = sizes[card];
+            hash = imageHashes[card];
+            position = offsets == null? 0 : offsets[card];
+            if (position < 0 || position > size
+                    || (hashes != null && !hash.equals(hashes[card]))) {
+                position = 0; //the other side has a part of another image
+            }
+        }
+        left = (int) Math.min(CHUNK, size - position);
+        return new CardChunk(card, size, position, hash, null);
+    }
+
+    /**
+     * Moves to the next chunk after <code>n</code> bytes of the current one
+     * have been sent.
+     */
+    private void sent(int n) {
+        position += n;
+        left = 0;
+        if (position == size) {
+            close(file);
+            file = null;
+            card++;
+        }
+    }
+
+    /**
+     * Releases all images. Transfer cannot be continued afterwards.
+     */
+    public void close() {
+        close(file);
+        file = null;
+        synchronized (this) {
+            closed = true;
+            if (files != null) {
+                for (FileChannel e : files) {
+                    close(e);
+                }
+            }
+        }
+    }
+
+    private static void close(FileChannel file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {}
+        }
+    }
+}
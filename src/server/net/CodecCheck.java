@@ -0,0 +1,259 @@
+package server.net;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import mtg.Deck;
+import mtg.Zone;
+import server.flags.*;
+
+/**
+ * Checks that every action class survives {@link ActionCodec}: a sample of
+ * each class, with a distinct requestor, and variants with nullable fields
+ * set to null are encoded into a frame, decoded and compared field by field
+ * with the original. Every subclass of {@link Action} found in
+ * <code>server.flags</code> must have a sample which is not encoded with
+ * {@link ActionCodec#SERIALIZED}, so a class added to the protocol without
+ * a sample fails the check.
+ * <p>
+ * Usage: <code>server.net.CodecCheck</code>, exits with status 1 if any
+ * check fails.
+ */
+public class CodecCheck {
+
+    private CodecCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        LinkedHashMap<String, Action> samples = samples();
+        List<String> failures = new ArrayList<>();
+
+        for (String e : actionClasses()) {
+            if (!samples.containsKey(e)) {
+                failures.add("no sample of " + e);
+            }
+        }
+
+        int requestor = 1;
+        for (Action e : samples.values()) {
+            e.requestor = requestor++;
+        }
+        samples.put("Message(null)", new Message(null));
+        samples.put("CheckDeck(null)", new CheckDeck(null, null));
+        samples.put("CardsList(null)", new CardsList(null));
+        samples.put("Search(null)", new Search(0, null, Zone.HAND, 2, 1));
+        samples.put("RequestCard(null)", new RequestCard(new String[0], null));
+        samples.put("Batch(empty)", new Batch(3, new Action[0]));
+        samples.put("GameState(spectator)", new GameState(4, 0));
+
+        for (Map.Entry<String, Action> e : samples.entrySet()) {
+            ByteBuffer frame = Frame.encode(e.getValue());
+            frame.position(Frame.HEADER);
+            if (frame.get(Frame.HEADER) == ActionCodec.SERIALIZED) {
+                failures.add(e.getKey() + ": encoded with Java serialization");
+            }
+            Object decoded = Frame.decode(frame);
+            String difference = compare("", e.getValue(), decoded);
+            if (difference != null) {
+                failures.add(e.getKey() + ": " + difference);
+            } else if (frame.hasRemaining()) {
+                failures.add(e.getKey() + ": " + frame.remaining()
+                        + " bytes not read");
+            }
+        }
+
+        for (String e : failures) {
+            System.out.println("FAILED " + e);
+        }
+        System.out.println(samples.size() + " samples, "
+                + failures.size() + " failures");
+        System.exit(failures.isEmpty()? 0 : 1);
+    }
+
+    /**
+     * Returns an action of each class, by class name, with fields set
+     * to values other than defaults where possible.
+     */
+    private static LinkedHashMap<String, Action> samples() {
+        String[] hand = {"A12", "A7", "A33", "A50", "A2", "A41", "A19"};
+        String[] names = {"Forest", "Llanowar Elves"};
+        String[] hashes = {"0123456789abcdef0123456789abcdef01234567",
+                "89abcdef0123456789abcdef0123456789abcdef"};
+        Deck deck = new Deck();
+        deck.addCard(names[0], 24);
+        deck.addCard(names[1], 4);
+        TreeMap<String, String> list = new TreeMap<>();
+        list.put("A0", "Forest");
+        list.put("B1", "Llanowar Elves");
+
+        ArrayList<Action> r = new ArrayList<>();
+        r.add(new Message("good game, well played"));
+        r.add(new Disconnect(1, true));
+        r.add(new DragCard("A42", 512, 384, true));
+        r.add(new TapCard("A42", true));
+        r.add(new MoveCard(Zone.HAND, Zone.TABLE, 0, "A42", true));
+        r.add(new Player(1, 17, Player.POISON));
+        r.add(new UntapAll());
+        r.add(new Search(7, hand, Zone.LIBRARY, 0, 1));
+        r.add(new Shuffle(0));
+        r.add(new Reveal(Zone.TOP_LIBRARY, "A42"));
+        CreateToken ct = new CreateToken(true, false, true, false, true,
+                "Soldier", "Creature - Soldier", "Vigilance", true, 1, 2);
+        ct.cardID = "AX3";
+        r.add(ct);
+        RandomValue rv = new RandomValue(RandomValue.DIE);
+        rv.value = 5;
+        r.add(rv);
+        Restart restart = new Restart();
+        restart.IDs = hand;
+        restart.deckSize = 60;
+        r.add(restart);
+        RandomCard rc = new RandomCard();
+        rc.cardID = "A42";
+        r.add(rc);
+        RequestCard request = new RequestCard(names, hashes);
+        request.offsets = new long[] {0, 16384};
+        r.add(request);
+        r.add(new Ready(2));
+        CheckDeck cd = new CheckDeck("Player", deck, "table");
+        cd.hashes = hashes;
+        cd.sizes = new long[] {40000, 52000};
+        r.add(cd);
+        r.add(new CardsList(list));
+        byte[] data = new byte[8192];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        r.add(new CardChunk(1, 76168, 16384, hashes[1], data));
+        r.add(new Reconnect(1, "table", hashes[0].substring(0, 32), 1234));
+        r.add(new Spectate("table"));
+        Action[] deal = new Action[hand.length + 1];
+        deal[0] = new Shuffle(0);
+        for (int i = 0; i < hand.length; i++) {
+            deal[i + 1] = new MoveCard(Zone.TOP_LIBRARY, Zone.HAND, 0, hand[i],
+                    false);
+        }
+        r.add(new Batch(0, deal));
+        GameState st = new GameState(2, 3);
+        st.librarySizes = new int[] {46, 51};
+        st.handSizes = new int[] {7, 2};
+        st.health = new int[] {17, 0};
+        st.poison = new int[] {3, 0};
+        st.left = new boolean[] {false, true};
+        st.hand = hand;
+        st.table = new String[] {"A42", "B3", "AX3"};
+        st.x = new int[] {512, -1, 128};
+        st.y = new int[] {384, -1, 64};
+        st.tapped = new boolean[] {true, false, true};
+        st.tokens[2] = ct;
+        r.add(st);
+
+        LinkedHashMap<String, Action> samples = new LinkedHashMap<>();
+        for (Action e : r) {
+            samples.put(e.getClass().getSimpleName(), e);
+        }
+        return samples;
+    }
+
+    /**
+     * Returns simple names of all subclasses of {@link Action} in
+     * <code>server.flags</code>, read from the directory or the jar which
+     * contains it.
+     */
+    private static List<String> actionClasses() throws Exception {
+        List<String> files = new ArrayList<>();
+        URL url = Action.class.getResource("Action.class");
+        if (url.getProtocol().equals("jar")) {
+            JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.startsWith("server/flags/")) {
+                    files.add(name.substring(name.lastIndexOf('/') + 1));
+                }
+            }
+        } else {
+            for (File e : new File(url.toURI()).getParentFile().listFiles()) {
+                files.add(e.getName());
+            }
+        }
+
+        List<String> result = new ArrayList<>();
+        for (String e : files) {
+            if (!e.endsWith(".class") || e.contains("$")) {
+                continue;
+            }
+            String name = e.substring(0, e.length() - ".class".length());
+            Class<?> c = Class.forName("server.flags." + name);
+            if (Action.class.isAssignableFrom(c) && !c.equals(Action.class)
+                    && !Modifier.isAbstract(c.getModifiers())) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compares two objects field by field, including fields of superclasses
+     * and of nested objects. Enums and classes from <code>java</code>
+     * packages are compared with <code>equals</code>.
+     * @return description of the first difference or null if there is none
+     */
+    private static String compare(String path, Object expected, Object actual)
+            throws IllegalAccessException {
+        if (expected == null || actual == null) {
+            return expected == actual? null
+                    : path + " expected " + expected + " but was " + actual;
+        }
+        if (!expected.getClass().equals(actual.getClass())) {
+            return path + " expected " + expected.getClass().getSimpleName()
+                    + " but was " + actual.getClass().getSimpleName();
+        }
+        if (expected.getClass().isArray()) {
+            if (Array.getLength(expected) != Array.getLength(actual)) {
+                return path + " expected length " + Array.getLength(expected)
+                        + " but was " + Array.getLength(actual);
+            }
+            for (int i = 0; i < Array.getLength(expected); i++) {
+                String r = compare(path + "[" + i + "]",
+                        Array.get(expected, i), Array.get(actual, i));
+                if (r != null) {
+                    return r;
+                }
+            }
+            return null;
+        }
+        if (expected instanceof Enum
+                || expected.getClass().getName().startsWith("java.")) {
+            return expected.equals(actual)? null
+                    : path + " expected " + expected + " but was " + actual;
+        }
+        for (Class<?> c = expected.getClass(); c != null; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int modifiers = f.getModifiers();
+                if (Modifier.isStatic(modifiers)
+                        || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                f.setAccessible(true);
+                String r = compare(path + "." + f.getName(),
+                        f.get(expected), f.get(actual));
+                if (r != null) {
+                    return r;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,159 @@
+package server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import server.flags.CardChunk;
+
+/**
+ * Length-prefixed framing used on the connection between a client and
+ * the server. Every frame is a 4-byte big-endian payload length followed by
+ * the payload itself, so a receiver always knows how many bytes it has to
+ * collect before it can decode a message - this is what lets the server read
+ * from many non-blocking channels at once.
+ * <p>
+ * Each payload is encoded independently of any other by {@link ActionCodec},
+ * so no stream state (like <code>ObjectOutputStream</code>'s handle table)
+ * grows during a game.
+ */
+public final class Frame {
+    /**
+     * Size of the length header in bytes.
+     */
+    public static final int HEADER = 4;
+    /**
+     * The largest payload a receiver accepts. Anything above it is treated
+     * as a corrupted stream.
+     */
+    public static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private Frame() {}
+
+    /**
+     * Encodes an object into a complete frame (header included). Returned
+     * buffer is ready to be read or written to a channel.
+     * @param object object to be encoded
+     * @return flipped buffer containing the whole frame
+     * @throws IOException if object cannot be encoded
+     */
+    public static ByteBuffer encode(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); //length is not known yet
+        ActionCodec.write(out, object);
+        out.flush();
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.limit() - HEADER);
+        return frame;
+    }
+
+    /**
+     * Encodes a frame of a chunk without its data. The frame's length
+     * includes the data, which has to be written right after returned buffer.
+     * @param chunk chunk to be encoded, its data is ignored
+     * @param length length of chunk's data
+     * @return flipped buffer containing the frame up to chunk's data
+     * @throws IOException if chunk cannot be encoded
+     */
+    public static ByteBuffer encodeChunkHeader(CardChunk chunk, int length)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); //length is not known yet
+        ActionCodec.writeChunkHeader(out, chunk, length);
+        out.flush();
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.limit() - HEADER + length);
+        return frame;
+    }
+
+    /**
+     * Assembles a frame of a batch from frames of the batched actions, so
+     * actions encoded for many recipients are not encoded again.
+     * @param requestor requestor of the batch
+     * @param frames complete frames (header included) of the actions, they
+     * are not modified
+     * @return flipped buffer containing the whole frame
+     * @throws IOException if the batch cannot be encoded
+     */
+    public static ByteBuffer encodeBatch(int requestor, List<ByteBuffer> frames)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); //length is not known yet
+        ActionCodec.writeBatchHeader(out, requestor, frames.size());
+        out.flush();
+        int length = bytes.size();
+        for (ByteBuffer f : frames) {
+            length += f.limit() - HEADER;
+        }
+        checkLength(length - HEADER);
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        frame.put(bytes.toByteArray());
+        for (ByteBuffer f : frames) {
+            ByteBuffer payload = f.duplicate();
+            payload.position(HEADER);
+            frame.put(payload);
+        }
+        frame.flip();
+        frame.putInt(0, frame.limit() - HEADER);
+        return frame;
+    }
+
+    /**
+     * Decodes a payload of a single frame (without header).
+     * @param payload buffer positioned at the beginning of payload and limited
+     * to its end
+     * @return decoded object
+     * @throws IOException if payload is corrupted
+     */
+    public static Object decode(ByteBuffer payload) throws IOException {
+        byte[] b = new byte[payload.remaining()];
+        payload.get(b);
+        return ActionCodec.decode(b);
+    }
+
+    /**
+     * Writes a single frame to the stream and flushes it.
+     * @param out stream to be written to
+     * @param object object to be sent
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(DataOutputStream out, Object object)
+            throws IOException {
+        byte[] payload = ActionCodec.encode(object);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /**
+     * Reads a single frame from the stream, blocking until it is complete.
+     * @param in stream to be read from
+     * @return decoded object
+     * @throws IOException if an I/O error occurs or stream is corrupted
+     */
+    public static Object read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return ActionCodec.decode(payload);
+    }
+
+    /**
+     * Throws an exception if a length read from a header cannot be a length
+     * of a valid frame.
+     * @param length length read from the header
+     * @throws StreamCorruptedException if length is out of range
+     */
+    public static void checkLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+}